@@ -0,0 +1,200 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import com.esri.arcgisruntime.geometry.LinearUnitId;
+import com.esri.arcgisruntime.geometry.Point;
+import com.esri.arcgisruntime.geometry.Polygon;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates geodesic circle buffers whose vertex count depends on how closely
+ * the polygon must follow the true circle. The display polygon only needs to
+ * be accurate to a fraction of a screen pixel at the current map scale; the
+ * query polygon is accurate to a fixed ground distance. Both use far fewer
+ * vertices than a fixed 1000-vertex, 1 meter segment circle.
+ */
+public class AdaptiveBufferFactory {
+
+    /**
+     * Vertex counts are rounded up to one of these steps so that the template
+     * cache is reused as the map scale changes.
+     */
+    private static final int[] VERTEX_COUNT_STEPS = {16, 32, 64, 128, 256, 512};
+
+    // Ground meters per screen pixel at a map scale of 1, assuming 96 DPI
+    private static final double METERS_PER_PIXEL_AT_UNIT_SCALE = 0.0254 / 96.0;
+
+    private final GeodesicBufferCache bufferCache;
+    private final int maxPointCount;
+    private final double maxSegmentLength;
+    private final double displayTolerancePixels;
+    private final double queryToleranceMeters;
+    private final AtomicLong verticesSaved = new AtomicLong();
+
+    /**
+     * Creates a factory.
+     *
+     * @param bufferCache the template cache used to generate circles.
+     * @param maxPointCount the vertex count of a full-detail circle.
+     * @param maxSegmentLength the segment length of a full-detail circle, in
+     * meters.
+     * @param displayTolerancePixels how far, in screen pixels, the display
+     * polygon may deviate from the true circle.
+     * @param queryToleranceMeters how far, in meters, the query polygon may
+     * deviate from the true circle.
+     */
+    public AdaptiveBufferFactory(GeodesicBufferCache bufferCache, int maxPointCount, double maxSegmentLength,
+        double displayTolerancePixels, double queryToleranceMeters) {
+        this.bufferCache = bufferCache;
+        this.maxPointCount = maxPointCount;
+        this.maxSegmentLength = maxSegmentLength;
+        this.displayTolerancePixels = displayTolerancePixels;
+        this.queryToleranceMeters = queryToleranceMeters;
+    }
+
+    /**
+     * Creates display and query polygons for a circle.
+     *
+     * @param center the center, in any spatial reference.
+     * @param radiusMeters the radius in meters.
+     * @param mapScale the current map scale, used to size the display polygon.
+     * @return the two polygons and their vertex counts.
+     */
+    public Buffers create(Point center, double radiusMeters, double mapScale) {
+        int fullVertexCount = fullVertexCount(radiusMeters);
+        double displayToleranceMeters = displayTolerancePixels * mapScale * METERS_PER_PIXEL_AT_UNIT_SCALE;
+        int displayVertexCount = Math.min(fullVertexCount, vertexCount(radiusMeters, displayToleranceMeters));
+        int queryVertexCount = Math.min(fullVertexCount, vertexCount(radiusMeters, queryToleranceMeters));
+
+        Polygon query = circle(center, radiusMeters, queryVertexCount);
+        Polygon display = displayVertexCount == queryVertexCount
+            ? query : circle(center, radiusMeters, displayVertexCount);
+        int saved = 2 * fullVertexCount - displayVertexCount - queryVertexCount;
+        verticesSaved.addAndGet(saved);
+        return new Buffers(display, query, displayVertexCount, queryVertexCount, saved);
+    }
+
+    /**
+     * Returns the total number of vertices saved by every call to create,
+     * compared with drawing and querying a full-detail circle.
+     *
+     * @return the total number of vertices saved.
+     */
+    public long getVerticesSaved() {
+        return verticesSaved.get();
+    }
+
+    /**
+     * Returns the vertex count of a full-detail circle, which is limited both
+     * by the maximum point count and by the maximum segment length.
+     */
+    private int fullVertexCount(double radiusMeters) {
+        return (int) Math.min(maxPointCount, Math.ceil(2.0 * Math.PI * radiusMeters / maxSegmentLength));
+    }
+
+    /**
+     * Returns the smallest vertex count step whose inscribed polygon stays
+     * within the tolerance of the circle. The largest gap between a regular
+     * n-gon and its circumscribed circle is r (1 - cos(pi / n)).
+     */
+    static int vertexCount(double radiusMeters, double toleranceMeters) {
+        if (toleranceMeters >= radiusMeters) {
+            return VERTEX_COUNT_STEPS[0];
+        }
+        double exact = Math.PI / Math.acos(1.0 - toleranceMeters / radiusMeters);
+        for (int step : VERTEX_COUNT_STEPS) {
+            if (step >= exact) {
+                return step;
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    private Polygon circle(Point center, double radiusMeters, int vertexCount) {
+        // A segment length of one vertex-count-th of the circumference makes the point count the binding limit
+        double segmentLength = 2.0 * Math.PI * radiusMeters / vertexCount;
+        return bufferCache.buffer(center, radiusMeters, LinearUnitId.METERS, vertexCount, segmentLength);
+    }
+
+    /**
+     * A display polygon and a query polygon for the same circle.
+     */
+    public static class Buffers {
+
+        private final Polygon display;
+        private final Polygon query;
+        private final int displayVertexCount;
+        private final int queryVertexCount;
+        private final int verticesSaved;
+
+        Buffers(Polygon display, Polygon query, int displayVertexCount, int queryVertexCount, int verticesSaved) {
+            this.display = display;
+            this.query = query;
+            this.displayVertexCount = displayVertexCount;
+            this.queryVertexCount = queryVertexCount;
+            this.verticesSaved = verticesSaved;
+        }
+
+        /**
+         * Returns the polygon to draw.
+         *
+         * @return the display polygon.
+         */
+        public Polygon getDisplay() {
+            return display;
+        }
+
+        /**
+         * Returns the polygon to query with.
+         *
+         * @return the query polygon.
+         */
+        public Polygon getQuery() {
+            return query;
+        }
+
+        /**
+         * Returns the vertex count of the display polygon.
+         *
+         * @return the display vertex count.
+         */
+        public int getDisplayVertexCount() {
+            return displayVertexCount;
+        }
+
+        /**
+         * Returns the vertex count of the query polygon.
+         *
+         * @return the query vertex count.
+         */
+        public int getQueryVertexCount() {
+            return queryVertexCount;
+        }
+
+        /**
+         * Returns how many fewer vertices these polygons have than a
+         * full-detail circle drawn and queried.
+         *
+         * @return the number of vertices saved.
+         */
+        public int getVerticesSaved() {
+            return verticesSaved;
+        }
+
+    }
+
+}
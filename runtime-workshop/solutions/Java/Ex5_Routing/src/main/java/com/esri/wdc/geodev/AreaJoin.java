@@ -0,0 +1,151 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The crimes of each area named by an attribute of the crime table, such as
+ * its ward or neighborhood cluster, grouped once when the layers are indexed.
+ * The rows of each area come from the layers' attribute indexes and are kept
+ * as a bitmap, so the crimes in a ward or neighborhood are known without
+ * asking the runtime to query by attribute or select features with a polygon.
+ */
+public class AreaJoin {
+
+    private final String fieldName;
+    private final String[] names;
+    private final Map<String, Integer> areaOfName;
+    private final Map<LayerIndex, RowBitmap[]> rowsByArea;
+    private final int[] totals;
+
+    private AreaJoin(String fieldName, String[] names, Map<String, Integer> areaOfName,
+            Map<LayerIndex, RowBitmap[]> rowsByArea, int[] totals) {
+        this.fieldName = fieldName;
+        this.names = names;
+        this.areaOfName = areaOfName;
+        this.rowsByArea = rowsByArea;
+        this.totals = totals;
+    }
+
+    /**
+     * Groups the crimes of some layers by the value of an attribute field. The
+     * areas are the field's distinct values across the layers, in ascending
+     * order; rows with no value are in no area.
+     *
+     * @param fieldName the name of the field that names each crime's area.
+     * @param layerIndexes the layers' indexes.
+     * @return the join.
+     */
+    public static AreaJoin build(String fieldName, Collection<LayerIndex> layerIndexes) {
+        TreeSet<String> sortedNames = new TreeSet<>();
+        for (LayerIndex layerIndex : layerIndexes) {
+            DictionaryColumn column = layerIndex.getStore().getColumn(fieldName);
+            for (int code = 0; null != column && code < column.cardinality(); code++) {
+                sortedNames.add(column.value(code));
+            }
+        }
+        String[] names = sortedNames.toArray(new String[0]);
+        Map<String, Integer> areaOfName = new HashMap<>();
+        for (int area = 0; area < names.length; area++) {
+            areaOfName.put(names[area], area);
+        }
+
+        Map<LayerIndex, RowBitmap[]> rowsByArea = new IdentityHashMap<>();
+        int[] totals = new int[names.length];
+        for (LayerIndex layerIndex : layerIndexes) {
+            RowBitmap[] bitmaps = new RowBitmap[names.length];
+            for (int area = 0; area < names.length; area++) {
+                RowBitmap rows = layerIndex.getAttributeIndex()
+                    .rows(FacetFilter.ALL.restrict(fieldName, Collections.singleton(names[area])));
+                bitmaps[area] = null == rows ? RowBitmap.empty() : rows;
+                totals[area] += bitmaps[area].cardinality();
+            }
+            rowsByArea.put(layerIndex, bitmaps);
+        }
+        return new AreaJoin(fieldName, names, areaOfName, rowsByArea, totals);
+    }
+
+    /**
+     * Returns the name of the field that names each crime's area.
+     *
+     * @return the field's name.
+     */
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    /**
+     * Returns the number of areas.
+     *
+     * @return the number of areas.
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Returns the name of an area.
+     *
+     * @param area the area's index.
+     * @return the area's value of the field.
+     */
+    public String getName(int area) {
+        return names[area];
+    }
+
+    /**
+     * Returns the area of a row of a layer.
+     *
+     * @param layerIndex the layer's index.
+     * @param row the store row.
+     * @return the area's index, or -1 if the row has no value for the field.
+     */
+    public int areaOf(LayerIndex layerIndex, int row) {
+        DictionaryColumn column = layerIndex.getStore().getColumn(fieldName);
+        Integer area = null == column ? null : areaOfName.get(column.valueAt(row));
+        return null == area ? -1 : area;
+    }
+
+    /**
+     * Returns the rows of a layer that lie in an area.
+     *
+     * @param layerIndex the layer's index.
+     * @param area the area's index.
+     * @return the rows, which are empty if the layer was not joined.
+     */
+    public RowBitmap rows(LayerIndex layerIndex, int area) {
+        RowBitmap[] bitmaps = rowsByArea.get(layerIndex);
+        return null == bitmaps ? RowBitmap.empty() : bitmaps[area];
+    }
+
+    /**
+     * Returns the number of crimes of all joined layers in an area, for all
+     * dates and attribute values.
+     *
+     * @param area the area's index.
+     * @return the number of crimes.
+     */
+    public int getTotal(int area) {
+        return totals[area];
+    }
+
+}
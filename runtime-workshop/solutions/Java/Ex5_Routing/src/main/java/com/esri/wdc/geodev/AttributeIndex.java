@@ -0,0 +1,112 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A bitmap of the store rows with each value of the offense, shift, method,
+ * block address, ward and neighborhood cluster columns. A facet filter is
+ * answered by OR-ing the bitmaps of the allowed values of each field and
+ * AND-ing the fields together, without scanning the store or asking the
+ * runtime to evaluate a where clause.
+ */
+public class AttributeIndex {
+
+    private final DictionaryColumn[] columns;
+    // For each column, the rows holding each code
+    private final RowBitmap[][] rowsByCode;
+
+    private AttributeIndex(DictionaryColumn[] columns, RowBitmap[][] rowsByCode) {
+        this.columns = columns;
+        this.rowsByCode = rowsByCode;
+    }
+
+    /**
+     * Indexes the attribute columns of a store.
+     *
+     * @param store the store.
+     * @return the index.
+     */
+    public static AttributeIndex build(CrimeFeatureStore store) {
+        DictionaryColumn[] columns = {store.getOffense(), store.getShift(), store.getMethod(), store.getBlock(),
+            store.getWard(), store.getNeighborhood()};
+        RowBitmap[][] rowsByCode = new RowBitmap[columns.length][];
+        for (int c = 0; c < columns.length; c++) {
+            rowsByCode[c] = build(columns[c], store.size());
+        }
+        return new AttributeIndex(columns, rowsByCode);
+    }
+
+    /**
+     * Buckets the rows by code with a counting sort, so each bucket is sorted.
+     */
+    private static RowBitmap[] build(DictionaryColumn column, int size) {
+        int[] starts = new int[column.cardinality() + 1];
+        for (int row = 0; row < size; row++) {
+            if (DictionaryColumn.NULL_CODE != column.code(row)) {
+                starts[column.code(row) + 1]++;
+            }
+        }
+        for (int code = 0; code < column.cardinality(); code++) {
+            starts[code + 1] += starts[code];
+        }
+        int[] next = starts.clone();
+        int[] rows = new int[starts[column.cardinality()]];
+        for (int row = 0; row < size; row++) {
+            if (DictionaryColumn.NULL_CODE != column.code(row)) {
+                rows[next[column.code(row)]++] = row;
+            }
+        }
+        RowBitmap[] bitmaps = new RowBitmap[column.cardinality()];
+        for (int code = 0; code < bitmaps.length; code++) {
+            int count = starts[code + 1] - starts[code];
+            int[] codeRows = new int[count];
+            System.arraycopy(rows, starts[code], codeRows, 0, count);
+            bitmaps[code] = RowBitmap.ofSorted(codeRows, count);
+        }
+        return bitmaps;
+    }
+
+    /**
+     * Returns the rows that pass a facet filter.
+     *
+     * @param facets the filter.
+     * @return the rows, or null if the filter restricts none of the indexed
+     * fields.
+     */
+    public RowBitmap rows(FacetFilter facets) {
+        RowBitmap result = null;
+        for (Map.Entry<String, Set<String>> entry : facets.getAllowedValues().entrySet()) {
+            for (int c = 0; c < columns.length; c++) {
+                if (!columns[c].getName().equals(entry.getKey())) {
+                    continue;
+                }
+                RowBitmap fieldRows = RowBitmap.empty();
+                for (String value : entry.getValue()) {
+                    short code = columns[c].codeOf(value);
+                    if (DictionaryColumn.NULL_CODE != code) {
+                        fieldRows = fieldRows.or(rowsByCode[c][code]);
+                    }
+                }
+                result = null == result ? fieldRows : result.and(fieldRows);
+            }
+        }
+        return result;
+    }
+
+}
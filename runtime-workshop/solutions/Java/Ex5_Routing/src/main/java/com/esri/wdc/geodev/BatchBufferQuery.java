@@ -0,0 +1,269 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import com.esri.arcgisruntime.geometry.LinearUnitId;
+import com.esri.arcgisruntime.geometry.Point;
+import com.esri.arcgisruntime.geometry.Polygon;
+import com.esri.arcgisruntime.geometry.SpatialReferences;
+import com.esri.arcgisruntime.layers.FeatureLayer;
+import com.esri.arcgisruntime.layers.Layer;
+import com.esri.arcgisruntime.mapping.MobileMapPackage;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+/**
+ * Runs the buffer and query of WorkshopApp for every location in a CSV file,
+ * without a MapView or JavaFX stage, and writes the number of crimes within
+ * the buffer of each location to another CSV file.
+ * <p>
+ * The input has a header row and the columns id, longitude and latitude (WGS
+ * 84). Values must not contain commas. Locations are processed in chunks on a
+ * fork-join pool. After each chunk is written, a checkpoint file next to the
+ * output records how far the run got, and running the same command again
+ * resumes from there.
+ * <p>
+ * Usage: {@code BatchBufferQuery <input.csv> <output.csv> [radiusMeters]
+ * [threads]}. With Maven, run {@code mvn exec:java
+ * -DmainClass=com.esri.wdc.geodev.BatchBufferQuery -Dexec.args="..."}.
+ */
+public class BatchBufferQuery {
+
+    private static final int CHUNK_SIZE = 1000;
+
+    private final List<LayerIndex> layerIndexes;
+    private final GeodesicBufferCache bufferCache = new GeodesicBufferCache();
+    private final double radiusMeters;
+
+    private BatchBufferQuery(List<LayerIndex> layerIndexes, double radiusMeters) {
+        this.layerIndexes = layerIndexes;
+        this.radiusMeters = radiusMeters;
+    }
+
+    /**
+     * Runs a batch.
+     *
+     * @param args the input CSV, the output CSV, and optionally the buffer
+     * radius in meters and the number of threads.
+     */
+    public static void main(String[] args) {
+        if (2 > args.length) {
+            System.err.println("Usage: BatchBufferQuery <input.csv> <output.csv> [radiusMeters] [threads]");
+            System.exit(1);
+        }
+        Path input = Paths.get(args[0]);
+        Path output = Paths.get(args[1]);
+        double radiusMeters = 2 < args.length ? Double.parseDouble(args[2]) : WorkshopApp.BUFFER_RADIUS_METERS;
+        int threads = 3 < args.length ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        try {
+            BatchBufferQuery batch = new BatchBufferQuery(loadLayerIndexes(WorkshopApp.MMPK_PATH), radiusMeters);
+            batch.run(input, output, threads);
+        } catch (IOException | ExecutionException ex) {
+            Logger.getLogger(BatchBufferQuery.class.getName()).log(Level.SEVERE, null, ex);
+            System.exit(1);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Opens a mobile map package and indexes the feature layers of its first
+     * map.
+     */
+    private static List<LayerIndex> loadLayerIndexes(String mmpkPath) throws InterruptedException, ExecutionException {
+        MobileMapPackage mmpk = new MobileMapPackage(mmpkPath);
+        CrimeFeatureStore.loadAndWait(mmpk);
+        List<LayerIndex> layerIndexes = new ArrayList<>();
+        if (!mmpk.getMaps().isEmpty()) {
+            for (Layer layer : mmpk.getMaps().get(0).getOperationalLayers()) {
+                if (layer instanceof FeatureLayer) {
+                    LayerIndex layerIndex = LayerIndex.build((FeatureLayer) layer);
+                    if (null != layerIndex) {
+                        layerIndexes.add(layerIndex);
+                    }
+                }
+            }
+        }
+        if (layerIndexes.isEmpty()) {
+            throw new ExecutionException("No point feature layers in " + mmpkPath, null);
+        }
+        return layerIndexes;
+    }
+
+    private void run(Path input, Path output, int threads) throws IOException, InterruptedException {
+        Path checkpoint = Paths.get(output.toString() + ".checkpoint");
+        Checkpoint resumeFrom = Checkpoint.read(checkpoint);
+        if (null == resumeFrom) {
+            resumeFrom = new Checkpoint(0L, 0L);
+            Files.write(output, (header() + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+        } else {
+            // Discard anything written after the last checkpoint
+            try (RandomAccessFile file = new RandomAccessFile(output.toFile(), "rw")) {
+                file.setLength(resumeFrom.outputBytes);
+            }
+            Logger.getLogger(BatchBufferQuery.class.getName()).log(Level.INFO,
+                "Resuming after {0} locations", resumeFrom.linesDone);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        long linesDone = resumeFrom.linesDone;
+        long linesThisRun = 0;
+        long startTime = System.nanoTime();
+        try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+            BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8, StandardOpenOption.APPEND)) {
+            reader.readLine();
+            // Skip locations finished in an earlier run, which like the chunks below do not count blank lines
+            long skipped = 0;
+            while (skipped < linesDone) {
+                String line = reader.readLine();
+                if (null == line) {
+                    break;
+                }
+                if (!line.trim().isEmpty()) {
+                    skipped++;
+                }
+            }
+            List<String> chunk = new ArrayList<>(CHUNK_SIZE);
+            String line;
+            do {
+                line = reader.readLine();
+                if (null != line && !line.trim().isEmpty()) {
+                    chunk.add(line);
+                }
+                if (CHUNK_SIZE == chunk.size() || (null == line && !chunk.isEmpty())) {
+                    String[] results = new String[chunk.size()];
+                    pool.submit(() -> IntStream.range(0, chunk.size()).parallel()
+                        .forEach(i -> results[i] = process(chunk.get(i)))).get();
+                    for (String result : results) {
+                        writer.write(result);
+                        writer.newLine();
+                    }
+                    writer.flush();
+                    linesDone += chunk.size();
+                    linesThisRun += chunk.size();
+                    new Checkpoint(linesDone, Files.size(output)).write(checkpoint);
+                    chunk.clear();
+
+                    double seconds = (System.nanoTime() - startTime) / 1e9;
+                    Logger.getLogger(BatchBufferQuery.class.getName()).log(Level.INFO,
+                        "{0} locations done, {1} points per second",
+                        new Object[]{linesDone, String.format("%.1f", linesThisRun / seconds)});
+                }
+            } while (null != line);
+        } catch (ExecutionException ex) {
+            throw new IOException(ex);
+        } finally {
+            pool.shutdown();
+        }
+        Files.deleteIfExists(checkpoint);
+    }
+
+    private String header() {
+        StringBuilder header = new StringBuilder("id,longitude,latitude");
+        for (LayerIndex layerIndex : layerIndexes) {
+            header.append(',').append(layerIndex.getFeatureLayer().getName().replace(',', ' '));
+        }
+        return header.append(",total").toString();
+    }
+
+    /**
+     * Buffers one location and counts the features in the buffer. The buffer
+     * is the one WorkshopApp.bufferAndQuery uses, and the index candidates are
+     * tested against it client-side with a prepared polygon instead of a
+     * runtime query per layer.
+     */
+    private String process(String line) {
+        String[] values = line.split(",", -1);
+        StringBuilder result = new StringBuilder();
+        try {
+            double longitude = Double.parseDouble(values[1].trim());
+            double latitude = Double.parseDouble(values[2].trim());
+            result.append(values[0]).append(',').append(longitude).append(',').append(latitude);
+            Polygon buffer = bufferCache.buffer(new Point(longitude, latitude, SpatialReferences.getWgs84()),
+                radiusMeters, LinearUnitId.METERS, WorkshopApp.BUFFER_MAX_POINT_COUNT,
+                WorkshopApp.BUFFER_MAX_SEGMENT_LENGTH);
+            PreparedPolygon prepared = new PreparedPolygon(buffer);
+            long total = 0;
+            for (LayerIndex layerIndex : layerIndexes) {
+                int count = prepared.filter(layerIndex.getStore(), layerIndex.queryCandidateRows(buffer));
+                result.append(',').append(count);
+                total += count;
+            }
+            return result.append(',').append(total).toString();
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException ex) {
+            Logger.getLogger(BatchBufferQuery.class.getName()).log(Level.WARNING,
+                "Could not process \"{0}\": {1}", new Object[]{line, ex});
+            // Keep the columns aligned with the header, leaving every value empty
+            StringBuilder error = new StringBuilder(values[0]).append(",,");
+            for (int i = 0; i < layerIndexes.size(); i++) {
+                error.append(',');
+            }
+            return error.append(',').toString();
+        }
+    }
+
+    /**
+     * How many input locations are done and how long the output was at that
+     * point.
+     */
+    private static class Checkpoint {
+
+        private final long linesDone;
+        private final long outputBytes;
+
+        Checkpoint(long linesDone, long outputBytes) {
+            this.linesDone = linesDone;
+            this.outputBytes = outputBytes;
+        }
+
+        static Checkpoint read(Path path) throws IOException {
+            if (!Files.exists(path)) {
+                return null;
+            }
+            String[] values = new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim().split(",");
+            return new Checkpoint(Long.parseLong(values[0]), Long.parseLong(values[1]));
+        }
+
+        /**
+         * Writes the checkpoint to a temporary file and moves it into place,
+         * so a crash never leaves a partial checkpoint.
+         */
+        void write(Path path) throws IOException {
+            Path temp = Paths.get(path.toString() + ".tmp");
+            Files.write(temp, (linesDone + "," + outputBytes).getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+    }
+
+}
@@ -0,0 +1,143 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import com.esri.arcgisruntime.geometry.Envelope;
+import com.esri.arcgisruntime.geometry.Geometry;
+import com.esri.arcgisruntime.geometry.GeometryEngine;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Unions many polygons with a cascaded union. Folding polygons into a running
+ * union one at a time makes every step pay for the whole union so far. A
+ * cascaded union instead splits the polygons in half along the longer side of
+ * their extent, unions each half recursively and then unions the two results,
+ * so each polygon takes part in a logarithmic number of unions, mostly with
+ * nearby polygons of similar size. The halves are unioned in parallel on a
+ * fork-join pool.
+ */
+public class BufferUnion {
+
+    // Groups this small are unioned by one call to the geometry engine
+    private static final int LEAF_SIZE = 4;
+
+    private BufferUnion() {
+    }
+
+    /**
+     * Unions polygons on the common fork-join pool.
+     *
+     * @param polygons the polygons, all in the same spatial reference.
+     * @return the union, or null if there are no polygons.
+     */
+    public static Geometry union(Collection<? extends Geometry> polygons) {
+        return union(polygons, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Unions polygons on a fork-join pool.
+     *
+     * @param polygons the polygons, all in the same spatial reference.
+     * @param pool the pool that runs the unions.
+     * @return the union, or null if there are no polygons.
+     */
+    public static Geometry union(Collection<? extends Geometry> polygons, ForkJoinPool pool) {
+        if (polygons.isEmpty()) {
+            return null;
+        }
+        Item[] items = new Item[polygons.size()];
+        int i = 0;
+        for (Geometry polygon : polygons) {
+            items[i++] = new Item(polygon);
+        }
+        return pool.invoke(new UnionTask(items, 0, items.length));
+    }
+
+    /**
+     * A polygon and the center of its extent.
+     */
+    private static class Item {
+
+        private final Geometry geometry;
+        private final double x;
+        private final double y;
+
+        Item(Geometry geometry) {
+            Envelope extent = geometry.getExtent();
+            this.geometry = geometry;
+            this.x = (extent.getXMin() + extent.getXMax()) / 2.0;
+            this.y = (extent.getYMin() + extent.getYMax()) / 2.0;
+        }
+
+    }
+
+    /**
+     * Unions a range of items. Each task sorts only its own range, so tasks
+     * running at the same time never touch the same items.
+     */
+    private static class UnionTask extends RecursiveTask<Geometry> {
+
+        private final Item[] items;
+        private final int from;
+        private final int to;
+
+        UnionTask(Item[] items, int from, int to) {
+            this.items = items;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Geometry compute() {
+            if (to - from <= LEAF_SIZE) {
+                if (1 == to - from) {
+                    return items[from].geometry;
+                }
+                Geometry[] geometries = new Geometry[to - from];
+                for (int i = from; i < to; i++) {
+                    geometries[i - from] = items[i].geometry;
+                }
+                return GeometryEngine.union(Arrays.asList(geometries));
+            }
+
+            // Split at the median along the longer side, so each half is as compact as possible
+            double minX = Double.POSITIVE_INFINITY;
+            double minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY;
+            double maxY = Double.NEGATIVE_INFINITY;
+            for (int i = from; i < to; i++) {
+                minX = Math.min(minX, items[i].x);
+                minY = Math.min(minY, items[i].y);
+                maxX = Math.max(maxX, items[i].x);
+                maxY = Math.max(maxY, items[i].y);
+            }
+            Arrays.sort(items, from, to, maxX - minX >= maxY - minY
+                ? Comparator.comparingDouble((Item item) -> item.x)
+                : Comparator.comparingDouble((Item item) -> item.y));
+            int middle = (from + to) >>> 1;
+            UnionTask left = new UnionTask(items, from, middle);
+            left.fork();
+            Geometry right = new UnionTask(items, middle, to).compute();
+            return GeometryEngine.union(left.join(), right);
+        }
+
+    }
+
+}
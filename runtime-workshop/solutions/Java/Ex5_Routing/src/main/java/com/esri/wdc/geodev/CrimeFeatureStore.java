@@ -0,0 +1,450 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import com.esri.arcgisruntime.data.Feature;
+import com.esri.arcgisruntime.data.FeatureQueryResult;
+import com.esri.arcgisruntime.data.FeatureTable;
+import com.esri.arcgisruntime.data.Field;
+import com.esri.arcgisruntime.data.QueryParameters;
+import com.esri.arcgisruntime.geometry.Geometry;
+import com.esri.arcgisruntime.geometry.GeometryType;
+import com.esri.arcgisruntime.geometry.Point;
+import com.esri.arcgisruntime.geometry.SpatialReference;
+import com.esri.arcgisruntime.geometry.SpatialReferences;
+import com.esri.arcgisruntime.loadable.LoadStatus;
+import com.esri.arcgisruntime.loadable.Loadable;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A columnar, in-memory copy of a crime point feature table. Every column is a
+ * primitive array indexed by row, so analysis code can scan all of the
+ * features without boxing or creating an object per feature. Coordinates are
+ * WGS 84 longitude and latitude.
+ */
+public class CrimeFeatureStore {
+
+    /**
+     * The spatial reference of the x and y columns.
+     */
+    public static final SpatialReference SPATIAL_REFERENCE = SpatialReferences.getWgs84();
+
+    /**
+     * The value stored for rows that have no report time.
+     */
+    public static final long NO_TIME = Long.MIN_VALUE;
+
+    /**
+     * The time zone in which the crimes were reported.
+     */
+    public static final ZoneId TIME_ZONE = ZoneId.of("America/New_York");
+
+    // Field names in the DC crime incidents table
+    public static final String OFFENSE_FIELD = "OFFENSE";
+    public static final String SHIFT_FIELD = "SHIFT";
+    public static final String METHOD_FIELD = "METHOD";
+    public static final String BLOCK_FIELD = "BLOCKSITEA";
+    public static final String WARD_FIELD = "WARD";
+    public static final String NEIGHBORHOOD_FIELD = "NEIGHBORHO";
+    public static final String REPORT_DATE_FIELD = "REPORTDATE";
+
+    private final String objectIdField;
+    private final long[] objectIds;
+    private final double[] x;
+    private final double[] y;
+    private final long[] reportTimes;
+    private final DictionaryColumn offense;
+    private final DictionaryColumn shift;
+    private final DictionaryColumn method;
+    private final DictionaryColumn block;
+    private final DictionaryColumn ward;
+    private final DictionaryColumn neighborhood;
+
+    // Object IDs in ascending order, and the row of each, for lookups by ID
+    private final long[] sortedObjectIds;
+    private final int[] sortedRows;
+
+    private CrimeFeatureStore(String objectIdField, long[] objectIds, double[] x, double[] y, long[] reportTimes,
+        DictionaryColumn offense, DictionaryColumn shift, DictionaryColumn method, DictionaryColumn block,
+        DictionaryColumn ward, DictionaryColumn neighborhood) {
+        this.objectIdField = objectIdField;
+        this.objectIds = objectIds;
+        this.x = x;
+        this.y = y;
+        this.reportTimes = reportTimes;
+        this.offense = offense;
+        this.shift = shift;
+        this.method = method;
+        this.block = block;
+        this.ward = ward;
+        this.neighborhood = neighborhood;
+
+        sortedObjectIds = objectIds.clone();
+        sortedRows = new int[objectIds.length];
+        for (int row = 0; row < sortedRows.length; row++) {
+            sortedRows[row] = row;
+        }
+        heapSort(sortedObjectIds, sortedRows);
+    }
+
+    /**
+     * Reads every feature of a point feature table into a new store. This
+     * method blocks until the table is loaded and queried, so call it from a
+     * background thread.
+     *
+     * @param table the feature table.
+     * @return the store.
+     * @throws InterruptedException if interrupted while waiting for the runtime.
+     * @throws ExecutionException if the table fails to load or query, does
+     * not hold points, or lacks one of the attribute fields.
+     */
+    public static CrimeFeatureStore load(FeatureTable table) throws InterruptedException, ExecutionException {
+        loadAndWait(table);
+        if (GeometryType.POINT != table.getGeometryType()) {
+            throw new ExecutionException("Table " + table.getTableName() + " does not hold points", null);
+        }
+        String objectIdField = getObjectIdField(table);
+        for (String fieldName : new String[]{OFFENSE_FIELD, SHIFT_FIELD, METHOD_FIELD, BLOCK_FIELD, WARD_FIELD,
+            NEIGHBORHOOD_FIELD}) {
+            requireField(table, fieldName);
+        }
+
+        QueryParameters query = new QueryParameters();
+        query.setWhereClause("1=1");
+        query.setReturnGeometry(true);
+        query.setOutSpatialReference(SPATIAL_REFERENCE);
+        FeatureQueryResult result = table.queryFeaturesAsync(query).get();
+
+        int count = 0;
+        long[] objectIds = new long[1024];
+        double[] x = new double[1024];
+        double[] y = new double[1024];
+        long[] reportTimes = new long[1024];
+        DictionaryColumn.Builder offense = new DictionaryColumn.Builder(OFFENSE_FIELD);
+        DictionaryColumn.Builder shift = new DictionaryColumn.Builder(SHIFT_FIELD);
+        DictionaryColumn.Builder method = new DictionaryColumn.Builder(METHOD_FIELD);
+        DictionaryColumn.Builder block = new DictionaryColumn.Builder(BLOCK_FIELD);
+        DictionaryColumn.Builder ward = new DictionaryColumn.Builder(WARD_FIELD);
+        DictionaryColumn.Builder neighborhood = new DictionaryColumn.Builder(NEIGHBORHOOD_FIELD);
+        for (Feature feature : result) {
+            Geometry geometry = feature.getGeometry();
+            Map<String, Object> attributes = feature.getAttributes();
+            Object objectId = attributes.get(objectIdField);
+            if (!(geometry instanceof Point) || geometry.isEmpty() || !(objectId instanceof Number)) {
+                continue;
+            }
+            if (count == objectIds.length) {
+                int newLength = 2 * count;
+                objectIds = Arrays.copyOf(objectIds, newLength);
+                x = Arrays.copyOf(x, newLength);
+                y = Arrays.copyOf(y, newLength);
+                reportTimes = Arrays.copyOf(reportTimes, newLength);
+            }
+            Point point = (Point) geometry;
+            objectIds[count] = ((Number) objectId).longValue();
+            x[count] = point.getX();
+            y[count] = point.getY();
+            reportTimes[count] = toEpochMillis(attributes.get(REPORT_DATE_FIELD));
+            offense.add(toText(attributes.get(OFFENSE_FIELD)));
+            shift.add(toText(attributes.get(SHIFT_FIELD)));
+            method.add(toText(attributes.get(METHOD_FIELD)));
+            block.add(toText(attributes.get(BLOCK_FIELD)));
+            ward.add(toText(attributes.get(WARD_FIELD)));
+            neighborhood.add(toText(attributes.get(NEIGHBORHOOD_FIELD)));
+            count++;
+        }
+        return new CrimeFeatureStore(objectIdField, Arrays.copyOf(objectIds, count),
+            Arrays.copyOf(x, count), Arrays.copyOf(y, count), Arrays.copyOf(reportTimes, count),
+            offense.build(), shift.build(), method.build(), block.build(), ward.build(), neighborhood.build());
+    }
+
+    /**
+     * Returns the number of rows.
+     *
+     * @return the number of rows.
+     */
+    public int size() {
+        return objectIds.length;
+    }
+
+    /**
+     * Returns the name of the table's object ID field.
+     *
+     * @return the name of the object ID field.
+     */
+    public String getObjectIdField() {
+        return objectIdField;
+    }
+
+    /**
+     * Returns the object ID of a row.
+     *
+     * @param row the row.
+     * @return the object ID.
+     */
+    public long objectId(int row) {
+        return objectIds[row];
+    }
+
+    /**
+     * Finds the row of an object ID.
+     *
+     * @param objectId the object ID.
+     * @return the row, or -1 if the store does not contain the object ID.
+     */
+    public int rowOf(long objectId) {
+        int i = Arrays.binarySearch(sortedObjectIds, objectId);
+        return 0 <= i ? sortedRows[i] : -1;
+    }
+
+    /**
+     * Returns the longitude of a row.
+     *
+     * @param row the row.
+     * @return the longitude in degrees.
+     */
+    public double x(int row) {
+        return x[row];
+    }
+
+    /**
+     * Returns the latitude of a row.
+     *
+     * @param row the row.
+     * @return the latitude in degrees.
+     */
+    public double y(int row) {
+        return y[row];
+    }
+
+    /**
+     * Returns the report time of a row.
+     *
+     * @param row the row.
+     * @return the report time in milliseconds since the epoch, or NO_TIME.
+     */
+    public long reportTime(int row) {
+        return reportTimes[row];
+    }
+
+    /**
+     * Returns the offense column.
+     *
+     * @return the offense column.
+     */
+    public DictionaryColumn getOffense() {
+        return offense;
+    }
+
+    /**
+     * Returns the shift column.
+     *
+     * @return the shift column.
+     */
+    public DictionaryColumn getShift() {
+        return shift;
+    }
+
+    /**
+     * Returns the method column.
+     *
+     * @return the method column.
+     */
+    public DictionaryColumn getMethod() {
+        return method;
+    }
+
+    /**
+     * Returns the block address column.
+     *
+     * @return the block address column.
+     */
+    public DictionaryColumn getBlock() {
+        return block;
+    }
+
+    /**
+     * Returns the ward column.
+     *
+     * @return the ward column.
+     */
+    public DictionaryColumn getWard() {
+        return ward;
+    }
+
+    /**
+     * Returns the neighborhood cluster column.
+     *
+     * @return the neighborhood cluster column.
+     */
+    public DictionaryColumn getNeighborhood() {
+        return neighborhood;
+    }
+
+    /**
+     * Returns the attribute column of a field.
+     *
+     * @param fieldName the field's name.
+     * @return the column, or null if the store has no column for the field.
+     */
+    public DictionaryColumn getColumn(String fieldName) {
+        for (DictionaryColumn column : new DictionaryColumn[]{offense, shift, method, block, ward, neighborhood}) {
+            if (column.getName().equals(fieldName)) {
+                return column;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a copy of the longitude column, for building indexes.
+     *
+     * @return the longitudes of all rows.
+     */
+    public double[] copyX() {
+        return x.clone();
+    }
+
+    /**
+     * Returns a copy of the latitude column, for building indexes.
+     *
+     * @return the latitudes of all rows.
+     */
+    public double[] copyY() {
+        return y.clone();
+    }
+
+    /**
+     * Loads a Loadable and blocks until loading succeeds or fails.
+     *
+     * @param loadable the object to load.
+     * @throws InterruptedException if interrupted while waiting.
+     * @throws ExecutionException if loading fails.
+     */
+    static void loadAndWait(Loadable loadable) throws InterruptedException, ExecutionException {
+        CountDownLatch latch = new CountDownLatch(1);
+        loadable.addDoneLoadingListener(latch::countDown);
+        loadable.loadAsync();
+        latch.await();
+        if (LoadStatus.LOADED != loadable.getLoadStatus()) {
+            throw new ExecutionException("Could not load " + loadable, loadable.getLoadError());
+        }
+    }
+
+    private static String getObjectIdField(FeatureTable table) throws ExecutionException {
+        for (Field field : table.getFields()) {
+            if (Field.Type.OID == field.getFieldType()) {
+                return field.getName();
+            }
+        }
+        throw new ExecutionException("Table " + table.getTableName() + " has no object ID field", null);
+    }
+
+    /**
+     * Checks that a table has a field, so that a renamed field fails the load
+     * instead of reading as a column of nulls.
+     */
+    private static void requireField(FeatureTable table, String fieldName) throws ExecutionException {
+        for (Field field : table.getFields()) {
+            if (fieldName.equals(field.getName())) {
+                return;
+            }
+        }
+        throw new ExecutionException("Table " + table.getTableName() + " has no " + fieldName + " field", null);
+    }
+
+    /**
+     * Sorts keys ascending, applying the same moves to a parallel array of
+     * rows. Heap sort keeps this allocation-free.
+     */
+    static void heapSort(long[] keys, int[] rows) {
+        int n = keys.length;
+        for (int i = n / 2 - 1; i >= 0; i--) {
+            siftDown(keys, rows, i, n);
+        }
+        for (int end = n - 1; end > 0; end--) {
+            swap(keys, rows, 0, end);
+            siftDown(keys, rows, 0, end);
+        }
+    }
+
+    private static void siftDown(long[] keys, int[] rows, int i, int n) {
+        while (true) {
+            int largest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < n && keys[left] > keys[largest]) {
+                largest = left;
+            }
+            if (right < n && keys[right] > keys[largest]) {
+                largest = right;
+            }
+            if (largest == i) {
+                return;
+            }
+            swap(keys, rows, i, largest);
+            i = largest;
+        }
+    }
+
+    private static void swap(long[] keys, int[] rows, int i, int j) {
+        long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        int row = rows[i];
+        rows[i] = rows[j];
+        rows[j] = row;
+    }
+
+    /**
+     * Converts an attribute to text. Whole numbers, such as ward numbers read
+     * from a numeric field, lose their decimal point.
+     */
+    private static String toText(Object value) {
+        if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            if (number == Math.rint(number) && !Double.isInfinite(number)) {
+                return Long.toString((long) number);
+            }
+        }
+        return null == value ? null : value.toString().trim();
+    }
+
+    /**
+     * Converts a date attribute to epoch milliseconds. Date fields come back as
+     * Calendars; the DC crime data stores its dates as ISO 8601 text.
+     */
+    private static long toEpochMillis(Object value) {
+        if (value instanceof Calendar) {
+            return ((Calendar) value).getTimeInMillis();
+        } else if (value instanceof String) {
+            try {
+                return Instant.parse((String) value).toEpochMilli();
+            } catch (DateTimeParseException ex) {
+                return NO_TIME;
+            }
+        }
+        return NO_TIME;
+    }
+
+}
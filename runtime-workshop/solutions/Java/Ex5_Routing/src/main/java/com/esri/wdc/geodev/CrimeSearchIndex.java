@@ -0,0 +1,141 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Autocompletes the block addresses and offenses of the indexed crime layers.
+ * Each distinct value is a suggestion, found by the prefix of any of its
+ * words in a {@link PrefixIndex}.
+ */
+public class CrimeSearchIndex {
+
+    private final Suggestion[] suggestions;
+    private final PrefixIndex index;
+
+    private CrimeSearchIndex(Suggestion[] suggestions, PrefixIndex index) {
+        this.suggestions = suggestions;
+        this.index = index;
+    }
+
+    /**
+     * Indexes the distinct block addresses and offenses of some layers.
+     *
+     * @param layerIndexes the layers' indexes.
+     * @return the search index.
+     */
+    public static CrimeSearchIndex build(Collection<LayerIndex> layerIndexes) {
+        Set<String> offenses = new TreeSet<>();
+        Set<String> blocks = new TreeSet<>();
+        for (LayerIndex layerIndex : layerIndexes) {
+            addValues(layerIndex.getStore().getOffense(), offenses);
+            addValues(layerIndex.getStore().getBlock(), blocks);
+        }
+        List<Suggestion> suggestions = new ArrayList<>();
+        PrefixIndex.Builder builder = new PrefixIndex.Builder();
+        for (String offense : offenses) {
+            builder.add(offense, suggestions.size());
+            suggestions.add(new Suggestion(CrimeFeatureStore.OFFENSE_FIELD, offense));
+        }
+        for (String block : blocks) {
+            builder.add(block, suggestions.size());
+            suggestions.add(new Suggestion(CrimeFeatureStore.BLOCK_FIELD, block));
+        }
+        return new CrimeSearchIndex(suggestions.toArray(new Suggestion[0]), builder.build());
+    }
+
+    private static void addValues(DictionaryColumn column, Set<String> values) {
+        for (int code = 0; code < column.cardinality(); code++) {
+            values.add(column.value(code));
+        }
+    }
+
+    /**
+     * Returns the offenses and block addresses with a word that starts with
+     * typed text.
+     *
+     * @param text the typed text.
+     * @param maxResults the largest number of suggestions to return.
+     * @return the suggestions.
+     */
+    public List<Suggestion> suggest(String text, int maxResults) {
+        List<Suggestion> result = new ArrayList<>();
+        for (int i : index.search(text, maxResults)) {
+            result.add(suggestions[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Search index: %d suggestions, %d words, %d characters stored",
+            suggestions.length, index.size(), index.storedCharCount());
+    }
+
+    /**
+     * An offense or block address that can be searched for.
+     */
+    public static final class Suggestion {
+
+        private final String fieldName;
+        private final String value;
+
+        Suggestion(String fieldName, String value) {
+            this.fieldName = fieldName;
+            this.value = value;
+        }
+
+        /**
+         * Returns the field that holds the value.
+         *
+         * @return the field name.
+         */
+        public String getFieldName() {
+            return fieldName;
+        }
+
+        /**
+         * Returns the value as stored.
+         *
+         * @return the value.
+         */
+        public String getValue() {
+            return value;
+        }
+
+        /**
+         * Returns the facet filter that passes only crimes with this value.
+         *
+         * @return the filter.
+         */
+        public FacetFilter toFacetFilter() {
+            return FacetFilter.ALL.restrict(fieldName, Collections.singleton(value));
+        }
+
+        @Override
+        public String toString() {
+            return CrimeFeatureStore.OFFENSE_FIELD.equals(fieldName) ? value.trim() + " (offense)" : value.trim();
+        }
+
+    }
+
+}
@@ -0,0 +1,372 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Crime counts per cell of a quadtree grid at every level from one cell down
+ * to a fine grid, so that density can be drawn and estimated at any scale
+ * without touching individual features. The grid covers a square in WGS 84
+ * degrees around the data. Level n has 2^n cells on each side, and each cell
+ * holds the sum of its four children.
+ * <p>
+ * A pyramid is built once from the columnar stores and written to a file. Later
+ * runs memory-map the file instead of scanning the features again.
+ */
+public class DensityPyramid {
+
+    /**
+     * The default number of levels. The finest level has 512 cells on each
+     * side, about 50 meters for the District of Columbia data.
+     */
+    public static final int DEFAULT_LEVEL_COUNT = 10;
+
+    private static final int MAGIC = 0x43445059;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 48;
+
+    // Sample points on each side of a cell when estimating how much of it a circle covers
+    private static final int ESTIMATE_SAMPLES = 4;
+    // Estimates use the finest level at which the circle's diameter spans at most this many cells
+    private static final int ESTIMATE_CELLS_PER_DIAMETER = 16;
+    private static final double METERS_PER_DEGREE_LATITUDE = 111320.0;
+
+    private final long sourceStamp;
+    private final double minX;
+    private final double minY;
+    private final double size;
+    private final IntBuffer[] levels;
+
+    private DensityPyramid(long sourceStamp, double minX, double minY, double size, IntBuffer[] levels) {
+        this.sourceStamp = sourceStamp;
+        this.minX = minX;
+        this.minY = minY;
+        this.size = size;
+        this.levels = levels;
+    }
+
+    /**
+     * Counts the rows of some stores into a new pyramid.
+     *
+     * @param stores the stores.
+     * @param levelCount the number of levels.
+     * @param sourceStamp a value identifying the version of the source data,
+     * checked when the pyramid is opened from a file.
+     * @return the pyramid.
+     */
+    public static DensityPyramid build(Iterable<CrimeFeatureStore> stores, int levelCount, long sourceStamp) {
+        double xMin = Double.POSITIVE_INFINITY;
+        double yMin = Double.POSITIVE_INFINITY;
+        double xMax = Double.NEGATIVE_INFINITY;
+        double yMax = Double.NEGATIVE_INFINITY;
+        for (CrimeFeatureStore store : stores) {
+            for (int row = 0; row < store.size(); row++) {
+                xMin = Math.min(xMin, store.x(row));
+                yMin = Math.min(yMin, store.y(row));
+                xMax = Math.max(xMax, store.x(row));
+                yMax = Math.max(yMax, store.y(row));
+            }
+        }
+        if (xMin > xMax) {
+            xMin = yMin = 0.0;
+            xMax = yMax = 1.0;
+        }
+        // Pad the square so that points on the far edges fall inside the last cell
+        double size = Math.max(Math.max(xMax - xMin, yMax - yMin), 1e-6) * 1.001;
+        double centerX = (xMin + xMax) / 2.0;
+        double centerY = (yMin + yMax) / 2.0;
+
+        int finest = levelCount - 1;
+        int side = 1 << finest;
+        int[][] counts = new int[levelCount][];
+        counts[finest] = new int[side * side];
+        double minX = centerX - size / 2.0;
+        double minY = centerY - size / 2.0;
+        for (CrimeFeatureStore store : stores) {
+            for (int row = 0; row < store.size(); row++) {
+                int column = clamp((store.x(row) - minX) / size * side, side);
+                int cellRow = clamp((store.y(row) - minY) / size * side, side);
+                counts[finest][cellRow * side + column]++;
+            }
+        }
+        for (int level = finest - 1; level >= 0; level--) {
+            int levelSide = 1 << level;
+            int[] child = counts[level + 1];
+            int[] parent = new int[levelSide * levelSide];
+            for (int r = 0; r < levelSide; r++) {
+                for (int c = 0; c < levelSide; c++) {
+                    int childIndex = 2 * r * 2 * levelSide + 2 * c;
+                    parent[r * levelSide + c] = child[childIndex] + child[childIndex + 1]
+                        + child[childIndex + 2 * levelSide] + child[childIndex + 2 * levelSide + 1];
+                }
+            }
+            counts[level] = parent;
+        }
+
+        IntBuffer[] levels = new IntBuffer[levelCount];
+        for (int level = 0; level < levelCount; level++) {
+            levels[level] = IntBuffer.wrap(counts[level]);
+        }
+        return new DensityPyramid(sourceStamp, minX, minY, size, levels);
+    }
+
+    /**
+     * Memory-maps a pyramid written by {@link #write(Path)}.
+     *
+     * @param path the pyramid file.
+     * @param sourceStamp the stamp of the current source data.
+     * @return the pyramid, or null if the file does not exist, is not a
+     * pyramid file, or was built from different source data.
+     * @throws IOException if the file cannot be read.
+     */
+    public static DensityPyramid open(Path path, long sourceStamp) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining() && 0 <= channel.read(header)) {
+                // Read the whole header
+            }
+            header.flip();
+            if (HEADER_BYTES != header.remaining() || MAGIC != header.getInt() || VERSION != header.getInt()) {
+                return null;
+            }
+            int levelCount = header.getInt();
+            header.getInt();
+            if (sourceStamp != header.getLong() || levelCount < 1 || levelCount > 15
+                || channel.size() != HEADER_BYTES + 4L * cellCount(levelCount)) {
+                return null;
+            }
+            double minX = header.getDouble();
+            double minY = header.getDouble();
+            double size = header.getDouble();
+
+            // The mapping stays valid after the channel is closed
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            IntBuffer[] levels = new IntBuffer[levelCount];
+            int offset = HEADER_BYTES;
+            for (int level = 0; level < levelCount; level++) {
+                int levelBytes = 4 << (2 * level);
+                mapped.limit(offset + levelBytes).position(offset);
+                levels[level] = mapped.slice().asIntBuffer();
+                offset += levelBytes;
+            }
+            return new DensityPyramid(sourceStamp, minX, minY, size, levels);
+        }
+    }
+
+    /**
+     * Writes the pyramid to a file. The file is written under a temporary name
+     * and then moved into place, so readers never see a partial file.
+     *
+     * @param path the pyramid file.
+     * @throws IOException if the file cannot be written.
+     */
+    public void write(Path path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + 4 * cellCount(levels.length));
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(levels.length).putInt(0).putLong(sourceStamp)
+            .putDouble(minX).putDouble(minY).putDouble(size);
+        for (IntBuffer level : levels) {
+            for (int i = 0; i < level.limit(); i++) {
+                buffer.putInt(level.get(i));
+            }
+        }
+        buffer.flip();
+        Path temp = Paths.get(path.toString() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the number of levels.
+     *
+     * @return the number of levels.
+     */
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    /**
+     * Returns the number of cells on each side of a level.
+     *
+     * @param level the level.
+     * @return the number of cells on each side.
+     */
+    public int getCellsPerSide(int level) {
+        return 1 << level;
+    }
+
+    /**
+     * Returns the width and height of a level's cells.
+     *
+     * @param level the level.
+     * @return the cell size in degrees.
+     */
+    public double getCellSize(int level) {
+        return size / (1 << level);
+    }
+
+    /**
+     * Returns the longitude of a cell's west edge.
+     *
+     * @param level the level.
+     * @param column the cell column.
+     * @return the longitude in degrees.
+     */
+    public double getCellMinX(int level, int column) {
+        return minX + column * getCellSize(level);
+    }
+
+    /**
+     * Returns the latitude of a cell's south edge.
+     *
+     * @param level the level.
+     * @param row the cell row.
+     * @return the latitude in degrees.
+     */
+    public double getCellMinY(int level, int row) {
+        return minY + row * getCellSize(level);
+    }
+
+    /**
+     * Returns the number of crimes in a cell.
+     *
+     * @param level the level.
+     * @param column the cell column, counted from the west.
+     * @param row the cell row, counted from the south.
+     * @return the number of crimes in the cell.
+     */
+    public int getCount(int level, int column, int row) {
+        return levels[level].get(row * (1 << level) + column);
+    }
+
+    /**
+     * Returns the column that contains a longitude, clamped to the grid.
+     *
+     * @param level the level.
+     * @param x the longitude in degrees.
+     * @return the column.
+     */
+    public int getColumn(int level, double x) {
+        int side = 1 << level;
+        return clamp(Math.floor((x - minX) / size * side), side);
+    }
+
+    /**
+     * Returns the row that contains a latitude, clamped to the grid.
+     *
+     * @param level the level.
+     * @param y the latitude in degrees.
+     * @return the row.
+     */
+    public int getRow(int level, double y) {
+        int side = 1 << level;
+        return clamp(Math.floor((y - minY) / size * side), side);
+    }
+
+    /**
+     * Returns the finest level at which a span covers at most a number of
+     * cells.
+     *
+     * @param spanDegrees the span in degrees.
+     * @param maxCells the maximum number of cells the span may cover.
+     * @return the level.
+     */
+    public int getLevelFor(double spanDegrees, int maxCells) {
+        int level = 0;
+        while (level + 1 < levels.length && spanDegrees / getCellSize(level + 1) <= maxCells) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Estimates the number of crimes within a distance of a point. The circle
+     * is evaluated against a bounded number of cells at a level chosen from its
+     * size, so the cost does not depend on the number of crimes or the radius.
+     * Each cell contributes its count times the fraction of sample points in
+     * the cell that fall inside the circle.
+     *
+     * @param x the center longitude in degrees.
+     * @param y the center latitude in degrees.
+     * @param radiusMeters the radius in meters.
+     * @return the estimated number of crimes.
+     */
+    public double estimateCount(double x, double y, double radiusMeters) {
+        double radiusY = radiusMeters / METERS_PER_DEGREE_LATITUDE;
+        double radiusX = radiusY / Math.max(Math.cos(Math.toRadians(y)), 1e-6);
+        int level = getLevelFor(2.0 * Math.max(radiusX, radiusY), ESTIMATE_CELLS_PER_DIAMETER);
+        double cellSize = getCellSize(level);
+        double estimate = 0.0;
+        for (int row = getRow(level, y - radiusY); row <= getRow(level, y + radiusY); row++) {
+            for (int column = getColumn(level, x - radiusX); column <= getColumn(level, x + radiusX); column++) {
+                int count = getCount(level, column, row);
+                if (0 == count) {
+                    continue;
+                }
+                int inside = 0;
+                for (int sy = 0; sy < ESTIMATE_SAMPLES; sy++) {
+                    double dy = (getCellMinY(level, row) + (sy + 0.5) * cellSize / ESTIMATE_SAMPLES - y) / radiusY;
+                    for (int sx = 0; sx < ESTIMATE_SAMPLES; sx++) {
+                        double dx = (getCellMinX(level, column) + (sx + 0.5) * cellSize / ESTIMATE_SAMPLES - x) / radiusX;
+                        if (dx * dx + dy * dy <= 1.0) {
+                            inside++;
+                        }
+                    }
+                }
+                estimate += count * (double) inside / (ESTIMATE_SAMPLES * ESTIMATE_SAMPLES);
+            }
+        }
+        return estimate;
+    }
+
+    /**
+     * Returns a stamp that changes when a source file changes, for use with
+     * {@link #build} and {@link #open}.
+     *
+     * @param source the source file.
+     * @return the stamp.
+     * @throws IOException if the file's attributes cannot be read.
+     */
+    public static long stampOf(Path source) throws IOException {
+        return 31L * Files.getLastModifiedTime(source).toMillis() + Files.size(source);
+    }
+
+    private static int cellCount(int levelCount) {
+        // 1 + 4 + 16 + ... + 4^(levelCount - 1)
+        return (int) (((1L << (2 * levelCount)) - 1) / 3);
+    }
+
+    private static int clamp(double cell, int side) {
+        return Math.max(0, Math.min(side - 1, (int) cell));
+    }
+
+}
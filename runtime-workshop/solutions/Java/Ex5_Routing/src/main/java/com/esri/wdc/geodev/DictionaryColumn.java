@@ -0,0 +1,151 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A dictionary-encoded string column. Each row holds a short code that indexes
+ * into a table of distinct values, so scanning the column never touches a
+ * String. Null values are stored as {@link #NULL_CODE}.
+ */
+public class DictionaryColumn {
+
+    /**
+     * The code stored for rows whose value is null.
+     */
+    public static final short NULL_CODE = -1;
+
+    private final String name;
+    private final short[] codes;
+    private final String[] values;
+
+    private DictionaryColumn(String name, short[] codes, String[] values) {
+        this.name = name;
+        this.codes = codes;
+        this.values = values;
+    }
+
+    /**
+     * Returns the name of the field this column was read from.
+     *
+     * @return the field name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the code of a row.
+     *
+     * @param row the row.
+     * @return the row's code, or {@link #NULL_CODE}.
+     */
+    public short code(int row) {
+        return codes[row];
+    }
+
+    /**
+     * Returns the number of distinct non-null values.
+     *
+     * @return the number of distinct non-null values.
+     */
+    public int cardinality() {
+        return values.length;
+    }
+
+    /**
+     * Returns the value that a code stands for.
+     *
+     * @param code a code between 0 and cardinality() - 1, or NULL_CODE.
+     * @return the value, or null for NULL_CODE.
+     */
+    public String value(int code) {
+        return NULL_CODE == code ? null : values[code];
+    }
+
+    /**
+     * Returns the value of a row.
+     *
+     * @param row the row.
+     * @return the row's value, which may be null.
+     */
+    public String valueAt(int row) {
+        return value(codes[row]);
+    }
+
+    /**
+     * Looks up the code of a value.
+     *
+     * @param value the value.
+     * @return the code, or NULL_CODE if the column does not contain the value.
+     */
+    public short codeOf(String value) {
+        for (short code = 0; code < values.length; code++) {
+            if (values[code].equals(value)) {
+                return code;
+            }
+        }
+        return NULL_CODE;
+    }
+
+    /**
+     * Builds a column one row at a time.
+     */
+    static class Builder {
+
+        private final String name;
+        private final Map<String, Short> dictionary = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+        private short[] codes = new short[1024];
+        private int size = 0;
+
+        Builder(String name) {
+            this.name = name;
+        }
+
+        void add(String value) {
+            short code = NULL_CODE;
+            if (null != value) {
+                Short existing = dictionary.get(value);
+                if (null == existing) {
+                    if (Short.MAX_VALUE == values.size()) {
+                        throw new IllegalStateException("Too many distinct values in " + name);
+                    }
+                    code = (short) values.size();
+                    dictionary.put(value, code);
+                    values.add(value);
+                } else {
+                    code = existing;
+                }
+            }
+            if (size == codes.length) {
+                codes = Arrays.copyOf(codes, 2 * size);
+            }
+            codes[size++] = code;
+        }
+
+        DictionaryColumn build() {
+            return new DictionaryColumn(name, Arrays.copyOf(codes, size), values.toArray(new String[0]));
+        }
+
+    }
+
+}
@@ -0,0 +1,89 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.IntPredicate;
+
+/**
+ * The sorted geodesic distances from one center to every crime in a time
+ * window that passes a facet filter. Building the profile measures each crime once; after that the
+ * number of crimes within any radius is a binary search, so a radius that
+ * changes every frame can be counted without touching the runtime.
+ */
+public class DistanceProfile {
+
+    private final double[] sortedDistances;
+
+    private DistanceProfile(double[] sortedDistances) {
+        this.sortedDistances = sortedDistances;
+    }
+
+    /**
+     * Measures the distance from a center to every crime in a time window
+     * that passes a facet filter.
+     *
+     * @param layerIndexes the indexes of the layers to measure.
+     * @param lon the center longitude in degrees.
+     * @param lat the center latitude in degrees.
+     * @param window the time window.
+     * @param facets the facet filter.
+     * @return the profile.
+     */
+    public static DistanceProfile build(Collection<LayerIndex> layerIndexes, double lon, double lat,
+        TimeWindow window, FacetFilter facets) {
+        int size = 0;
+        for (LayerIndex layerIndex : layerIndexes) {
+            size += layerIndex.getTemporalIndex().count(window);
+        }
+        double[] distances = new double[size];
+        int i = 0;
+        for (LayerIndex layerIndex : layerIndexes) {
+            CrimeFeatureStore store = layerIndex.getStore();
+            IntPredicate rowFilter = layerIndex.rowFilter(window, facets);
+            for (int row : layerIndex.getTemporalIndex().rows(window)) {
+                if (rowFilter.test(row)) {
+                    distances[i++] = Geodesics.distanceMeters(lon, lat, store.x(row), store.y(row));
+                }
+            }
+        }
+        distances = Arrays.copyOf(distances, i);
+        Arrays.sort(distances);
+        return new DistanceProfile(distances);
+    }
+
+    /**
+     * Returns the number of crimes within a distance of the center.
+     *
+     * @param radiusMeters the distance in meters.
+     * @return the number of crimes at most that far away.
+     */
+    public int countWithin(double radiusMeters) {
+        int low = 0;
+        int high = sortedDistances.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sortedDistances[middle] <= radiusMeters) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+}
@@ -0,0 +1,90 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The attribute values a crime may have to be selected, by field. A crime
+ * passes if, for every restricted field, its value is one of the allowed
+ * values; fields that are not restricted allow any value, including null.
+ */
+public final class FacetFilter {
+
+    /**
+     * The filter that restricts no field.
+     */
+    public static final FacetFilter ALL = new FacetFilter(Collections.emptyMap());
+
+    private final Map<String, Set<String>> allowedValues;
+
+    private FacetFilter(Map<String, Set<String>> allowedValues) {
+        this.allowedValues = allowedValues;
+    }
+
+    /**
+     * Returns a filter that also restricts a field to some values.
+     *
+     * @param fieldName the field.
+     * @param values the values to allow, which replace any values allowed
+     * for the field before.
+     * @return the new filter.
+     */
+    public FacetFilter restrict(String fieldName, Collection<String> values) {
+        Map<String, Set<String>> restricted = new TreeMap<>(allowedValues);
+        restricted.put(fieldName, Collections.unmodifiableSet(new TreeSet<>(values)));
+        return new FacetFilter(Collections.unmodifiableMap(restricted));
+    }
+
+    /**
+     * Returns whether this filter restricts no field.
+     *
+     * @return true if the filter does not filter anything.
+     */
+    public boolean isAll() {
+        return allowedValues.isEmpty();
+    }
+
+    /**
+     * Returns the restricted fields and their allowed values.
+     *
+     * @return the allowed values of each restricted field.
+     */
+    public Map<String, Set<String>> getAllowedValues() {
+        return allowedValues;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof FacetFilter && allowedValues.equals(((FacetFilter) obj).allowedValues);
+    }
+
+    @Override
+    public int hashCode() {
+        return allowedValues.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return isAll() ? "All values" : allowedValues.toString();
+    }
+
+}
@@ -0,0 +1,275 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import com.esri.arcgisruntime.geometry.GeodesicEllipseParameters;
+import com.esri.arcgisruntime.geometry.GeometryEngine;
+import com.esri.arcgisruntime.geometry.GeometryType;
+import com.esri.arcgisruntime.geometry.ImmutablePart;
+import com.esri.arcgisruntime.geometry.LinearUnit;
+import com.esri.arcgisruntime.geometry.LinearUnitId;
+import com.esri.arcgisruntime.geometry.Point;
+import com.esri.arcgisruntime.geometry.PointCollection;
+import com.esri.arcgisruntime.geometry.Polygon;
+import com.esri.arcgisruntime.geometry.SpatialReference;
+import com.esri.arcgisruntime.geometry.SpatialReferences;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates geodesic circle buffers from cached templates. A template is an
+ * exact geodesic circle generated once at the center of a latitude band and
+ * stored as vertex offsets. A buffer anywhere in the band is the template
+ * translated to the center, with longitude offsets rescaled for the center's
+ * latitude. When the estimated error of that translation exceeds the
+ * tolerance, the buffer is generated exactly instead.
+ */
+public class GeodesicBufferCache {
+
+    private static final SpatialReference WGS84 = SpatialReferences.getWgs84();
+
+    /**
+     * Templates are not used poleward of this latitude, where longitude
+     * scaling breaks down.
+     */
+    private static final double MAX_TEMPLATE_LATITUDE = 80.0;
+
+    // WGS 84 semi-major axis in meters and first eccentricity squared
+    private static final double SEMI_MAJOR_AXIS = 6378137.0;
+    private static final double ECCENTRICITY_SQUARED = 0.00669437999014;
+
+    private final double bandDegrees;
+    private final double maxErrorMeters;
+    private final Map<Key, Template> templates;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong exact = new AtomicLong();
+
+    /**
+     * Creates a cache with quarter-degree latitude bands, a 0.1 meter error
+     * tolerance and room for 64 templates.
+     */
+    public GeodesicBufferCache() {
+        this(0.25, 0.1, 64);
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param bandDegrees the height of a latitude band in degrees.
+     * @param maxErrorMeters the largest estimated error, in meters, at which a
+     * template may be used.
+     * @param maxTemplates the number of templates to keep; the least recently
+     * used template is evicted first.
+     */
+    public GeodesicBufferCache(double bandDegrees, double maxErrorMeters, int maxTemplates) {
+        this.bandDegrees = bandDegrees;
+        this.maxErrorMeters = maxErrorMeters;
+        this.templates = new LinkedHashMap<Key, Template>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Template> eldest) {
+                return size() > maxTemplates;
+            }
+        };
+    }
+
+    /**
+     * Returns a geodesic circle around a point.
+     *
+     * @param center the center, in any spatial reference.
+     * @param radius the radius.
+     * @param unitId the unit of the radius.
+     * @param maxPointCount the maximum number of vertices.
+     * @param maxSegmentLength the maximum segment length, in the radius unit.
+     * @return the circle, in WGS 84 if it came from a template, or in the
+     * center's spatial reference if it was generated exactly.
+     */
+    public Polygon buffer(Point center, double radius, LinearUnitId unitId, int maxPointCount,
+        double maxSegmentLength) {
+        Point wgs84Center = WGS84.getWkid() == center.getSpatialReference().getWkid()
+            ? center : (Point) GeometryEngine.project(center, WGS84);
+        double latitude = wgs84Center.getY();
+        double radiusMeters = new LinearUnit(unitId).toMeters(radius);
+        int band = (int) Math.floor(latitude / bandDegrees);
+        double bandLatitude = (band + 0.5) * bandDegrees;
+        if (MAX_TEMPLATE_LATITUDE < Math.abs(latitude)
+            || maxErrorMeters < estimateError(radiusMeters, latitude, bandLatitude)) {
+            exact.incrementAndGet();
+            return exactBuffer(center, radius, unitId, maxPointCount, maxSegmentLength);
+        }
+
+        Key key = new Key(radius, unitId, band, maxPointCount, maxSegmentLength);
+        Template template;
+        synchronized (templates) {
+            template = templates.get(key);
+        }
+        if (null == template) {
+            misses.incrementAndGet();
+            template = new Template(exactBuffer(new Point(0.0, bandLatitude, WGS84),
+                radius, unitId, maxPointCount, maxSegmentLength), bandLatitude);
+            synchronized (templates) {
+                templates.put(key, template);
+            }
+        } else {
+            hits.incrementAndGet();
+        }
+        return template.translate(wgs84Center.getX(), latitude);
+    }
+
+    /**
+     * Rounds a radius to two significant digits, and to at least one whole
+     * unit. Templates are keyed by radius, so a radius that varies
+     * continuously, such as one sized by dragging, should be snapped before
+     * buffering; otherwise every distinct radius adds a template and evicts
+     * the ones in use.
+     *
+     * @param radius the radius.
+     * @return the snapped radius.
+     */
+    public static double snapRadius(double radius) {
+        if (10.0 > radius) {
+            return Math.max(1.0, Math.round(radius));
+        }
+        double step = Math.pow(10.0, Math.floor(Math.log10(radius)) - 1.0);
+        return Math.round(radius / step) * step;
+    }
+
+    /**
+     * Returns the number of buffers served from an existing template.
+     *
+     * @return the number of template hits.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of templates generated.
+     *
+     * @return the number of template misses.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of buffers generated exactly because a template would
+     * have exceeded the error tolerance.
+     *
+     * @return the number of exact buffers.
+     */
+    public long getExactCount() {
+        return exact.get();
+    }
+
+    /**
+     * Estimates the largest vertex displacement, in meters, caused by using a
+     * template made at one latitude for a circle at another. The template's
+     * latitude offsets ignore the change in the meridian's radius of curvature
+     * between the two latitudes, and its longitude offsets are rescaled by the
+     * parallel at the center rather than at each vertex.
+     */
+    private static double estimateError(double radiusMeters, double latitude, double bandLatitude) {
+        double phi = Math.toRadians(latitude);
+        double delta = Math.abs(Math.toRadians(latitude - bandLatitude));
+        double cosPhi = Math.cos(phi);
+        double curvatureError = 1.5 * ECCENTRICITY_SQUARED * Math.abs(Math.sin(2.0 * phi)) * delta;
+        double parallelError = (radiusMeters / SEMI_MAJOR_AXIS) * delta / (cosPhi * cosPhi);
+        return radiusMeters * (curvatureError + parallelError);
+    }
+
+    private static Polygon exactBuffer(Point center, double radius, LinearUnitId unitId, int maxPointCount,
+        double maxSegmentLength) {
+        GeodesicEllipseParameters params = new GeodesicEllipseParameters();
+        params.setCenter(center);
+        params.setGeometryType(GeometryType.POLYGON);
+        params.setLinearUnit(new LinearUnit(unitId));
+        params.setMaxPointCount(maxPointCount);
+        params.setMaxSegmentLength(maxSegmentLength);
+        params.setSemiAxis1Length(radius);
+        return (Polygon) GeometryEngine.ellipseGeodesic(params);
+    }
+
+    /**
+     * The vertex offsets of a circle generated at longitude 0 and a band's
+     * center latitude. Longitude offsets are stored multiplied by the cosine of
+     * that latitude so they can be rescaled to any other latitude.
+     */
+    private static class Template {
+
+        private final double[] scaledLongitudeOffsets;
+        private final double[] latitudeOffsets;
+
+        Template(Polygon circle, double bandLatitude) {
+            ImmutablePart part = circle.getParts().get(0);
+            int count = part.getPointCount();
+            double cosBand = Math.cos(Math.toRadians(bandLatitude));
+            scaledLongitudeOffsets = new double[count];
+            latitudeOffsets = new double[count];
+            for (int i = 0; i < count; i++) {
+                Point vertex = part.getPoint(i);
+                scaledLongitudeOffsets[i] = vertex.getX() * cosBand;
+                latitudeOffsets[i] = vertex.getY() - bandLatitude;
+            }
+        }
+
+        Polygon translate(double longitude, double latitude) {
+            double secant = 1.0 / Math.cos(Math.toRadians(latitude));
+            PointCollection points = new PointCollection(WGS84);
+            for (int i = 0; i < latitudeOffsets.length; i++) {
+                points.add(longitude + scaledLongitudeOffsets[i] * secant, latitude + latitudeOffsets[i]);
+            }
+            return new Polygon(points);
+        }
+
+    }
+
+    private static class Key {
+
+        private final double radius;
+        private final LinearUnitId unitId;
+        private final int band;
+        private final int maxPointCount;
+        private final double maxSegmentLength;
+
+        Key(double radius, LinearUnitId unitId, int band, int maxPointCount, double maxSegmentLength) {
+            this.radius = radius;
+            this.unitId = unitId;
+            this.band = band;
+            this.maxPointCount = maxPointCount;
+            this.maxSegmentLength = maxSegmentLength;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return radius == other.radius && unitId == other.unitId && band == other.band
+                && maxPointCount == other.maxPointCount && maxSegmentLength == other.maxSegmentLength;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(radius, unitId, band, maxPointCount, maxSegmentLength);
+        }
+
+    }
+
+}
@@ -0,0 +1,214 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+/**
+ * Geodesic distances on the WGS 84 ellipsoid, computed from plain longitude
+ * and latitude values so that many points can be measured without creating
+ * runtime geometries.
+ */
+public final class Geodesics {
+
+    private static final double SEMI_MAJOR_AXIS = 6378137.0;
+    private static final double FLATTENING = 1.0 / 298.257223563;
+    private static final double SEMI_MINOR_AXIS = SEMI_MAJOR_AXIS * (1.0 - FLATTENING);
+    private static final int MAX_ITERATIONS = 100;
+
+    /**
+     * The mean radius of the WGS 84 ellipsoid, in meters.
+     */
+    public static final double MEAN_RADIUS = (2.0 * SEMI_MAJOR_AXIS + SEMI_MINOR_AXIS) / 3.0;
+
+    private Geodesics() {
+    }
+
+    /**
+     * Returns the geodesic distance between two points with Vincenty's inverse
+     * formula, which is accurate to well under a millimeter. For nearly
+     * antipodal points, where the iteration does not converge, the distance on
+     * a sphere of the mean radius is returned instead.
+     *
+     * @param lon1 the longitude of the first point, in degrees.
+     * @param lat1 the latitude of the first point, in degrees.
+     * @param lon2 the longitude of the second point, in degrees.
+     * @param lat2 the latitude of the second point, in degrees.
+     * @return the distance in meters.
+     */
+    public static double distanceMeters(double lon1, double lat1, double lon2, double lat2) {
+        double l = Math.toRadians(lon2 - lon1);
+        double u1 = Math.atan((1.0 - FLATTENING) * Math.tan(Math.toRadians(lat1)));
+        double u2 = Math.atan((1.0 - FLATTENING) * Math.tan(Math.toRadians(lat2)));
+        double sinU1 = Math.sin(u1);
+        double cosU1 = Math.cos(u1);
+        double sinU2 = Math.sin(u2);
+        double cosU2 = Math.cos(u2);
+
+        double lambda = l;
+        for (int i = 0; i < MAX_ITERATIONS; i++) {
+            double sinLambda = Math.sin(lambda);
+            double cosLambda = Math.cos(lambda);
+            double sinSigma = Math.sqrt(Math.pow(cosU2 * sinLambda, 2.0)
+                + Math.pow(cosU1 * sinU2 - sinU1 * cosU2 * cosLambda, 2.0));
+            if (0.0 == sinSigma) {
+                // Coincident points
+                return 0.0;
+            }
+            double cosSigma = sinU1 * sinU2 + cosU1 * cosU2 * cosLambda;
+            double sigma = Math.atan2(sinSigma, cosSigma);
+            double sinAlpha = cosU1 * cosU2 * sinLambda / sinSigma;
+            double cosSqAlpha = 1.0 - sinAlpha * sinAlpha;
+            // On the equator cosSqAlpha is zero and the term vanishes
+            double cos2SigmaM = 0.0 == cosSqAlpha ? 0.0 : cosSigma - 2.0 * sinU1 * sinU2 / cosSqAlpha;
+            double c = FLATTENING / 16.0 * cosSqAlpha * (4.0 + FLATTENING * (4.0 - 3.0 * cosSqAlpha));
+            double previousLambda = lambda;
+            lambda = l + (1.0 - c) * FLATTENING * sinAlpha
+                * (sigma + c * sinSigma * (cos2SigmaM + c * cosSigma * (-1.0 + 2.0 * cos2SigmaM * cos2SigmaM)));
+            if (Math.abs(lambda - previousLambda) < 1e-12) {
+                double uSq = cosSqAlpha * (SEMI_MAJOR_AXIS * SEMI_MAJOR_AXIS - SEMI_MINOR_AXIS * SEMI_MINOR_AXIS)
+                    / (SEMI_MINOR_AXIS * SEMI_MINOR_AXIS);
+                double a = 1.0 + uSq / 16384.0 * (4096.0 + uSq * (-768.0 + uSq * (320.0 - 175.0 * uSq)));
+                double b = uSq / 1024.0 * (256.0 + uSq * (-128.0 + uSq * (74.0 - 47.0 * uSq)));
+                double deltaSigma = b * sinSigma * (cos2SigmaM + b / 4.0 * (cosSigma * (-1.0 + 2.0 * cos2SigmaM * cos2SigmaM)
+                    - b / 6.0 * cos2SigmaM * (-3.0 + 4.0 * sinSigma * sinSigma) * (-3.0 + 4.0 * cos2SigmaM * cos2SigmaM)));
+                return SEMI_MINOR_AXIS * a * (sigma - deltaSigma);
+            }
+        }
+        return sphericalDistanceMeters(lon1, lat1, lon2, lat2);
+    }
+
+    /**
+     * Returns the point reached by travelling a distance along a geodesic from
+     * a start point, with Vincenty's direct formula.
+     *
+     * @param lon the longitude of the start point, in degrees.
+     * @param lat the latitude of the start point, in degrees.
+     * @param azimuth the initial azimuth, in degrees clockwise from north.
+     * @param distanceMeters the distance in meters.
+     * @return the longitude and latitude of the end point, in degrees.
+     */
+    public static double[] destination(double lon, double lat, double azimuth, double distanceMeters) {
+        double alpha1 = Math.toRadians(azimuth);
+        double sinAlpha1 = Math.sin(alpha1);
+        double cosAlpha1 = Math.cos(alpha1);
+        double tanU1 = (1.0 - FLATTENING) * Math.tan(Math.toRadians(lat));
+        double cosU1 = 1.0 / Math.sqrt(1.0 + tanU1 * tanU1);
+        double sinU1 = tanU1 * cosU1;
+        double sigma1 = Math.atan2(tanU1, cosAlpha1);
+        double sinAlpha = cosU1 * sinAlpha1;
+        double cosSqAlpha = 1.0 - sinAlpha * sinAlpha;
+        double uSq = cosSqAlpha * (SEMI_MAJOR_AXIS * SEMI_MAJOR_AXIS - SEMI_MINOR_AXIS * SEMI_MINOR_AXIS)
+            / (SEMI_MINOR_AXIS * SEMI_MINOR_AXIS);
+        double a = 1.0 + uSq / 16384.0 * (4096.0 + uSq * (-768.0 + uSq * (320.0 - 175.0 * uSq)));
+        double b = uSq / 1024.0 * (256.0 + uSq * (-128.0 + uSq * (74.0 - 47.0 * uSq)));
+
+        double sigma = distanceMeters / (SEMI_MINOR_AXIS * a);
+        double cos2SigmaM;
+        double sinSigma;
+        double cosSigma;
+        int iterations = 0;
+        while (true) {
+            cos2SigmaM = Math.cos(2.0 * sigma1 + sigma);
+            sinSigma = Math.sin(sigma);
+            cosSigma = Math.cos(sigma);
+            double deltaSigma = b * sinSigma * (cos2SigmaM + b / 4.0 * (cosSigma * (-1.0 + 2.0 * cos2SigmaM * cos2SigmaM)
+                - b / 6.0 * cos2SigmaM * (-3.0 + 4.0 * sinSigma * sinSigma) * (-3.0 + 4.0 * cos2SigmaM * cos2SigmaM)));
+            double previousSigma = sigma;
+            sigma = distanceMeters / (SEMI_MINOR_AXIS * a) + deltaSigma;
+            if (Math.abs(sigma - previousSigma) < 1e-12 || ++iterations >= MAX_ITERATIONS) {
+                break;
+            }
+        }
+        cos2SigmaM = Math.cos(2.0 * sigma1 + sigma);
+        sinSigma = Math.sin(sigma);
+        cosSigma = Math.cos(sigma);
+
+        double tmp = sinU1 * sinSigma - cosU1 * cosSigma * cosAlpha1;
+        double lat2 = Math.atan2(sinU1 * cosSigma + cosU1 * sinSigma * cosAlpha1,
+            (1.0 - FLATTENING) * Math.sqrt(sinAlpha * sinAlpha + tmp * tmp));
+        double lambda = Math.atan2(sinSigma * sinAlpha1, cosU1 * cosSigma - sinU1 * sinSigma * cosAlpha1);
+        double c = FLATTENING / 16.0 * cosSqAlpha * (4.0 + FLATTENING * (4.0 - 3.0 * cosSqAlpha));
+        double l = lambda - (1.0 - c) * FLATTENING * sinAlpha
+            * (sigma + c * sinSigma * (cos2SigmaM + c * cosSigma * (-1.0 + 2.0 * cos2SigmaM * cos2SigmaM)));
+        return new double[]{lon + Math.toDegrees(l), Math.toDegrees(lat2)};
+    }
+
+    /**
+     * Returns a geodesic circle as a ring of vertices at equal azimuth steps,
+     * each placed with Vincenty's direct formula.
+     *
+     * @param lon the longitude of the center, in degrees.
+     * @param lat the latitude of the center, in degrees.
+     * @param radiusMeters the radius in meters.
+     * @param vertexCount the number of vertices.
+     * @return the ring as interleaved longitude and latitude, in degrees.
+     */
+    public static double[] circle(double lon, double lat, double radiusMeters, int vertexCount) {
+        double[] ring = new double[2 * vertexCount];
+        for (int i = 0; i < vertexCount; i++) {
+            double[] point = destination(lon, lat, 360.0 * i / vertexCount, radiusMeters);
+            ring[2 * i] = point[0];
+            ring[2 * i + 1] = point[1];
+        }
+        return ring;
+    }
+
+    /**
+     * Returns a lower bound on the geodesic distance from a point to any point
+     * of a longitude and latitude box that does not cross the antimeridian.
+     * Any path into the box must cover the difference in latitude, and if the
+     * point is east or west of the box, must cross the great circle of the
+     * nearer side. The bound is computed on the mean sphere and reduced by the
+     * sphere's largest relative error.
+     *
+     * @param lon the longitude of the point, in degrees.
+     * @param lat the latitude of the point, in degrees.
+     * @param minLon the west edge of the box, in degrees.
+     * @param minLat the south edge of the box, in degrees.
+     * @param maxLon the east edge of the box, in degrees.
+     * @param maxLat the north edge of the box, in degrees.
+     * @return the lower bound in meters, which is zero for a point in the box.
+     */
+    public static double minDistanceToBoxMeters(double lon, double lat,
+        double minLon, double minLat, double maxLon, double maxLat) {
+        double dLat = lat < minLat ? minLat - lat : lat > maxLat ? lat - maxLat : 0.0;
+        double dLon = lon < minLon ? minLon - lon : lon > maxLon ? lon - maxLon : 0.0;
+        double angle = Math.toRadians(dLat);
+        if (0.0 < dLon && dLon < 90.0) {
+            // The cross-track angle to the meridian through the nearer side
+            angle = Math.max(angle, Math.asin(Math.cos(Math.toRadians(lat)) * Math.sin(Math.toRadians(dLon))));
+        }
+        return angle * MEAN_RADIUS * (1.0 - RadiusSearch.SPHERE_ERROR);
+    }
+
+    /**
+     * Returns the great circle distance between two points on a sphere of the
+     * WGS 84 mean radius, using the haversine formula.
+     *
+     * @param lon1 the longitude of the first point, in degrees.
+     * @param lat1 the latitude of the first point, in degrees.
+     * @param lon2 the longitude of the second point, in degrees.
+     * @param lat2 the latitude of the second point, in degrees.
+     * @return the distance in meters.
+     */
+    public static double sphericalDistanceMeters(double lon1, double lat1, double lon2, double lat2) {
+        double sinHalfDLat = Math.sin(Math.toRadians(lat2 - lat1) / 2.0);
+        double sinHalfDLon = Math.sin(Math.toRadians(lon2 - lon1) / 2.0);
+        double h = sinHalfDLat * sinHalfDLat
+            + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinHalfDLon * sinHalfDLon;
+        return 2.0 * MEAN_RADIUS * Math.asin(Math.min(1.0, Math.sqrt(h)));
+    }
+
+}
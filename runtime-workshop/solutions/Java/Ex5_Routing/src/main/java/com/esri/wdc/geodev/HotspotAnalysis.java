@@ -0,0 +1,252 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import com.esri.arcgisruntime.geometry.Envelope;
+import java.util.Collection;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+/**
+ * A Getis-Ord Gi* hotspot analysis of crime counts on a grid. The crimes in an
+ * extent that were reported in a time window and pass a facet filter are
+ * binned into square cells, and each cell's neighborhood is the square of
+ * cells around it, with equal weights. Neighborhood sums come from a
+ * summed-area table in four lookups each, whatever the neighborhood's size.
+ * The table's rows are summed in parallel and then its columns, and the
+ * z-scores are computed in parallel by row.
+ */
+public class HotspotAnalysis {
+
+    /**
+     * The z-scores above which a cell is a hotspot, or below whose negation it
+     * is a cold spot, at 90, 95 and 99 percent confidence.
+     */
+    public static final double[] CONFIDENCE_Z_SCORES = {1.645, 1.960, 2.576};
+
+    private final double minX;
+    private final double minY;
+    private final double cellSize;
+    private final int columns;
+    private final int rows;
+    private final int[] counts;
+    private final double[] zScores;
+    private final int total;
+
+    private HotspotAnalysis(double minX, double minY, double cellSize, int columns, int rows, int[] counts,
+        double[] zScores, int total) {
+        this.minX = minX;
+        this.minY = minY;
+        this.cellSize = cellSize;
+        this.columns = columns;
+        this.rows = rows;
+        this.counts = counts;
+        this.zScores = zScores;
+        this.total = total;
+    }
+
+    /**
+     * Runs the analysis on the crimes of the indexed layers in an extent.
+     *
+     * @param layerIndexes the indexed layers.
+     * @param extent the extent, in WGS 84.
+     * @param window the time window.
+     * @param facets the facet filter.
+     * @param cellsAcross the number of cells across the extent.
+     * @param radiusCells how many cells the neighborhood reaches from its
+     * center cell in each direction.
+     * @return the analysis.
+     */
+    public static HotspotAnalysis run(Collection<LayerIndex> layerIndexes, Envelope extent, TimeWindow window,
+        FacetFilter facets, int cellsAcross, int radiusCells) {
+        double minX = extent.getXMin();
+        double minY = extent.getYMin();
+        double cellSize = extent.getWidth() / cellsAcross;
+        int columns = cellsAcross;
+        int rows = Math.max(1, (int) Math.ceil(extent.getHeight() / cellSize));
+
+        // Bin the crimes
+        int[] counts = new int[columns * rows];
+        int[] total = new int[1];
+        for (LayerIndex layerIndex : layerIndexes) {
+            CrimeFeatureStore store = layerIndex.getStore();
+            IntPredicate rowFilter = layerIndex.rowFilter(window, facets);
+            layerIndex.visitRows(minX, minY, minX + columns * cellSize, minY + rows * cellSize, storeRow -> {
+                if (rowFilter.test(storeRow)) {
+                    int column = Math.min(columns - 1, (int) ((store.x(storeRow) - minX) / cellSize));
+                    int row = Math.min(rows - 1, (int) ((store.y(storeRow) - minY) / cellSize));
+                    counts[row * columns + column]++;
+                    total[0]++;
+                }
+            });
+        }
+
+        // Sum each row, then each column, into a table with a leading row and column of zeros
+        int stride = columns + 1;
+        long[] table = new long[(rows + 1) * stride];
+        IntStream.range(0, rows).parallel().forEach(row -> {
+            long sum = 0;
+            for (int column = 0; column < columns; column++) {
+                sum += counts[row * columns + column];
+                table[(row + 1) * stride + column + 1] = sum;
+            }
+        });
+        IntStream.range(1, stride).parallel().forEach(column -> {
+            for (int row = 1; row <= rows; row++) {
+                table[row * stride + column] += table[(row - 1) * stride + column];
+            }
+        });
+
+        // The global mean and standard deviation of the cell counts
+        int n = counts.length;
+        double sumOfSquares = 0.0;
+        for (int count : counts) {
+            sumOfSquares += (double) count * count;
+        }
+        double mean = (double) total[0] / n;
+        double deviation = Math.sqrt(Math.max(0.0, sumOfSquares / n - mean * mean));
+
+        double[] zScores = new double[n];
+        if (1 < n && 0.0 < deviation) {
+            IntStream.range(0, rows).parallel().forEach(row -> {
+                int top = Math.max(0, row - radiusCells);
+                int bottom = Math.min(rows, row + radiusCells + 1);
+                for (int column = 0; column < columns; column++) {
+                    int left = Math.max(0, column - radiusCells);
+                    int right = Math.min(columns, column + radiusCells + 1);
+                    long sum = table[bottom * stride + right] - table[top * stride + right]
+                        - table[bottom * stride + left] + table[top * stride + left];
+                    // With weights of one, the sum of the weights and of their squares are both the cell count
+                    double weights = (double) (bottom - top) * (right - left);
+                    double denominator = deviation * Math.sqrt((n * weights - weights * weights) / (n - 1));
+                    zScores[row * columns + column] = 0.0 < denominator ? (sum - mean * weights) / denominator : 0.0;
+                }
+            });
+        }
+        return new HotspotAnalysis(minX, minY, cellSize, columns, rows, counts, zScores, total[0]);
+    }
+
+    /**
+     * Returns the number of columns of the grid.
+     *
+     * @return the number of columns.
+     */
+    public int getColumns() {
+        return columns;
+    }
+
+    /**
+     * Returns the number of rows of the grid.
+     *
+     * @return the number of rows.
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Returns the size of a cell.
+     *
+     * @return the width and height of a cell, in degrees.
+     */
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * Returns the longitude of a column's west edge.
+     *
+     * @param column the column.
+     * @return the minimum longitude.
+     */
+    public double getCellMinX(int column) {
+        return minX + column * cellSize;
+    }
+
+    /**
+     * Returns the latitude of a row's south edge.
+     *
+     * @param row the row.
+     * @return the minimum latitude.
+     */
+    public double getCellMinY(int row) {
+        return minY + row * cellSize;
+    }
+
+    /**
+     * Returns the number of crimes in a cell.
+     *
+     * @param column the cell's column.
+     * @param row the cell's row.
+     * @return the number of crimes.
+     */
+    public int getCount(int column, int row) {
+        return counts[row * columns + column];
+    }
+
+    /**
+     * Returns the Gi* z-score of a cell.
+     *
+     * @param column the cell's column.
+     * @param row the cell's row.
+     * @return the z-score.
+     */
+    public double getZScore(int column, int row) {
+        return zScores[row * columns + column];
+    }
+
+    /**
+     * Returns how confidently a cell is a hotspot or a cold spot.
+     *
+     * @param column the cell's column.
+     * @param row the cell's row.
+     * @return 1, 2 or 3 for a hotspot at 90, 95 or 99 percent confidence, the
+     * negation of that for a cold spot, or 0 if the cell is neither.
+     */
+    public int getConfidence(int column, int row) {
+        double zScore = getZScore(column, row);
+        int confidence = 0;
+        while (confidence < CONFIDENCE_Z_SCORES.length && Math.abs(zScore) > CONFIDENCE_Z_SCORES[confidence]) {
+            confidence++;
+        }
+        return 0 > zScore ? -confidence : confidence;
+    }
+
+    /**
+     * Returns the number of crimes binned.
+     *
+     * @return the number of crimes.
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        int hot = 0;
+        int cold = 0;
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int confidence = getConfidence(column, row);
+                hot += 0 < confidence ? 1 : 0;
+                cold += 0 > confidence ? 1 : 0;
+            }
+        }
+        return String.format("%d crimes in %d x %d cells: %d hotspot and %d cold spot cells", total, columns, rows,
+            hot, cold);
+    }
+
+}
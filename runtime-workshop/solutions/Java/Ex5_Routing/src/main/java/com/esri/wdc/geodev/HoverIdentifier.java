@@ -0,0 +1,250 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import com.esri.arcgisruntime.concurrent.ListenableFuture;
+import com.esri.arcgisruntime.geometry.Point;
+import com.esri.arcgisruntime.mapping.GeoElement;
+import com.esri.arcgisruntime.mapping.view.GeoView;
+import com.esri.arcgisruntime.mapping.view.IdentifyLayerResult;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.geometry.Point2D;
+import javafx.scene.control.Tooltip;
+import javafx.scene.input.MouseEvent;
+
+/**
+ * Shows the offense and report date of the crime under the mouse cursor in a
+ * tooltip. Mouse moves only record the cursor position; an animation timer
+ * hit-tests the latest position once per frame, so a burst of moves costs one
+ * hit test. The hit test converts a tolerance in pixels to meters at the
+ * cursor and asks the layer indexes for the nearest crime within that
+ * distance, which takes microseconds. Only when no visible layer is indexed
+ * does it fall back to the runtime's identify, with at most one identify in
+ * flight.
+ */
+public class HoverIdentifier {
+
+    /**
+     * How far from the cursor a crime may be, in pixels.
+     */
+    public static final double TOLERANCE_PIXELS = 8.0;
+
+    private static final DateTimeFormatter DATE_FORMAT
+        = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(CrimeFeatureStore.TIME_ZONE);
+
+    private final GeoView view;
+    private final Function<Point2D, Point> screenToLocation;
+    private final Supplier<Collection<LayerIndex>> layerIndexes;
+    private final Tooltip tooltip = new Tooltip();
+    private final AnimationTimer timer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            onFrame();
+        }
+    };
+
+    // The latest cursor position in view and screen coordinates, or null once handled
+    private Point2D pendingPosition = null;
+    private Point2D pendingScreenPosition = null;
+    private long moveGeneration = 0;
+    private boolean identifyInFlight = false;
+    private long moveCount = 0;
+    private long hitTestCount = 0;
+    private long identifyCount = 0;
+
+    /**
+     * Creates a hover identifier for a view. Call {@link #start} to install
+     * it.
+     *
+     * @param view the MapView or SceneView.
+     * @param screenToLocation converts a point in the view to a location,
+     * returning null if there is no location under the point.
+     * @param layerIndexes returns the indexes of the crime layers shown in the
+     * view.
+     */
+    public HoverIdentifier(GeoView view, Function<Point2D, Point> screenToLocation,
+        Supplier<Collection<LayerIndex>> layerIndexes) {
+        this.view = view;
+        this.screenToLocation = screenToLocation;
+        this.layerIndexes = layerIndexes;
+    }
+
+    /**
+     * Starts listening to mouse moves over the view. Call this method on the
+     * JavaFX application thread.
+     */
+    public void start() {
+        view.setOnMouseMoved(event -> onMouseMoved(event));
+        view.setOnMouseExited(event -> hide());
+        timer.start();
+    }
+
+    /**
+     * Stops listening to mouse moves and hides the tooltip. Call this method
+     * on the JavaFX application thread.
+     */
+    public void stop() {
+        view.setOnMouseMoved(null);
+        view.setOnMouseExited(null);
+        timer.stop();
+        hide();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Hover: %d mouse moves, %d hit tests, %d identified by the runtime",
+            moveCount, hitTestCount, identifyCount);
+    }
+
+    private void onMouseMoved(MouseEvent event) {
+        moveCount++;
+        moveGeneration++;
+        pendingPosition = new Point2D(event.getX(), event.getY());
+        pendingScreenPosition = new Point2D(event.getScreenX(), event.getScreenY());
+    }
+
+    private void hide() {
+        moveGeneration++;
+        pendingPosition = null;
+        tooltip.hide();
+    }
+
+    /**
+     * Hit-tests the latest cursor position, if it has moved since the last
+     * frame.
+     */
+    private void onFrame() {
+        if (null == pendingPosition) {
+            return;
+        }
+        Point2D position = pendingPosition;
+        Point2D screenPosition = pendingScreenPosition;
+        pendingPosition = null;
+        hitTestCount++;
+
+        // Convert the tolerance to meters at the cursor; with no location there, nothing is under it
+        Point location = screenToLocation.apply(position);
+        Point edge = screenToLocation.apply(new Point2D(position.getX() + TOLERANCE_PIXELS, position.getY()));
+        Point wgs84Location = null;
+        double toleranceMeters = -1.0;
+        if (null != location && null != edge) {
+            wgs84Location = (Point) LayerIndex.toIndexSpatialReference(location);
+            Point wgs84Edge = (Point) LayerIndex.toIndexSpatialReference(edge);
+            toleranceMeters = Geodesics.distanceMeters(
+                wgs84Location.getX(), wgs84Location.getY(), wgs84Edge.getX(), wgs84Edge.getY());
+        }
+
+        boolean indexed = false;
+        String text = null;
+        double nearestDistance = Double.POSITIVE_INFINITY;
+        for (LayerIndex layerIndex : layerIndexes.get()) {
+            if (!layerIndex.getFeatureLayer().isVisible()) {
+                continue;
+            }
+            indexed = true;
+            if (null == wgs84Location) {
+                break;
+            }
+            NearestNeighbors nearest = layerIndex.queryNearest(wgs84Location, 1, TimeWindow.ALL);
+            if (0 < nearest.size() && nearest.getDistanceMeters(0) <= toleranceMeters
+                && nearest.getDistanceMeters(0) < nearestDistance) {
+                nearestDistance = nearest.getDistanceMeters(0);
+                text = format(layerIndex.getStore(), nearest.getRow(0));
+            }
+        }
+        if (indexed) {
+            show(text, screenPosition);
+        } else if (!identifyInFlight) {
+            identify(position, screenPosition);
+        } else {
+            // Try again next frame, once the identify in flight is done
+            pendingPosition = position;
+            pendingScreenPosition = screenPosition;
+        }
+    }
+
+    /**
+     * Asks the runtime which crime is under a position, for views whose
+     * layers are not indexed.
+     */
+    private void identify(Point2D position, Point2D screenPosition) {
+        identifyInFlight = true;
+        identifyCount++;
+        long generation = moveGeneration;
+        ListenableFuture<List<IdentifyLayerResult>> future
+            = view.identifyLayersAsync(position, TOLERANCE_PIXELS, false, 1);
+        future.addDoneListener(() -> Platform.runLater(() -> {
+            identifyInFlight = false;
+            String text = null;
+            try {
+                for (IdentifyLayerResult result : future.get()) {
+                    for (GeoElement element : result.getElements()) {
+                        if (null == text) {
+                            text = format(element.getAttributes());
+                        }
+                    }
+                }
+            } catch (InterruptedException | ExecutionException ex) {
+                Logger.getLogger(HoverIdentifier.class.getName()).log(Level.FINE, null, ex);
+            }
+            // Drop the answer if the cursor has moved on
+            if (generation == moveGeneration) {
+                show(text, screenPosition);
+            }
+        }));
+    }
+
+    private void show(String text, Point2D screenPosition) {
+        if (null == text) {
+            tooltip.hide();
+        } else {
+            tooltip.setText(text);
+            tooltip.show(view, screenPosition.getX() + TOLERANCE_PIXELS, screenPosition.getY() + TOLERANCE_PIXELS);
+        }
+    }
+
+    private static String format(CrimeFeatureStore store, int row) {
+        String offense = store.getOffense().valueAt(row);
+        long time = store.reportTime(row);
+        return (null == offense ? "(none)" : offense.trim()) + "\n"
+            + (CrimeFeatureStore.NO_TIME == time ? "No report date" : DATE_FORMAT.format(Instant.ofEpochMilli(time)));
+    }
+
+    /**
+     * Formats the attributes of an identified feature, or returns null if it
+     * is not a crime.
+     */
+    private static String format(Map<String, Object> attributes) {
+        Object offense = attributes.get(CrimeFeatureStore.OFFENSE_FIELD);
+        if (null == offense) {
+            return null;
+        }
+        Object date = attributes.get(CrimeFeatureStore.REPORT_DATE_FIELD);
+        return offense.toString().trim() + "\n" + (null == date ? "No report date" : date.toString().trim());
+    }
+
+}
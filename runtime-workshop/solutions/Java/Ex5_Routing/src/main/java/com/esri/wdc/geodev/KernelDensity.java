@@ -0,0 +1,367 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntPredicate;
+
+/**
+ * A kernel density surface of the crimes of the indexed layers that were
+ * reported in a time window and pass a facet filter. The surface is cut into
+ * square tiles of a global WGS 84 grid, halving in size with each level, and
+ * computed a tile at a time, so panning only computes the tiles that come
+ * into view. Each tile's rows are split into bands that a fork-join pool
+ * fills in parallel; a band only writes its own rows, so bands need no
+ * locking. The most recently used tiles are cached.
+ * <p>
+ * The kernel is Epanechnikov's, with a bandwidth of a few cells, so a crime
+ * only touches the cells near it. Densities are in crimes per square
+ * kilometer.
+ */
+public class KernelDensity {
+
+    /**
+     * The number of cells along each side of a tile.
+     */
+    public static final int TILE_CELLS = 64;
+
+    // The kernel radius, in cells
+    private static final double BANDWIDTH_CELLS = 3.0;
+    // The most rows a band fills without splitting
+    private static final int BAND_ROWS = 8;
+    private static final double METERS_PER_DEGREE = 111320.0;
+
+    private final List<LayerIndex> layerIndexes;
+    private final List<IntPredicate> rowFilters = new ArrayList<>();
+    private final ForkJoinPool pool;
+    private final int maxTiles;
+    private final LinkedHashMap<Long, Tile> tiles = new LinkedHashMap<>(16, 0.75f, true);
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Creates an empty surface.
+     *
+     * @param layerIndexes the indexed layers.
+     * @param window the time window.
+     * @param facets the facet filter.
+     * @param pool the pool that fills the bands of a tile.
+     * @param maxTiles the most tiles to cache.
+     */
+    public KernelDensity(Collection<LayerIndex> layerIndexes, TimeWindow window, FacetFilter facets,
+        ForkJoinPool pool, int maxTiles) {
+        this.layerIndexes = new ArrayList<>(layerIndexes);
+        for (LayerIndex layerIndex : this.layerIndexes) {
+            rowFilters.add(layerIndex.rowFilter(window, facets));
+        }
+        this.pool = pool;
+        this.maxTiles = maxTiles;
+    }
+
+    /**
+     * Returns the size of a tile.
+     *
+     * @param level the level.
+     * @return the width and height of a tile, in degrees.
+     */
+    public static double getTileSize(int level) {
+        return 360.0 / (1L << level);
+    }
+
+    /**
+     * Returns the level at which a span covers about a given number of tiles.
+     *
+     * @param spanDegrees the width of the view, in degrees.
+     * @param tilesAcross the number of tiles the view should span.
+     * @return the level, between 0 and 30.
+     */
+    public static int getLevelFor(double spanDegrees, int tilesAcross) {
+        int level = (int) Math.ceil(Math.log(360.0 * tilesAcross / spanDegrees) / Math.log(2.0));
+        return Math.max(0, Math.min(30, level));
+    }
+
+    /**
+     * Returns the column of the tile that contains a longitude.
+     *
+     * @param level the level.
+     * @param x the longitude.
+     * @return the column.
+     */
+    public static int getColumn(int level, double x) {
+        return (int) Math.floor((x + 180.0) / getTileSize(level));
+    }
+
+    /**
+     * Returns the row of the tile that contains a latitude.
+     *
+     * @param level the level.
+     * @param y the latitude.
+     * @return the row.
+     */
+    public static int getRow(int level, double y) {
+        return (int) Math.floor((y + 90.0) / getTileSize(level));
+    }
+
+    /**
+     * Returns a tile, computing it if it is not cached.
+     *
+     * @param level the level.
+     * @param column the tile's column.
+     * @param row the tile's row.
+     * @return the tile.
+     */
+    public Tile getTile(int level, int column, int row) {
+        long key = ((long) level << 59) | ((long) column << 29) | row;
+        synchronized (this) {
+            Tile tile = tiles.get(key);
+            if (null != tile) {
+                hits++;
+                return tile;
+            }
+            misses++;
+        }
+        Tile tile = compute(level, column, row);
+        synchronized (this) {
+            tiles.put(key, tile);
+            Iterator<Tile> eldest = tiles.values().iterator();
+            while (tiles.size() > maxTiles) {
+                eldest.next();
+                eldest.remove();
+            }
+        }
+        return tile;
+    }
+
+    private Tile compute(int level, int column, int row) {
+        double tileSize = getTileSize(level);
+        double minX = -180.0 + column * tileSize;
+        double minY = -90.0 + row * tileSize;
+        double cellSize = tileSize / TILE_CELLS;
+        // The bandwidth is the same on the ground in both directions, so it spans more degrees of longitude
+        double radiusY = BANDWIDTH_CELLS * cellSize;
+        double cosLatitude = Math.max(0.01, Math.cos(Math.toRadians(minY + tileSize / 2.0)));
+        double radiusX = radiusY / cosLatitude;
+
+        // Collect the crimes that reach into the tile
+        Points points = new Points();
+        for (int i = 0; i < layerIndexes.size(); i++) {
+            CrimeFeatureStore store = layerIndexes.get(i).getStore();
+            IntPredicate rowFilter = rowFilters.get(i);
+            layerIndexes.get(i).visitRows(minX - radiusX, minY - radiusY, minX + tileSize + radiusX,
+                minY + tileSize + radiusY, storeRow -> {
+                    if (rowFilter.test(storeRow)) {
+                        points.add(store.x(storeRow), store.y(storeRow));
+                    }
+                });
+        }
+
+        float[] densities = new float[TILE_CELLS * TILE_CELLS];
+        if (0 < points.count) {
+            double radiusMeters = radiusY * METERS_PER_DEGREE;
+            double weight = 2.0 / (Math.PI * radiusMeters * radiusMeters) * 1e6;
+            pool.invoke(new BandTask(densities, points, minX, minY, cellSize, radiusX, radiusY, weight,
+                0, TILE_CELLS));
+        }
+        float maxDensity = 0.0f;
+        for (float density : densities) {
+            maxDensity = Math.max(maxDensity, density);
+        }
+        return new Tile(minX, minY, cellSize, densities, maxDensity, points.count);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Kernel density: %d tiles computed, %d cache hits, %d tiles cached",
+            misses, hits, tiles.size());
+    }
+
+    /**
+     * The densities of a tile's cells.
+     */
+    public static final class Tile {
+
+        private final double minX;
+        private final double minY;
+        private final double cellSize;
+        private final float[] densities;
+        private final float maxDensity;
+        private final int pointCount;
+
+        Tile(double minX, double minY, double cellSize, float[] densities, float maxDensity, int pointCount) {
+            this.minX = minX;
+            this.minY = minY;
+            this.cellSize = cellSize;
+            this.densities = densities;
+            this.maxDensity = maxDensity;
+            this.pointCount = pointCount;
+        }
+
+        /**
+         * Returns the longitude of the tile's west edge.
+         *
+         * @return the minimum longitude.
+         */
+        public double getMinX() {
+            return minX;
+        }
+
+        /**
+         * Returns the latitude of the tile's south edge.
+         *
+         * @return the minimum latitude.
+         */
+        public double getMinY() {
+            return minY;
+        }
+
+        /**
+         * Returns the size of a cell.
+         *
+         * @return the width and height of a cell, in degrees.
+         */
+        public double getCellSize() {
+            return cellSize;
+        }
+
+        /**
+         * Returns the density of a cell.
+         *
+         * @param column the cell's column, from west to east.
+         * @param row the cell's row, from south to north.
+         * @return the density, in crimes per square kilometer.
+         */
+        public float getDensity(int column, int row) {
+            return densities[row * TILE_CELLS + column];
+        }
+
+        /**
+         * Returns the highest density of any cell.
+         *
+         * @return the highest density, in crimes per square kilometer.
+         */
+        public float getMaxDensity() {
+            return maxDensity;
+        }
+
+        /**
+         * Returns the number of crimes that contributed to the tile.
+         *
+         * @return the number of crimes.
+         */
+        public int getPointCount() {
+            return pointCount;
+        }
+
+    }
+
+    /**
+     * A growable list of coordinates.
+     */
+    private static class Points {
+
+        private double[] x = new double[256];
+        private double[] y = new double[256];
+        private int count = 0;
+
+        void add(double px, double py) {
+            if (count == x.length) {
+                x = Arrays.copyOf(x, 2 * count);
+                y = Arrays.copyOf(y, 2 * count);
+            }
+            x[count] = px;
+            y[count] = py;
+            count++;
+        }
+
+    }
+
+    /**
+     * Adds every point's kernel to the cells of a range of rows, splitting
+     * the range in half until it is a band of a few rows.
+     */
+    private static class BandTask extends RecursiveAction {
+
+        private final float[] densities;
+        private final Points points;
+        private final double minX;
+        private final double minY;
+        private final double cellSize;
+        private final double radiusX;
+        private final double radiusY;
+        private final double weight;
+        private final int fromRow;
+        private final int toRow;
+
+        BandTask(float[] densities, Points points, double minX, double minY, double cellSize, double radiusX,
+            double radiusY, double weight, int fromRow, int toRow) {
+            this.densities = densities;
+            this.points = points;
+            this.minX = minX;
+            this.minY = minY;
+            this.cellSize = cellSize;
+            this.radiusX = radiusX;
+            this.radiusY = radiusY;
+            this.weight = weight;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+
+        @Override
+        protected void compute() {
+            if (toRow - fromRow > BAND_ROWS) {
+                int middle = (fromRow + toRow) >>> 1;
+                invokeAll(
+                    new BandTask(densities, points, minX, minY, cellSize, radiusX, radiusY, weight, fromRow, middle),
+                    new BandTask(densities, points, minX, minY, cellSize, radiusX, radiusY, weight, middle, toRow));
+                return;
+            }
+            double bandMinY = minY + fromRow * cellSize;
+            double bandMaxY = minY + toRow * cellSize;
+            for (int i = 0; i < points.count; i++) {
+                double px = points.x[i];
+                double py = points.y[i];
+                if (py + radiusY < bandMinY || py - radiusY > bandMaxY) {
+                    continue;
+                }
+                // The rows and columns whose cell centers may be within the kernel's radius
+                int firstRow = Math.max(fromRow, (int) Math.ceil((py - radiusY - minY) / cellSize - 0.5));
+                int lastRow = Math.min(toRow - 1, (int) Math.floor((py + radiusY - minY) / cellSize - 0.5));
+                int firstColumn = Math.max(0, (int) Math.ceil((px - radiusX - minX) / cellSize - 0.5));
+                int lastColumn = Math.min(TILE_CELLS - 1, (int) Math.floor((px + radiusX - minX) / cellSize - 0.5));
+                for (int row = firstRow; row <= lastRow; row++) {
+                    double dy = (minY + (row + 0.5) * cellSize - py) / radiusY;
+                    double dy2 = dy * dy;
+                    for (int column = firstColumn; column <= lastColumn; column++) {
+                        double dx = (minX + (column + 0.5) * cellSize - px) / radiusX;
+                        double r2 = dx * dx + dy2;
+                        if (r2 < 1.0) {
+                            densities[row * TILE_CELLS + column] += (float) (weight * (1.0 - r2));
+                        }
+                    }
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,476 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import com.esri.arcgisruntime.data.FeatureTable;
+import com.esri.arcgisruntime.data.QueryParameters;
+import com.esri.arcgisruntime.geometry.Envelope;
+import com.esri.arcgisruntime.geometry.Geometry;
+import com.esri.arcgisruntime.geometry.GeometryEngine;
+import com.esri.arcgisruntime.geometry.GeometryType;
+import com.esri.arcgisruntime.geometry.Point;
+import com.esri.arcgisruntime.geometry.Polygon;
+import com.esri.arcgisruntime.geometry.SpatialReference;
+import com.esri.arcgisruntime.layers.FeatureLayer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ExecutionException;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+/**
+ * A client-side spatial index of the features in one FeatureLayer. The index
+ * holds every point of a CrimeFeatureStore in an STR R-tree, so that candidate
+ * features for a query geometry can be found without asking the runtime to
+ * scan the whole table. Coordinates are stored in WGS 84.
+ */
+public class LayerIndex {
+
+    /**
+     * The spatial reference of the coordinates held in the index.
+     */
+    public static final SpatialReference SPATIAL_REFERENCE = CrimeFeatureStore.SPATIAL_REFERENCE;
+
+    private final FeatureLayer featureLayer;
+    private final CrimeFeatureStore store;
+    private final StrTree tree;
+    private final TemporalIndex temporalIndex;
+    private final AttributeIndex attributeIndex;
+    private final RadiusSearch radiusSearch;
+
+    private LayerIndex(FeatureLayer featureLayer, CrimeFeatureStore store, StrTree tree) {
+        this.featureLayer = featureLayer;
+        this.store = store;
+        this.tree = tree;
+        this.temporalIndex = TemporalIndex.build(store);
+        this.attributeIndex = AttributeIndex.build(store);
+        this.radiusSearch = new RadiusSearch(store);
+    }
+
+    /**
+     * Reads every feature of the layer's feature table into a columnar store
+     * and builds an index over it. This method blocks until the table is
+     * loaded and queried, so call it from a background thread.
+     *
+     * @param featureLayer the layer to index.
+     * @return the index, or null if the layer does not hold points.
+     * @throws InterruptedException if interrupted while waiting for the runtime.
+     * @throws ExecutionException if the table fails to load or query.
+     */
+    public static LayerIndex build(FeatureLayer featureLayer) throws InterruptedException, ExecutionException {
+        FeatureTable table = featureLayer.getFeatureTable();
+        CrimeFeatureStore.loadAndWait(table);
+        if (GeometryType.POINT != table.getGeometryType()) {
+            return null;
+        }
+        CrimeFeatureStore store = CrimeFeatureStore.load(table);
+        double[] x = store.copyX();
+        double[] y = store.copyY();
+        return new LayerIndex(featureLayer, store, new StrTree(x, y, x, y));
+    }
+
+    /**
+     * Returns the indexed layer.
+     *
+     * @return the indexed layer.
+     */
+    public FeatureLayer getFeatureLayer() {
+        return featureLayer;
+    }
+
+    /**
+     * Returns the columnar store of the layer's features. Tree items are rows
+     * of this store.
+     *
+     * @return the store.
+     */
+    public CrimeFeatureStore getStore() {
+        return store;
+    }
+
+    /**
+     * Returns the index of the store's rows by report time.
+     *
+     * @return the temporal index.
+     */
+    public TemporalIndex getTemporalIndex() {
+        return temporalIndex;
+    }
+
+    /**
+     * Returns the index of the features' attribute values.
+     *
+     * @return the attribute index.
+     */
+    public AttributeIndex getAttributeIndex() {
+        return attributeIndex;
+    }
+
+    /**
+     * Returns the number of features in the index.
+     *
+     * @return the number of features in the index.
+     */
+    public int size() {
+        return store.size();
+    }
+
+    /**
+     * Finds the store rows of the features whose envelopes intersect the
+     * envelope of a geometry. The result is a superset of the features that
+     * intersect the geometry itself.
+     *
+     * @param geometry the query geometry, in any spatial reference.
+     * @return the candidate rows, in no particular order.
+     */
+    public int[] queryCandidateRows(Geometry geometry) {
+        Envelope extent = toIndexSpatialReference(geometry).getExtent();
+        return tree.query(extent.getXMin(), extent.getYMin(), extent.getXMax(), extent.getYMax());
+    }
+
+    /**
+     * Finds the store rows of the features reported in a time window whose
+     * envelopes intersect the envelope of a geometry.
+     *
+     * @param geometry the query geometry, in any spatial reference.
+     * @param window the time window.
+     * @return the candidate rows, in no particular order.
+     */
+    public int[] queryCandidateRows(Geometry geometry, TimeWindow window) {
+        return temporalIndex.filter(queryCandidateRows(geometry), window);
+    }
+
+    /**
+     * Finds the store rows of the features reported in a time window that pass
+     * a facet filter and whose envelopes intersect the envelope of a geometry.
+     *
+     * @param geometry the query geometry, in any spatial reference.
+     * @param window the time window.
+     * @param facets the facet filter.
+     * @return the candidate rows, in no particular order.
+     */
+    public int[] queryCandidateRows(Geometry geometry, TimeWindow window, FacetFilter facets) {
+        return filter(queryCandidateRows(geometry, window), facets);
+    }
+
+    /**
+     * Finds the store rows of the features reported in a time window that are
+     * inside a polygon. Unlike the candidate queries, the polygon test is done
+     * client-side, so the result is exact.
+     *
+     * @param polygon the polygon, in any spatial reference.
+     * @param window the time window.
+     * @return the rows.
+     */
+    public RowBitmap queryRowsInside(Polygon polygon, TimeWindow window) {
+        int[] rows = queryCandidateRows(polygon, window);
+        int count = new PreparedPolygon(polygon).filter(store, rows);
+        Arrays.sort(rows, 0, count);
+        return RowBitmap.ofSorted(rows, count);
+    }
+
+    /**
+     * Returns a test of whether a store row is reported in a time window and
+     * passes a facet filter.
+     *
+     * @param window the time window.
+     * @param facets the facet filter.
+     * @return the test.
+     */
+    public IntPredicate rowFilter(TimeWindow window, FacetFilter facets) {
+        IntPredicate inWindow = temporalIndex.rowFilter(window);
+        RowBitmap facetRows = attributeIndex.rows(facets);
+        return null == facetRows ? inWindow : inWindow.and(facetRows::contains);
+    }
+
+    /**
+     * Keeps the rows that pass a facet filter by intersecting them with the
+     * filter's bitmap.
+     *
+     * @param rows the rows.
+     * @param facets the facet filter.
+     * @return the rows that pass, in ascending order, or the same array if
+     * the filter restricts nothing.
+     */
+    public int[] filter(int[] rows, FacetFilter facets) {
+        RowBitmap facetRows = attributeIndex.rows(facets);
+        return null == facetRows ? rows : RowBitmap.of(rows).and(facetRows).toArray();
+    }
+
+    /**
+     * Visits the store rows of the features in a box.
+     *
+     * @param minX the minimum longitude of the box.
+     * @param minY the minimum latitude of the box.
+     * @param maxX the maximum longitude of the box.
+     * @param maxY the maximum latitude of the box.
+     * @param visitor receives each row in the box.
+     */
+    public void visitRows(double minX, double minY, double maxX, double maxY, IntConsumer visitor) {
+        tree.query(minX, minY, maxX, maxY, visitor);
+    }
+
+    /**
+     * Finds the object IDs of the features whose envelopes intersect the
+     * envelope of a geometry. The result is a superset of the features that
+     * intersect the geometry itself.
+     *
+     * @param geometry the query geometry, in any spatial reference.
+     * @return the candidate object IDs, in no particular order.
+     */
+    public long[] queryCandidates(Geometry geometry) {
+        return toObjectIds(queryCandidateRows(geometry));
+    }
+
+    /**
+     * Finds the store rows of the features reported in a time window that are
+     * within an exact geodesic distance of a point.
+     *
+     * @param center the point, in any spatial reference.
+     * @param radiusMeters the distance in meters.
+     * @param window the time window.
+     * @return the rows, in no particular order.
+     */
+    public int[] queryRowsWithin(Point center, double radiusMeters, TimeWindow window) {
+        Point wgs84Center = (Point) toIndexSpatialReference(center);
+        double[] box = RadiusSearch.boundingBox(wgs84Center.getX(), wgs84Center.getY(), radiusMeters);
+        int[] rows = temporalIndex.filter(tree.query(box[0], box[1], box[2], box[3]), window);
+        int count = radiusSearch.filter(rows, wgs84Center.getX(), wgs84Center.getY(), radiusMeters);
+        return Arrays.copyOf(rows, count);
+    }
+
+    /**
+     * Finds the features reported in a time window that are nearest to a
+     * point by geodesic distance, however far away they are.
+     *
+     * @param center the point, in any spatial reference.
+     * @param k the number of features to find.
+     * @param window the time window.
+     * @return up to k features, nearest first.
+     */
+    public NearestNeighbors queryNearest(Point center, int k, TimeWindow window) {
+        return queryNearest(center, k, window, FacetFilter.ALL);
+    }
+
+    /**
+     * Finds the features reported in a time window that pass a facet filter
+     * and are nearest to a point by geodesic distance, however far away they
+     * are.
+     *
+     * @param center the point, in any spatial reference.
+     * @param k the number of features to find.
+     * @param window the time window.
+     * @param facets the facet filter.
+     * @return up to k features, nearest first.
+     */
+    public NearestNeighbors queryNearest(Point center, int k, TimeWindow window, FacetFilter facets) {
+        Point wgs84Center = (Point) toIndexSpatialReference(center);
+        double lon = wgs84Center.getX();
+        double lat = wgs84Center.getY();
+        IntPredicate inWindow = rowFilter(window, facets);
+        int[] rows = new int[k];
+        double[] distances = new double[k];
+        int count = tree.nearest(k, new StrTree.Metric() {
+
+            @Override
+            public double envelopeDistance(double minX, double minY, double maxX, double maxY) {
+                return Geodesics.minDistanceToBoxMeters(lon, lat, minX, minY, maxX, maxY);
+            }
+
+            @Override
+            public double itemDistance(int row) {
+                return inWindow.test(row)
+                    ? Geodesics.distanceMeters(lon, lat, store.x(row), store.y(row))
+                    : Double.POSITIVE_INFINITY;
+            }
+
+        }, rows, distances);
+        return new NearestNeighbors(this, Arrays.copyOf(rows, count), Arrays.copyOf(distances, count));
+    }
+
+    /**
+     * Converts store rows to object IDs.
+     *
+     * @param rows the rows.
+     * @return the object ID of each row.
+     */
+    public long[] toObjectIds(int[] rows) {
+        long[] objectIds = new long[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            objectIds[i] = store.objectId(rows[i]);
+        }
+        return objectIds;
+    }
+
+    /**
+     * Creates query parameters for the features that intersect a buffer. The
+     * query lists the candidate object IDs from the tree, so the runtime only
+     * tests those features against the buffer.
+     *
+     * @param buffer the buffer, in any spatial reference.
+     * @return the query parameters, or null if no feature can intersect the
+     * buffer.
+     */
+    public QueryParameters createBufferQuery(Geometry buffer) {
+        return createBufferQuery(buffer, TimeWindow.ALL);
+    }
+
+    /**
+     * Creates query parameters for the features reported in a time window that
+     * intersect a buffer. Both the spatial and the temporal filters are applied
+     * to the candidate list before the runtime sees the query.
+     *
+     * @param buffer the buffer, in any spatial reference.
+     * @param window the time window.
+     * @return the query parameters, or null if no feature can match.
+     */
+    public QueryParameters createBufferQuery(Geometry buffer, TimeWindow window) {
+        return createBufferQuery(buffer, window, FacetFilter.ALL);
+    }
+
+    /**
+     * Creates query parameters for the features reported in a time window that
+     * pass a facet filter and intersect a buffer. The temporal and attribute
+     * filters are applied to the candidate list, so the runtime evaluates no
+     * where clause.
+     *
+     * @param buffer the buffer, in any spatial reference.
+     * @param window the time window.
+     * @param facets the facet filter.
+     * @return the query parameters, or null if no feature can match.
+     */
+    public QueryParameters createBufferQuery(Geometry buffer, TimeWindow window, FacetFilter facets) {
+        long[] candidates = toObjectIds(queryCandidateRows(buffer, window, facets));
+        return 0 == candidates.length ? null : createObjectIdQuery(candidates, buffer);
+    }
+
+    /**
+     * Creates query parameters for the features reported in a time window that
+     * are within an exact geodesic distance of a point. The distance test is
+     * done client-side, so the query lists object IDs and has no geometry.
+     *
+     * @param center the point, in any spatial reference.
+     * @param radiusMeters the distance in meters.
+     * @param window the time window.
+     * @return the query parameters, or null if no feature matches.
+     */
+    public QueryParameters createRadiusQuery(Point center, double radiusMeters, TimeWindow window) {
+        return createRadiusQuery(center, radiusMeters, window, FacetFilter.ALL);
+    }
+
+    /**
+     * Creates query parameters for the features reported in a time window that
+     * pass a facet filter and are within an exact geodesic distance of a
+     * point.
+     *
+     * @param center the point, in any spatial reference.
+     * @param radiusMeters the distance in meters.
+     * @param window the time window.
+     * @param facets the facet filter.
+     * @return the query parameters, or null if no feature matches.
+     */
+    public QueryParameters createRadiusQuery(Point center, double radiusMeters, TimeWindow window,
+        FacetFilter facets) {
+        long[] objectIds = toObjectIds(filter(queryRowsWithin(center, radiusMeters, window), facets));
+        return 0 == objectIds.length ? null : createObjectIdQuery(objectIds, null);
+    }
+
+    /**
+     * Creates query parameters for the features reported in a time window that
+     * pass a facet filter and are within an exact geodesic distance of any of
+     * several points.
+     *
+     * @param centers the points, in any spatial reference.
+     * @param radiusMeters the distance in meters.
+     * @param window the time window.
+     * @param facets the facet filter.
+     * @return the query parameters, or null if no feature matches.
+     */
+    public QueryParameters createRadiusQuery(Collection<Point> centers, double radiusMeters, TimeWindow window,
+        FacetFilter facets) {
+        int[] rows = queryRowsWithin(centers, radiusMeters, window, facets);
+        return 0 == rows.length ? null : createObjectIdQuery(toObjectIds(rows), null);
+    }
+
+    /**
+     * Finds the store rows of the features reported in a time window that
+     * pass a facet filter and are within an exact geodesic distance of any of
+     * several points.
+     *
+     * @param centers the points, in any spatial reference.
+     * @param radiusMeters the distance in meters.
+     * @param window the time window.
+     * @param facets the facet filter.
+     * @return the rows, in ascending order.
+     */
+    public int[] queryRowsWithin(Collection<Point> centers, double radiusMeters, TimeWindow window,
+        FacetFilter facets) {
+        // Mark the rows near each point, so a row near several points is listed once
+        boolean[] within = new boolean[store.size()];
+        int count = 0;
+        for (Point center : centers) {
+            for (int row : queryRowsWithin(center, radiusMeters, window)) {
+                if (!within[row]) {
+                    within[row] = true;
+                    count++;
+                }
+            }
+        }
+        int[] rows = new int[count];
+        int i = 0;
+        for (int row = 0; row < within.length; row++) {
+            if (within[row]) {
+                rows[i++] = row;
+            }
+        }
+        return filter(rows, facets);
+    }
+
+    /**
+     * Creates query parameters that select the given object IDs, further
+     * restricted to features that intersect the geometry. The runtime only
+     * evaluates the geometry against the listed features.
+     *
+     * @param objectIds the candidate object IDs.
+     * @param geometry the query geometry, or null to select by ID alone.
+     * @return the query parameters.
+     */
+    public static QueryParameters createObjectIdQuery(long[] objectIds, Geometry geometry) {
+        QueryParameters query = new QueryParameters();
+        for (long objectId : objectIds) {
+            query.getObjectIds().add(objectId);
+        }
+        if (null != geometry) {
+            query.setGeometry(geometry);
+        }
+        return query;
+    }
+
+    /**
+     * Projects a geometry into the index's spatial reference if necessary.
+     *
+     * @param geometry the geometry.
+     * @return the geometry in WGS 84.
+     */
+    public static Geometry toIndexSpatialReference(Geometry geometry) {
+        SpatialReference spatialReference = geometry.getSpatialReference();
+        if (null == spatialReference || SPATIAL_REFERENCE.getWkid() == spatialReference.getWkid()) {
+            return geometry;
+        }
+        return GeometryEngine.project(geometry, SPATIAL_REFERENCE);
+    }
+
+}
@@ -0,0 +1,134 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import com.esri.arcgisruntime.data.Feature;
+import com.esri.arcgisruntime.data.FeatureQueryResult;
+import com.esri.arcgisruntime.geometry.Geometry;
+import com.esri.arcgisruntime.geometry.Point;
+import com.esri.arcgisruntime.layers.FeatureLayer;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Crime counts within several radii of one center, from a single query at the
+ * outermost radius. Each feature the query returns is placed in the innermost
+ * ring that contains it by its geodesic distance from the center.
+ */
+public class MultiRingCounts {
+
+    private final Point center;
+    private final double[] radiiMeters;
+    private final long[] ringCounts;
+
+    /**
+     * Creates empty counts.
+     *
+     * @param center the center, in any spatial reference.
+     * @param radiiMeters the ring radii in meters, in ascending order.
+     */
+    public MultiRingCounts(Point center, double[] radiiMeters) {
+        this.center = (Point) LayerIndex.toIndexSpatialReference(center);
+        this.radiiMeters = radiiMeters.clone();
+        this.ringCounts = new long[radiiMeters.length];
+    }
+
+    /**
+     * Classifies the features returned by a query at the outermost radius.
+     * Features of indexed layers are located through the layer's store; other
+     * features are located by their geometry.
+     *
+     * @param results the query result of each layer.
+     * @param layerIndexes the indexes of the layers that have one.
+     * @return these counts.
+     */
+    public MultiRingCounts addAll(Map<FeatureLayer, FeatureQueryResult> results,
+        Map<FeatureLayer, LayerIndex> layerIndexes) {
+        results.forEach((featureLayer, result) -> {
+            LayerIndex layerIndex = layerIndexes.get(featureLayer);
+            CrimeFeatureStore store = null == layerIndex ? null : layerIndex.getStore();
+            for (Feature feature : result) {
+                int row = -1;
+                if (null != store) {
+                    Object objectId = feature.getAttributes().get(store.getObjectIdField());
+                    if (objectId instanceof Number) {
+                        row = store.rowOf(((Number) objectId).longValue());
+                    }
+                }
+                if (0 <= row) {
+                    add(store.x(row), store.y(row));
+                } else if (null != feature.getGeometry()) {
+                    Geometry geometry = LayerIndex.toIndexSpatialReference(feature.getGeometry());
+                    if (geometry instanceof Point) {
+                        add(((Point) geometry).getX(), ((Point) geometry).getY());
+                    }
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Counts one location.
+     *
+     * @param longitude the longitude in degrees.
+     * @param latitude the latitude in degrees.
+     */
+    public void add(double longitude, double latitude) {
+        double distance = Geodesics.distanceMeters(center.getX(), center.getY(), longitude, latitude);
+        int ring = Arrays.binarySearch(radiiMeters, distance);
+        if (0 > ring) {
+            ring = -ring - 1;
+        }
+        // A template buffer can reach slightly past its circle, so clamp to the outer ring
+        ringCounts[Math.min(ring, ringCounts.length - 1)]++;
+    }
+
+    /**
+     * Returns the ring radii.
+     *
+     * @return the radii in meters, in ascending order.
+     */
+    public double[] getRadii() {
+        return radiiMeters.clone();
+    }
+
+    /**
+     * Returns the number of features between a ring's radius and the next
+     * smaller radius.
+     *
+     * @param ring the ring number, starting at 0 for the innermost ring.
+     * @return the number of features in the ring.
+     */
+    public long getRingCount(int ring) {
+        return ringCounts[ring];
+    }
+
+    /**
+     * Returns the number of features within a ring's radius.
+     *
+     * @param ring the ring number, starting at 0 for the innermost ring.
+     * @return the number of features within the ring's radius.
+     */
+    public long getCumulativeCount(int ring) {
+        long count = 0;
+        for (int i = 0; i <= ring; i++) {
+            count += ringCounts[i];
+        }
+        return count;
+    }
+
+}
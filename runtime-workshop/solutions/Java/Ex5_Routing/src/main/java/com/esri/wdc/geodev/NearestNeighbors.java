@@ -0,0 +1,168 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * The features nearest to a point, sorted by geodesic distance. Each feature is
+ * a row of the store of the LayerIndex it came from, so the results of several
+ * layers can be merged into one list.
+ */
+public class NearestNeighbors {
+
+    private final LayerIndex[] layerIndexes;
+    private final int[] rows;
+    private final double[] distances;
+
+    /**
+     * Creates the result of a search of one layer.
+     *
+     * @param layerIndex the index that was searched.
+     * @param rows the rows found, nearest first.
+     * @param distances the distance of each row in meters.
+     */
+    NearestNeighbors(LayerIndex layerIndex, int[] rows, double[] distances) {
+        this(new LayerIndex[rows.length], rows, distances);
+        Arrays.fill(layerIndexes, layerIndex);
+    }
+
+    private NearestNeighbors(LayerIndex[] layerIndexes, int[] rows, double[] distances) {
+        this.layerIndexes = layerIndexes;
+        this.rows = rows;
+        this.distances = distances;
+    }
+
+    /**
+     * Merges the results of several searches into the k nearest features of
+     * all of them.
+     *
+     * @param results the results to merge.
+     * @param k the number of features to keep.
+     * @return the merged result, nearest first.
+     */
+    public static NearestNeighbors merge(Collection<NearestNeighbors> results, int k) {
+        NearestNeighbors[] sources = results.toArray(new NearestNeighbors[0]);
+        int[] next = new int[sources.length];
+        int total = 0;
+        for (NearestNeighbors source : sources) {
+            total += source.size();
+        }
+        int count = Math.min(k, total);
+        LayerIndex[] layerIndexes = new LayerIndex[count];
+        int[] rows = new int[count];
+        double[] distances = new double[count];
+        for (int i = 0; i < count; i++) {
+            // Take the nearest remaining feature of any source
+            int nearest = -1;
+            for (int s = 0; s < sources.length; s++) {
+                if (next[s] < sources[s].size()
+                    && (-1 == nearest || sources[s].distances[next[s]] < sources[nearest].distances[next[nearest]])) {
+                    nearest = s;
+                }
+            }
+            NearestNeighbors source = sources[nearest];
+            layerIndexes[i] = source.layerIndexes[next[nearest]];
+            rows[i] = source.rows[next[nearest]];
+            distances[i] = source.distances[next[nearest]];
+            next[nearest]++;
+        }
+        return new NearestNeighbors(layerIndexes, rows, distances);
+    }
+
+    /**
+     * Returns the number of features found.
+     *
+     * @return the number of features found.
+     */
+    public int size() {
+        return rows.length;
+    }
+
+    /**
+     * Returns the index that a feature came from.
+     *
+     * @param i the feature's rank, starting at 0 for the nearest.
+     * @return the layer index.
+     */
+    public LayerIndex getLayerIndex(int i) {
+        return layerIndexes[i];
+    }
+
+    /**
+     * Returns a feature's row in the store of its layer index.
+     *
+     * @param i the feature's rank, starting at 0 for the nearest.
+     * @return the row.
+     */
+    public int getRow(int i) {
+        return rows[i];
+    }
+
+    /**
+     * Returns a feature's geodesic distance from the search point.
+     *
+     * @param i the feature's rank, starting at 0 for the nearest.
+     * @return the distance in meters.
+     */
+    public double getDistanceMeters(int i) {
+        return distances[i];
+    }
+
+    /**
+     * Returns the object IDs of the features that came from one layer index.
+     *
+     * @param layerIndex the layer index.
+     * @return the object IDs, nearest first.
+     */
+    public long[] getObjectIds(LayerIndex layerIndex) {
+        long[] objectIds = new long[rows.length];
+        int count = 0;
+        for (int i = 0; i < rows.length; i++) {
+            if (layerIndex == layerIndexes[i]) {
+                objectIds[count++] = layerIndex.getStore().objectId(rows[i]);
+            }
+        }
+        return Arrays.copyOf(objectIds, count);
+    }
+
+    /**
+     * Formats the nearest features for display, one per line with the
+     * distance and offense.
+     *
+     * @param maxLines the largest number of features to list.
+     * @return the features as text.
+     */
+    public String format(int maxLines) {
+        if (0 == rows.length) {
+            return "No crimes found";
+        }
+        StringBuilder text = new StringBuilder();
+        text.append(rows.length).append(" nearest crimes, up to ")
+            .append(Math.round(distances[rows.length - 1])).append(" m away\n\n");
+        for (int i = 0; i < Math.min(maxLines, rows.length); i++) {
+            String offense = layerIndexes[i].getStore().getOffense().valueAt(rows[i]);
+            text.append(String.format("  %2d. %5d m  %s%n", i + 1, Math.round(distances[i]),
+                null == offense ? "(none)" : offense.trim()));
+        }
+        if (maxLines < rows.length) {
+            text.append("  ...\n");
+        }
+        return text.toString();
+    }
+
+}
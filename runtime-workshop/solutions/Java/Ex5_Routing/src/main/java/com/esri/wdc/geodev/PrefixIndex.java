@@ -0,0 +1,235 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Finds texts by the prefix of any of their words. Every suffix of a text that
+ * starts a word is a key, so "K ST" finds "1200 - 1299 BLOCK OF K STREET NW".
+ * The keys are sorted and front-coded in buckets of 16: the first key of a
+ * bucket is stored whole and each other key stores only the characters after
+ * the prefix it shares with the key before it. A lookup binary searches the
+ * bucket heads and then decodes keys forward from there, so it touches a
+ * handful of buckets and allocates almost nothing.
+ */
+public class PrefixIndex {
+
+    private static final int BUCKET_SIZE = 16;
+
+    // The stored characters of key i are chars[starts[i]] up to chars[starts[i + 1]]
+    private final char[] chars;
+    private final int[] starts;
+    // How many leading characters key i shares with key i - 1; always 0 for the first key of a bucket
+    private final int[] shared;
+    private final int[] values;
+    private final int maxKeyLength;
+
+    private PrefixIndex(char[] chars, int[] starts, int[] shared, int[] values, int maxKeyLength) {
+        this.chars = chars;
+        this.starts = starts;
+        this.shared = shared;
+        this.values = values;
+        this.maxKeyLength = maxKeyLength;
+    }
+
+    /**
+     * Normalizes text for indexing and lookups: upper case, with runs of
+     * white space replaced by one space and no leading or trailing space.
+     *
+     * @param text the text.
+     * @return the normalized text.
+     */
+    public static String normalize(String text) {
+        return text.trim().replaceAll("\\s+", " ").toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * Returns the number of keys, which is the number of indexed words.
+     *
+     * @return the number of keys.
+     */
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * Returns the number of characters stored for all keys, to compare with
+     * their total length.
+     *
+     * @return the number of stored characters.
+     */
+    public int storedCharCount() {
+        return chars.length;
+    }
+
+    /**
+     * Finds the texts with a word that starts with a prefix.
+     *
+     * @param prefix the prefix, which is normalized before the lookup. It may
+     * span several words.
+     * @param maxResults the largest number of values to return.
+     * @return the values of the matching texts, without repeats, in the
+     * order of their matching keys.
+     */
+    public int[] search(String prefix, int maxResults) {
+        char[] target = normalize(prefix).toCharArray();
+        if (0 == target.length || 0 == values.length) {
+            return new int[0];
+        }
+
+        // Find the first bucket whose head is not less than the prefix; matches may start in the bucket before it
+        int bucketCount = (values.length + BUCKET_SIZE - 1) / BUCKET_SIZE;
+        int low = 0;
+        int high = bucketCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int head = middle * BUCKET_SIZE;
+            if (compare(chars, starts[head], starts[head + 1], target) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        int[] results = new int[maxResults];
+        int count = 0;
+        char[] key = new char[maxKeyLength];
+        for (int i = Math.max(0, low - 1) * BUCKET_SIZE; i < values.length && count < maxResults; i++) {
+            int length = shared[i] + starts[i + 1] - starts[i];
+            System.arraycopy(chars, starts[i], key, shared[i], starts[i + 1] - starts[i]);
+            int order = comparePrefix(key, length, target);
+            if (order > 0) {
+                break;
+            }
+            if (0 == order && !contains(results, count, values[i])) {
+                results[count++] = values[i];
+            }
+        }
+        return Arrays.copyOf(results, count);
+    }
+
+    /**
+     * Compares a key with a target string.
+     */
+    private static int compare(char[] chars, int start, int end, char[] target) {
+        int length = Math.min(end - start, target.length);
+        for (int i = 0; i < length; i++) {
+            if (chars[start + i] != target[i]) {
+                return chars[start + i] < target[i] ? -1 : 1;
+            }
+        }
+        return Integer.compare(end - start, target.length);
+    }
+
+    /**
+     * Compares a key with a prefix, returning 0 if the key starts with the
+     * prefix.
+     */
+    private static int comparePrefix(char[] key, int length, char[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (i == length) {
+                return -1;
+            }
+            if (key[i] != prefix[i]) {
+                return key[i] < prefix[i] ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    private static boolean contains(int[] array, int count, int value) {
+        for (int i = 0; i < count; i++) {
+            if (array[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Collects texts and builds an index of them.
+     */
+    public static class Builder {
+
+        private final List<String> keys = new ArrayList<>();
+        private final List<Integer> keyValues = new ArrayList<>();
+
+        /**
+         * Adds a text, keyed by each of its words and the rest of the text.
+         *
+         * @param text the text.
+         * @param value the value to return when the text matches.
+         */
+        public void add(String text, int value) {
+            String normalized = normalize(text);
+            for (int i = 0; i < normalized.length(); i++) {
+                if (0 == i || ' ' == normalized.charAt(i - 1)) {
+                    keys.add(normalized.substring(i));
+                    keyValues.add(value);
+                }
+            }
+        }
+
+        /**
+         * Builds the index.
+         *
+         * @return the index.
+         */
+        public PrefixIndex build() {
+            Integer[] order = new Integer[keys.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> {
+                int byKey = keys.get(a).compareTo(keys.get(b));
+                return 0 != byKey ? byKey : Integer.compare(keyValues.get(a), keyValues.get(b));
+            });
+
+            StringBuilder chars = new StringBuilder();
+            int[] starts = new int[order.length + 1];
+            int[] shared = new int[order.length];
+            int[] values = new int[order.length];
+            int maxKeyLength = 0;
+            String previous = "";
+            for (int i = 0; i < order.length; i++) {
+                String key = keys.get(order[i]);
+                int common = 0;
+                if (0 != i % BUCKET_SIZE) {
+                    int limit = Math.min(previous.length(), key.length());
+                    while (common < limit && previous.charAt(common) == key.charAt(common)) {
+                        common++;
+                    }
+                }
+                starts[i] = chars.length();
+                shared[i] = common;
+                values[i] = keyValues.get(order[i]);
+                chars.append(key, common, key.length());
+                maxKeyLength = Math.max(maxKeyLength, key.length());
+                previous = key;
+            }
+            starts[order.length] = chars.length();
+            char[] stored = new char[chars.length()];
+            chars.getChars(0, stored.length, stored, 0);
+            return new PrefixIndex(stored, starts, shared, values, maxKeyLength);
+        }
+
+    }
+
+}
@@ -0,0 +1,267 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import com.esri.arcgisruntime.geometry.ImmutablePart;
+import com.esri.arcgisruntime.geometry.Point;
+import com.esri.arcgisruntime.geometry.Polygon;
+
+/**
+ * A polygon prepared for many point-in-polygon tests. Preparing costs time
+ * linear in the number of vertices, after which most points are accepted or
+ * rejected by two rectangle tests and the rest are tested against only the few
+ * edges in the point's horizontal band.
+ * <p>
+ * Points outside the envelope are rejected, and points inside a rectangle that
+ * lies wholly inside the polygon are accepted. Any other point is tested with
+ * the even-odd rule against the edges that overlap its band. The polygon's
+ * height is split into about as many bands as it has edges, so each band holds
+ * a handful of edges however detailed the polygon is.
+ */
+public class PreparedPolygon {
+
+    // How many times the inner rectangle is shrunk before giving up on it
+    private static final int INNER_RECTANGLE_ATTEMPTS = 8;
+
+    private final double minX;
+    private final double minY;
+    private final double maxX;
+    private final double maxY;
+    private final double innerMinX;
+    private final double innerMinY;
+    private final double innerMaxX;
+    private final double innerMaxY;
+
+    private final double bandHeight;
+    // Edges of band b are bandEdges[bandStarts[b]] up to bandEdges[bandStarts[b + 1]]
+    private final int[] bandStarts;
+    private final int[] bandEdges;
+    // Endpoints of edge e are (edges[4e], edges[4e + 1]) and (edges[4e + 2], edges[4e + 3])
+    private final double[] edges;
+
+    /**
+     * Prepares a runtime polygon. The polygon is projected to WGS 84 if
+     * necessary, so test points are longitude and latitude.
+     *
+     * @param polygon the polygon.
+     */
+    public PreparedPolygon(Polygon polygon) {
+        this(toRings((Polygon) LayerIndex.toIndexSpatialReference(polygon)));
+    }
+
+    /**
+     * Prepares a polygon given as rings of interleaved x and y values. A ring
+     * may or may not repeat its first vertex at the end.
+     *
+     * @param rings the rings.
+     */
+    public PreparedPolygon(double[][] rings) {
+        int edgeCount = 0;
+        double xMin = Double.POSITIVE_INFINITY;
+        double yMin = Double.POSITIVE_INFINITY;
+        double xMax = Double.NEGATIVE_INFINITY;
+        double yMax = Double.NEGATIVE_INFINITY;
+        for (double[] ring : rings) {
+            edgeCount += ring.length / 2;
+            for (int i = 0; i < ring.length; i += 2) {
+                xMin = Math.min(xMin, ring[i]);
+                xMax = Math.max(xMax, ring[i]);
+                yMin = Math.min(yMin, ring[i + 1]);
+                yMax = Math.max(yMax, ring[i + 1]);
+            }
+        }
+        edges = new double[4 * edgeCount];
+        int e = 0;
+        for (double[] ring : rings) {
+            int n = ring.length / 2;
+            for (int i = 0, j = n - 1; i < n; j = i++) {
+                edges[4 * e] = ring[2 * j];
+                edges[4 * e + 1] = ring[2 * j + 1];
+                edges[4 * e + 2] = ring[2 * i];
+                edges[4 * e + 3] = ring[2 * i + 1];
+                e++;
+            }
+        }
+        minX = xMin;
+        minY = yMin;
+        maxX = xMax;
+        maxY = yMax;
+
+        // Bucket the edges by the bands their y ranges overlap
+        int bandCount = Math.max(1, edgeCount);
+        bandHeight = maxY > minY ? (maxY - minY) / bandCount : 1.0;
+        bandStarts = new int[bandCount + 1];
+        for (e = 0; e < edgeCount; e++) {
+            for (int band = band(edgeMinY(e)); band <= band(edgeMaxY(e)); band++) {
+                bandStarts[band + 1]++;
+            }
+        }
+        for (int band = 0; band < bandCount; band++) {
+            bandStarts[band + 1] += bandStarts[band];
+        }
+        bandEdges = new int[bandStarts[bandCount]];
+        int[] next = new int[bandCount];
+        System.arraycopy(bandStarts, 0, next, 0, bandCount);
+        for (e = 0; e < edgeCount; e++) {
+            for (int band = band(edgeMinY(e)); band <= band(edgeMaxY(e)); band++) {
+                bandEdges[next[band]++] = e;
+            }
+        }
+
+        // Find a rectangle around the middle of the envelope that no edge enters
+        double centerX = (minX + maxX) / 2.0;
+        double centerY = (minY + maxY) / 2.0;
+        double halfWidth = (maxX - minX) / 2.0 / Math.sqrt(2.0);
+        double halfHeight = (maxY - minY) / 2.0 / Math.sqrt(2.0);
+        double[] inner = null;
+        for (int attempt = 0; attempt < INNER_RECTANGLE_ATTEMPTS && null == inner; attempt++) {
+            double[] rectangle = {centerX - halfWidth, centerY - halfHeight, centerX + halfWidth, centerY + halfHeight};
+            if (containsByEdges(centerX, centerY) && !anyEdgeEnters(rectangle)) {
+                inner = rectangle;
+            }
+            halfWidth *= 0.75;
+            halfHeight *= 0.75;
+        }
+        if (null == inner) {
+            // An empty rectangle accepts nothing
+            inner = new double[]{Double.NaN, Double.NaN, Double.NaN, Double.NaN};
+        }
+        innerMinX = inner[0];
+        innerMinY = inner[1];
+        innerMaxX = inner[2];
+        innerMaxY = inner[3];
+    }
+
+    /**
+     * Tests whether a point is inside the polygon, with the even-odd rule.
+     *
+     * @param x the point's x.
+     * @param y the point's y.
+     * @return true if the point is inside.
+     */
+    public boolean contains(double x, double y) {
+        if (x < minX || x > maxX || y < minY || y > maxY) {
+            return false;
+        }
+        if (x > innerMinX && x < innerMaxX && y > innerMinY && y < innerMaxY) {
+            return true;
+        }
+        return containsByEdges(x, y);
+    }
+
+    /**
+     * Keeps the store rows whose points are inside the polygon.
+     *
+     * @param store the store.
+     * @param rows the rows to test, such as candidates from a LayerIndex.
+     * @return the number of rows inside the polygon, which are moved to the
+     * front of the array in their original order.
+     */
+    public int filter(CrimeFeatureStore store, int[] rows) {
+        int count = 0;
+        for (int row : rows) {
+            if (contains(store.x(row), store.y(row))) {
+                rows[count++] = row;
+            }
+        }
+        return count;
+    }
+
+    private boolean containsByEdges(double x, double y) {
+        int band = band(y);
+        boolean inside = false;
+        for (int k = bandStarts[band]; k < bandStarts[band + 1]; k++) {
+            int e = bandEdges[k];
+            double y1 = edges[4 * e + 1];
+            double y2 = edges[4 * e + 3];
+            if ((y1 > y) != (y2 > y)) {
+                double x1 = edges[4 * e];
+                double x2 = edges[4 * e + 2];
+                if (x < x1 + (y - y1) * (x2 - x1) / (y2 - y1)) {
+                    inside = !inside;
+                }
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * Tests whether any edge has a point strictly inside a rectangle, by
+     * clipping each edge to the rectangle.
+     */
+    private boolean anyEdgeEnters(double[] rectangle) {
+        for (int e = 0; e < edges.length / 4; e++) {
+            double x1 = edges[4 * e];
+            double y1 = edges[4 * e + 1];
+            double dx = edges[4 * e + 2] - x1;
+            double dy = edges[4 * e + 3] - y1;
+            double t0 = 0.0;
+            double t1 = 1.0;
+            double[] p = {-dx, dx, -dy, dy};
+            double[] q = {x1 - rectangle[0], rectangle[2] - x1, y1 - rectangle[1], rectangle[3] - y1};
+            boolean outside = false;
+            for (int i = 0; i < 4 && !outside; i++) {
+                if (0.0 == p[i]) {
+                    outside = q[i] <= 0.0;
+                } else {
+                    double t = q[i] / p[i];
+                    if (p[i] < 0.0) {
+                        t0 = Math.max(t0, t);
+                    } else {
+                        t1 = Math.min(t1, t);
+                    }
+                    outside = t0 >= t1;
+                }
+            }
+            if (!outside) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int band(double y) {
+        int band = (int) ((y - minY) / bandHeight);
+        return Math.max(0, Math.min(bandStarts.length - 2, band));
+    }
+
+    private double edgeMinY(int e) {
+        return Math.min(edges[4 * e + 1], edges[4 * e + 3]);
+    }
+
+    private double edgeMaxY(int e) {
+        return Math.max(edges[4 * e + 1], edges[4 * e + 3]);
+    }
+
+    /**
+     * Copies each part of a polygon into an array of interleaved x and y.
+     */
+    private static double[][] toRings(Polygon polygon) {
+        double[][] rings = new double[polygon.getParts().size()][];
+        for (int p = 0; p < rings.length; p++) {
+            ImmutablePart part = polygon.getParts().get(p);
+            double[] ring = new double[2 * part.getPointCount()];
+            for (int i = 0; i < part.getPointCount(); i++) {
+                Point point = part.getPoint(i);
+                ring[2 * i] = point.getX();
+                ring[2 * i + 1] = point.getY();
+            }
+            rings[p] = ring;
+        }
+        return rings;
+    }
+
+}
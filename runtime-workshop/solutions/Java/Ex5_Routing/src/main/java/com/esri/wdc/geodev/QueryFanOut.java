@@ -0,0 +1,176 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import com.esri.arcgisruntime.data.FeatureQueryResult;
+import com.esri.arcgisruntime.geometry.Geometry;
+import com.esri.arcgisruntime.geometry.GeometryEngine;
+import com.esri.arcgisruntime.layers.FeatureLayer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs one query per feature layer on a dedicated, bounded thread pool and
+ * aggregates the results into a single completion stage. Layers whose full
+ * extent does not intersect the query geometry are skipped, and the latency of
+ * each layer's query is recorded.
+ */
+public class QueryFanOut {
+
+    /**
+     * Starts the query for one layer.
+     */
+    public interface LayerQuery {
+
+        /**
+         * Starts a query. This runs on a fan-out pool thread.
+         *
+         * @param featureLayer the layer to query.
+         * @return a stage that completes with the query result, or with null if
+         * the layer needed no query.
+         */
+        CompletableFuture<FeatureQueryResult> start(FeatureLayer featureLayer);
+
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final Map<String, LatencyStats> latencies = new TreeMap<>();
+
+    /**
+     * Creates a fan-out service.
+     *
+     * @param threadCount the number of pool threads.
+     * @param queueCapacity the number of layer queries that may wait for a
+     * thread; when the queue is full, the submitting thread runs the query
+     * itself.
+     */
+    public QueryFanOut(int threadCount, int queueCapacity) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threadCount, threadCount, 30L, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queueCapacity),
+            runnable -> {
+                Thread thread = new Thread(runnable, "query-fan-out-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queries every layer whose full extent intersects a geometry.
+     *
+     * @param featureLayers the layers.
+     * @param geometry the query geometry.
+     * @param layerQuery starts the query for one layer.
+     * @param onSkipped called for each layer that is skipped because its full
+     * extent does not intersect the geometry.
+     * @return a stage that completes when every layer's query has completed,
+     * with the non-null result of each layer.
+     */
+    public CompletableFuture<Map<FeatureLayer, FeatureQueryResult>> query(List<FeatureLayer> featureLayers,
+        Geometry geometry, LayerQuery layerQuery, Consumer<FeatureLayer> onSkipped) {
+        List<FeatureLayer> queried = new ArrayList<>();
+        List<CompletableFuture<FeatureQueryResult>> futures = new ArrayList<>();
+        for (FeatureLayer featureLayer : featureLayers) {
+            if (!intersectsFullExtent(featureLayer, geometry)) {
+                onSkipped.accept(featureLayer);
+                continue;
+            }
+            long startTime = System.nanoTime();
+            CompletableFuture<FeatureQueryResult> future = CompletableFuture
+                .supplyAsync(() -> layerQuery.start(featureLayer), executor)
+                .thenCompose(stage -> stage);
+            future.thenRun(() -> recordLatency(featureLayer, System.nanoTime() - startTime));
+            queried.add(featureLayer);
+            futures.add(future);
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            Map<FeatureLayer, FeatureQueryResult> results = new HashMap<>();
+            for (int i = 0; i < queried.size(); i++) {
+                FeatureQueryResult result = futures.get(i).join();
+                if (null != result) {
+                    results.put(queried.get(i), result);
+                }
+            }
+            return results;
+        });
+    }
+
+    /**
+     * Returns a line per layer with its query count and mean and maximum
+     * latency.
+     *
+     * @return the latency report.
+     */
+    public String getLatencyReport() {
+        StringBuilder report = new StringBuilder();
+        synchronized (latencies) {
+            latencies.forEach((layerName, stats) -> report.append(String.format(
+                "%s: %d queries, mean %.1f ms, max %.1f ms%n", layerName, stats.count,
+                stats.totalNanos / 1e6 / stats.count, stats.maxNanos / 1e6)));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Stops the pool threads. Queries already handed to the runtime still
+     * complete.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static boolean intersectsFullExtent(FeatureLayer featureLayer, Geometry geometry) {
+        Geometry fullExtent = featureLayer.getFullExtent();
+        if (null == fullExtent || fullExtent.isEmpty()) {
+            // The extent is unknown, so the layer cannot be ruled out
+            return true;
+        }
+        if (fullExtent.getSpatialReference().getWkid() != geometry.getSpatialReference().getWkid()) {
+            fullExtent = GeometryEngine.project(fullExtent, geometry.getSpatialReference());
+        }
+        return GeometryEngine.intersects(fullExtent, geometry);
+    }
+
+    private void recordLatency(FeatureLayer featureLayer, long nanos) {
+        synchronized (latencies) {
+            LatencyStats stats = latencies.computeIfAbsent(String.valueOf(featureLayer.getName()),
+                name -> new LatencyStats());
+            stats.count++;
+            stats.totalNanos += nanos;
+            stats.maxNanos = Math.max(stats.maxNanos, nanos);
+        }
+    }
+
+    private static class LatencyStats {
+
+        private long count = 0;
+        private long totalNanos = 0;
+        private long maxNanos = 0;
+
+    }
+
+}
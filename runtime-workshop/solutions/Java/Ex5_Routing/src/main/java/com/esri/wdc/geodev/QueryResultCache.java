@@ -0,0 +1,206 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import com.esri.arcgisruntime.geometry.Point;
+import com.esri.arcgisruntime.layers.FeatureLayer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A bounded cache of the object IDs that buffer queries selected in each
+ * layer. Queries are keyed on their center snapped to a grid of about ten
+ * meters, their radius and their filters, so clicks on the same block share
+ * one entry. Callers snap the center with {@link #quantize} before querying,
+ * so that a cached result is exactly the result of the query it replaces.
+ * <p>
+ * The cache is weighed by the number of object IDs it holds, and the least
+ * recently used entries are evicted when the weight exceeds the limit. Call
+ * {@link #invalidate} when the data changes; results of queries keyed before
+ * that are not stored.
+ */
+public class QueryResultCache {
+
+    /**
+     * The size of the grid that query centers are snapped to, in degrees.
+     */
+    public static final double QUANTUM_DEGREES = 0.0001;
+
+    // The weight of an entry beyond its object IDs, in object IDs
+    private static final long ENTRY_WEIGHT = 16;
+
+    private final long maxWeight;
+    private final LinkedHashMap<Key, Map<FeatureLayer, long[]>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight = 0;
+    private long generation = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxWeight the largest total number of object IDs to hold.
+     */
+    public QueryResultCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Snaps a point to the cache's grid.
+     *
+     * @param point the point, in any spatial reference.
+     * @return the nearest grid point, in WGS 84.
+     */
+    public static Point quantize(Point point) {
+        Point wgs84Point = (Point) LayerIndex.toIndexSpatialReference(point);
+        return new Point(Math.round(wgs84Point.getX() / QUANTUM_DEGREES) * QUANTUM_DEGREES,
+            Math.round(wgs84Point.getY() / QUANTUM_DEGREES) * QUANTUM_DEGREES, LayerIndex.SPATIAL_REFERENCE);
+    }
+
+    /**
+     * Creates the key of a query. A key created before the cache is
+     * invalidated never matches an entry created after it.
+     *
+     * @param center the query center, in any spatial reference.
+     * @param radiusMeters the query radius in meters.
+     * @param filters the query's other filters, which must implement equals
+     * and hashCode.
+     * @return the key.
+     */
+    public synchronized Key createKey(Point center, double radiusMeters, Object filters) {
+        Point wgs84Center = (Point) LayerIndex.toIndexSpatialReference(center);
+        return new Key(generation, Math.round(wgs84Center.getX() / QUANTUM_DEGREES),
+            Math.round(wgs84Center.getY() / QUANTUM_DEGREES), radiusMeters, filters);
+    }
+
+    /**
+     * Returns the object IDs stored for a query.
+     *
+     * @param key the query's key.
+     * @return the object IDs selected in each layer, or null if the query is
+     * not in the cache.
+     */
+    public synchronized Map<FeatureLayer, long[]> get(Key key) {
+        Map<FeatureLayer, long[]> objectIds = entries.get(key);
+        if (null == objectIds) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return objectIds;
+    }
+
+    /**
+     * Stores the object IDs selected by a query, unless the cache was
+     * invalidated after the key was created.
+     *
+     * @param key the query's key.
+     * @param objectIds the object IDs selected in each layer.
+     */
+    public synchronized void put(Key key, Map<FeatureLayer, long[]> objectIds) {
+        if (key.generation != generation) {
+            return;
+        }
+        Map<FeatureLayer, long[]> copy = Collections.unmodifiableMap(new HashMap<>(objectIds));
+        Map<FeatureLayer, long[]> previous = entries.put(key, copy);
+        if (null != previous) {
+            weight -= weigh(previous);
+        }
+        weight += weigh(copy);
+        Iterator<Map<FeatureLayer, long[]>> eldest = entries.values().iterator();
+        while (weight > maxWeight && eldest.hasNext()) {
+            weight -= weigh(eldest.next());
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Removes every entry, for example when the mobile map package is loaded
+     * again.
+     */
+    public synchronized void invalidate() {
+        generation++;
+        entries.clear();
+        weight = 0;
+    }
+
+    /**
+     * Returns the fraction of lookups that found an entry.
+     *
+     * @return the hit rate, or 0 if there have been no lookups.
+     */
+    public synchronized double getHitRate() {
+        return 0 == hits + misses ? 0.0 : (double) hits / (hits + misses);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Query result cache: %d hits, %d misses (%.1f%% hit rate), %d evictions, "
+            + "%d entries holding %d of %d", hits, misses, 100.0 * getHitRate(), evictions, entries.size(),
+            weight, maxWeight);
+    }
+
+    private static long weigh(Map<FeatureLayer, long[]> objectIds) {
+        long entryWeight = ENTRY_WEIGHT;
+        for (long[] layerObjectIds : objectIds.values()) {
+            entryWeight += layerObjectIds.length;
+        }
+        return entryWeight;
+    }
+
+    /**
+     * Identifies a query by its grid cell, radius and filters.
+     */
+    public static final class Key {
+
+        private final long generation;
+        private final long column;
+        private final long row;
+        private final double radiusMeters;
+        private final Object filters;
+
+        private Key(long generation, long column, long row, double radiusMeters, Object filters) {
+            this.generation = generation;
+            this.column = column;
+            this.row = row;
+            this.radiusMeters = radiusMeters;
+            this.filters = filters;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return generation == other.generation && column == other.column && row == other.row
+                && radiusMeters == other.radiusMeters && Objects.equals(filters, other.filters);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(generation, column, row, radiusMeters, filters);
+        }
+
+    }
+
+}
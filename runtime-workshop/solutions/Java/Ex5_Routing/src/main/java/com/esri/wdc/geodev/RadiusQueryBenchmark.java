@@ -0,0 +1,134 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares three ways of finding the points within a radius of a center:
+ * containment in a 1000-vertex geodesic circle polygon, the exact-radius
+ * RadiusSearch, and Vincenty's formula for every point. It reports the time
+ * per point and how many points each method misclassifies relative to
+ * Vincenty's formula. The points are random, around downtown Washington, so
+ * the benchmark does not need the ArcGIS Runtime or the crime data.
+ * <p>
+ * Usage: {@code RadiusQueryBenchmark [pointCount] [radiusMeters]}. With Maven,
+ * run {@code mvn exec:java -DmainClass=com.esri.wdc.geodev.RadiusQueryBenchmark}.
+ */
+public class RadiusQueryBenchmark {
+
+    private static final double CENTER_LON = -77.0365;
+    private static final double CENTER_LAT = 38.8977;
+    private static final int POLYGON_VERTEX_COUNT = 1000;
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args optionally the number of points and the radius in meters.
+     */
+    public static void main(String[] args) {
+        int pointCount = 0 < args.length ? Integer.parseInt(args[0]) : 1000000;
+        double radiusMeters = 1 < args.length ? Double.parseDouble(args[1]) : WorkshopApp.BUFFER_RADIUS_METERS;
+
+        // Scatter points over a square a little larger than the circle, so most are near the boundary
+        Random random = new Random(20161009L);
+        double[] box = RadiusSearch.boundingBox(CENTER_LON, CENTER_LAT, radiusMeters);
+        double[] x = new double[pointCount];
+        double[] y = new double[pointCount];
+        for (int i = 0; i < pointCount; i++) {
+            x[i] = box[0] + random.nextDouble() * (box[2] - box[0]);
+            y[i] = box[1] + random.nextDouble() * (box[3] - box[1]);
+        }
+        int[] allRows = new int[pointCount];
+        for (int i = 0; i < pointCount; i++) {
+            allRows[i] = i;
+        }
+        RadiusSearch radiusSearch = new RadiusSearch(x, y);
+
+        int[] rows = allRows.clone();
+        int exactCount = radiusSearch.filterExactly(rows, CENTER_LON, CENTER_LAT, radiusMeters);
+        boolean[] exact = new boolean[pointCount];
+        for (int i = 0; i < exactCount; i++) {
+            exact[rows[i]] = true;
+        }
+
+        long polygonBuildNanos = System.nanoTime();
+        PreparedPolygon polygon = new PreparedPolygon(new double[][]{
+            Geodesics.circle(CENTER_LON, CENTER_LAT, radiusMeters, POLYGON_VERTEX_COUNT)});
+        polygonBuildNanos = System.nanoTime() - polygonBuildNanos;
+
+        System.out.printf("%d points, radius %.0f m, %d within the radius%n", pointCount, radiusMeters, exactCount);
+        System.out.printf("Building and preparing the %d-vertex polygon took %.2f ms%n",
+            POLYGON_VERTEX_COUNT, polygonBuildNanos / 1e6);
+        report("Polygon containment", pointCount, exact, allRows, rowsIn -> {
+            int count = 0;
+            for (int row : rowsIn) {
+                if (polygon.contains(x[row], y[row])) {
+                    rowsIn[count++] = row;
+                }
+            }
+            return count;
+        });
+        report("Exact radius search", pointCount, exact, allRows,
+            rowsIn -> radiusSearch.filter(rowsIn, CENTER_LON, CENTER_LAT, radiusMeters));
+        report("Vincenty for every point", pointCount, exact, allRows,
+            rowsIn -> radiusSearch.filterExactly(rowsIn, CENTER_LON, CENTER_LAT, radiusMeters));
+    }
+
+    /**
+     * Times a method over every point and counts its misclassifications.
+     */
+    private static void report(String name, int pointCount, boolean[] exact, int[] allRows, Method method) {
+        long[] nanos = new long[MEASURED_ROUNDS];
+        int[] rows = null;
+        int count = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            rows = allRows.clone();
+            long startTime = System.nanoTime();
+            count = method.filter(rows);
+            if (round >= WARMUP_ROUNDS) {
+                nanos[round - WARMUP_ROUNDS] = System.nanoTime() - startTime;
+            }
+        }
+        Arrays.sort(nanos);
+
+        boolean[] found = new boolean[pointCount];
+        for (int i = 0; i < count; i++) {
+            found[rows[i]] = true;
+        }
+        int wrong = 0;
+        for (int i = 0; i < pointCount; i++) {
+            if (found[i] != exact[i]) {
+                wrong++;
+            }
+        }
+        System.out.printf("%-26s median %7.1f ns/point, %d found, %d misclassified%n",
+            name, (double) nanos[MEASURED_ROUNDS / 2] / pointCount, count, wrong);
+    }
+
+    /**
+     * A way of keeping the rows within the radius.
+     */
+    private interface Method {
+
+        int filter(int[] rows);
+
+    }
+
+}
@@ -0,0 +1,149 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+/**
+ * Finds the rows of a CrimeFeatureStore within an exact geodesic distance of a
+ * point, without a buffer polygon. The store's coordinates are copied once
+ * into radians, with the cosine of each latitude, so that the haversine
+ * formula costs two sines per point. The haversine distance on a sphere is
+ * within about half a percent of the ellipsoidal distance. Points it places
+ * clearly inside or outside the radius are decided at once, and the few near
+ * the boundary are measured on the ellipsoid with Vincenty's formula.
+ */
+public class RadiusSearch {
+
+    /**
+     * The largest relative difference between the haversine distance on the
+     * mean sphere and the geodesic distance on the ellipsoid, with a margin.
+     */
+    static final double SPHERE_ERROR = 0.007;
+
+    // The shortest distance spanned by a degree of latitude, at the equator
+    private static final double MIN_METERS_PER_DEGREE = 110574.0;
+
+    private final double[] lonDegrees;
+    private final double[] latDegrees;
+    private final double[] lonRadians;
+    private final double[] latRadians;
+    private final double[] cosLat;
+
+    /**
+     * Prepares a store for radius searches.
+     *
+     * @param store the store.
+     */
+    public RadiusSearch(CrimeFeatureStore store) {
+        this(store.copyX(), store.copyY());
+    }
+
+    /**
+     * Prepares points for radius searches. Rows are indexes into the arrays.
+     *
+     * @param lonDegrees the longitudes in degrees.
+     * @param latDegrees the latitudes in degrees.
+     */
+    RadiusSearch(double[] lonDegrees, double[] latDegrees) {
+        this.lonDegrees = lonDegrees;
+        this.latDegrees = latDegrees;
+        lonRadians = new double[lonDegrees.length];
+        latRadians = new double[lonDegrees.length];
+        cosLat = new double[lonDegrees.length];
+        for (int row = 0; row < lonDegrees.length; row++) {
+            lonRadians[row] = Math.toRadians(lonDegrees[row]);
+            latRadians[row] = Math.toRadians(latDegrees[row]);
+            cosLat[row] = Math.cos(latRadians[row]);
+        }
+    }
+
+    /**
+     * Returns a box in degrees that contains every point within a distance of
+     * a center, for finding candidates in a spatial index.
+     *
+     * @param lon the center longitude in degrees.
+     * @param lat the center latitude in degrees.
+     * @param radiusMeters the distance in meters.
+     * @return the box as minimum x, minimum y, maximum x and maximum y.
+     */
+    public static double[] boundingBox(double lon, double lat, double radiusMeters) {
+        double dLat = radiusMeters * (1.0 + SPHERE_ERROR) / MIN_METERS_PER_DEGREE;
+        double maxAbsLat = Math.min(90.0, Math.abs(lat) + dLat);
+        double dLon = 90.0 <= maxAbsLat ? 180.0 : dLat / Math.cos(Math.toRadians(maxAbsLat));
+        return new double[]{lon - dLon, lat - dLat, lon + dLon, lat + dLat};
+    }
+
+    /**
+     * Keeps the rows within a geodesic distance of a center.
+     *
+     * @param rows the rows to test, such as candidates from a LayerIndex.
+     * @param lon the center longitude in degrees.
+     * @param lat the center latitude in degrees.
+     * @param radiusMeters the distance in meters.
+     * @return the number of rows within the distance, which are moved to the
+     * front of the array in their original order.
+     */
+    public int filter(int[] rows, double lon, double lat, double radiusMeters) {
+        double centerLon = Math.toRadians(lon);
+        double centerLat = Math.toRadians(lat);
+        double centerCosLat = Math.cos(centerLat);
+        // Haversine values below hInside are surely inside; above hOutside, surely outside
+        double hInside = haversineOf(radiusMeters * (1.0 - SPHERE_ERROR));
+        double hOutside = haversineOf(radiusMeters * (1.0 + SPHERE_ERROR));
+        int count = 0;
+        for (int row : rows) {
+            double sinHalfDLat = Math.sin((latRadians[row] - centerLat) * 0.5);
+            double sinHalfDLon = Math.sin((lonRadians[row] - centerLon) * 0.5);
+            double h = sinHalfDLat * sinHalfDLat + centerCosLat * cosLat[row] * sinHalfDLon * sinHalfDLon;
+            if (h <= hInside || (h < hOutside
+                && Geodesics.distanceMeters(lon, lat, lonDegrees[row], latDegrees[row]) <= radiusMeters)) {
+                rows[count++] = row;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Tests the rows with Vincenty's formula alone, for comparison with
+     * {@link #filter}.
+     *
+     * @param rows the rows to test.
+     * @param lon the center longitude in degrees.
+     * @param lat the center latitude in degrees.
+     * @param radiusMeters the distance in meters.
+     * @return the number of rows within the distance, moved to the front of the
+     * array.
+     */
+    int filterExactly(int[] rows, double lon, double lat, double radiusMeters) {
+        int count = 0;
+        for (int row : rows) {
+            if (Geodesics.distanceMeters(lon, lat, lonDegrees[row], latDegrees[row]) <= radiusMeters) {
+                rows[count++] = row;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the haversine of the central angle for a distance on the mean
+     * sphere.
+     */
+    private static double haversineOf(double distanceMeters) {
+        double halfAngle = Math.min(Math.PI / 2.0, distanceMeters / Geodesics.MEAN_RADIUS / 2.0);
+        double sinHalfAngle = Math.sin(halfAngle);
+        return sinHalfAngle * sinHalfAngle;
+    }
+
+}
@@ -0,0 +1,365 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import java.util.Arrays;
+
+/**
+ * An immutable compressed set of store rows, laid out like a roaring bitmap.
+ * Rows are split into chunks of 65536 by their upper 16 bits. A chunk with
+ * few rows holds their lower 16 bits as a sorted array; a chunk with more than
+ * 4096 rows holds a 65536-bit bitmap, which is then the smaller of the two.
+ * Intersections and unions work chunk by chunk and pick a loop for each pair
+ * of containers, so sparse sets cost little and dense sets are combined 64
+ * rows at a time.
+ */
+public final class RowBitmap {
+
+    // The largest number of rows held in a sorted array rather than a bitmap
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1 << 10;
+
+    private static final RowBitmap EMPTY = new RowBitmap(new char[0], new char[0][], new long[0][], new int[0]);
+
+    // For each chunk, in ascending order: its upper 16 bits and either an array or a bitmap container
+    private final char[] keys;
+    private final char[][] arrays;
+    private final long[][] bitmaps;
+    private final int[] cardinalities;
+    private final int cardinality;
+
+    private RowBitmap(char[] keys, char[][] arrays, long[][] bitmaps, int[] cardinalities) {
+        this.keys = keys;
+        this.arrays = arrays;
+        this.bitmaps = bitmaps;
+        this.cardinalities = cardinalities;
+        int total = 0;
+        for (int count : cardinalities) {
+            total += count;
+        }
+        this.cardinality = total;
+    }
+
+    /**
+     * Returns the empty set.
+     *
+     * @return the empty set.
+     */
+    public static RowBitmap empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Creates a set of rows.
+     *
+     * @param rows the rows, in any order and possibly repeated. The array is
+     * not modified.
+     * @return the set.
+     */
+    public static RowBitmap of(int[] rows) {
+        int[] sorted = rows.clone();
+        Arrays.sort(sorted);
+        return ofSorted(sorted, sorted.length);
+    }
+
+    /**
+     * Creates a set of rows that are already sorted.
+     *
+     * @param rows the rows in ascending order, possibly repeated.
+     * @param count the number of rows of the array to use.
+     * @return the set.
+     */
+    static RowBitmap ofSorted(int[] rows, int count) {
+        Builder builder = new Builder();
+        int start = 0;
+        while (start < count) {
+            char key = (char) (rows[start] >>> 16);
+            int end = start;
+            while (end < count && rows[end] >>> 16 == key) {
+                end++;
+            }
+            char[] lows = new char[end - start];
+            int size = 0;
+            for (int i = start; i < end; i++) {
+                char low = (char) rows[i];
+                if (0 == size || lows[size - 1] != low) {
+                    lows[size++] = low;
+                }
+            }
+            builder.addArray(key, lows, size);
+            start = end;
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the number of rows in the set.
+     *
+     * @return the number of rows.
+     */
+    public int cardinality() {
+        return cardinality;
+    }
+
+    /**
+     * Tests whether a row is in the set.
+     *
+     * @param row the row.
+     * @return true if the row is in the set.
+     */
+    public boolean contains(int row) {
+        int chunk = Arrays.binarySearch(keys, (char) (row >>> 16));
+        if (row < 0 || chunk < 0) {
+            return false;
+        }
+        char low = (char) row;
+        if (null != bitmaps[chunk]) {
+            return 0 != (bitmaps[chunk][low >>> 6] & (1L << low));
+        }
+        return 0 <= Arrays.binarySearch(arrays[chunk], 0, cardinalities[chunk], low);
+    }
+
+    /**
+     * Returns the rows in both this set and another.
+     *
+     * @param other the other set.
+     * @return the intersection.
+     */
+    public RowBitmap and(RowBitmap other) {
+        Builder builder = new Builder();
+        int i = 0;
+        int j = 0;
+        while (i < keys.length && j < other.keys.length) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                if (null != bitmaps[i] && null != other.bitmaps[j]) {
+                    long[] words = new long[BITMAP_WORDS];
+                    for (int w = 0; w < BITMAP_WORDS; w++) {
+                        words[w] = bitmaps[i][w] & other.bitmaps[j][w];
+                    }
+                    builder.addBitmap(keys[i], words);
+                } else if (null != bitmaps[i] || null != other.bitmaps[j]) {
+                    // Keep the array's values whose bits are set
+                    char[] array = null == bitmaps[i] ? arrays[i] : other.arrays[j];
+                    int arraySize = null == bitmaps[i] ? cardinalities[i] : other.cardinalities[j];
+                    long[] words = null == bitmaps[i] ? other.bitmaps[j] : bitmaps[i];
+                    char[] lows = new char[arraySize];
+                    int size = 0;
+                    for (int k = 0; k < arraySize; k++) {
+                        if (0 != (words[array[k] >>> 6] & (1L << array[k]))) {
+                            lows[size++] = array[k];
+                        }
+                    }
+                    builder.addArray(keys[i], lows, size);
+                } else {
+                    char[] lows = new char[Math.min(cardinalities[i], other.cardinalities[j])];
+                    int size = intersect(arrays[i], cardinalities[i], other.arrays[j], other.cardinalities[j], lows);
+                    builder.addArray(keys[i], lows, size);
+                }
+                i++;
+                j++;
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the rows in this set, another or both.
+     *
+     * @param other the other set.
+     * @return the union.
+     */
+    public RowBitmap or(RowBitmap other) {
+        Builder builder = new Builder();
+        int i = 0;
+        int j = 0;
+        while (i < keys.length || j < other.keys.length) {
+            if (j == other.keys.length || (i < keys.length && keys[i] < other.keys[j])) {
+                builder.addContainer(keys[i], arrays[i], bitmaps[i], cardinalities[i]);
+                i++;
+            } else if (i == keys.length || keys[i] > other.keys[j]) {
+                builder.addContainer(other.keys[j], other.arrays[j], other.bitmaps[j], other.cardinalities[j]);
+                j++;
+            } else {
+                if (null == bitmaps[i] && null == other.bitmaps[j]
+                    && cardinalities[i] + other.cardinalities[j] <= ARRAY_MAX) {
+                    char[] lows = new char[cardinalities[i] + other.cardinalities[j]];
+                    int size = merge(arrays[i], cardinalities[i], other.arrays[j], other.cardinalities[j], lows);
+                    builder.addArray(keys[i], lows, size);
+                } else {
+                    long[] words = toWords(arrays[i], bitmaps[i], cardinalities[i]);
+                    if (null == other.bitmaps[j]) {
+                        for (int k = 0; k < other.cardinalities[j]; k++) {
+                            words[other.arrays[j][k] >>> 6] |= 1L << other.arrays[j][k];
+                        }
+                    } else {
+                        for (int w = 0; w < BITMAP_WORDS; w++) {
+                            words[w] |= other.bitmaps[j][w];
+                        }
+                    }
+                    builder.addBitmap(keys[i], words);
+                }
+                i++;
+                j++;
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the rows in the set.
+     *
+     * @return the rows in ascending order.
+     */
+    public int[] toArray() {
+        int[] rows = new int[cardinality];
+        int n = 0;
+        for (int chunk = 0; chunk < keys.length; chunk++) {
+            int high = keys[chunk] << 16;
+            if (null == bitmaps[chunk]) {
+                for (int k = 0; k < cardinalities[chunk]; k++) {
+                    rows[n++] = high | arrays[chunk][k];
+                }
+            } else {
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    long word = bitmaps[chunk][w];
+                    while (0 != word) {
+                        rows[n++] = high | (w << 6) | Long.numberOfTrailingZeros(word);
+                        word &= word - 1;
+                    }
+                }
+            }
+        }
+        return rows;
+    }
+
+    private static int intersect(char[] a, int aSize, char[] b, int bSize, char[] out) {
+        int i = 0;
+        int j = 0;
+        int size = 0;
+        while (i < aSize && j < bSize) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[size++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return size;
+    }
+
+    private static int merge(char[] a, int aSize, char[] b, int bSize, char[] out) {
+        int i = 0;
+        int j = 0;
+        int size = 0;
+        while (i < aSize || j < bSize) {
+            if (j == bSize || (i < aSize && a[i] < b[j])) {
+                out[size++] = a[i++];
+            } else if (i == aSize || a[i] > b[j]) {
+                out[size++] = b[j++];
+            } else {
+                out[size++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return size;
+    }
+
+    private static long[] toWords(char[] array, long[] bitmap, int cardinality) {
+        if (null != bitmap) {
+            return bitmap.clone();
+        }
+        long[] words = new long[BITMAP_WORDS];
+        for (int k = 0; k < cardinality; k++) {
+            words[array[k] >>> 6] |= 1L << array[k];
+        }
+        return words;
+    }
+
+    /**
+     * Collects chunks in ascending order of their keys, storing each in the
+     * smaller kind of container and dropping empty ones.
+     */
+    private static class Builder {
+
+        private char[] keys = new char[4];
+        private char[][] arrays = new char[4][];
+        private long[][] bitmaps = new long[4][];
+        private int[] cardinalities = new int[4];
+        private int size = 0;
+
+        void addArray(char key, char[] lows, int count) {
+            if (count <= ARRAY_MAX) {
+                addContainer(key, lows, null, count);
+            } else {
+                addContainer(key, null, toWords(lows, null, count), count);
+            }
+        }
+
+        void addBitmap(char key, long[] words) {
+            int count = 0;
+            for (long word : words) {
+                count += Long.bitCount(word);
+            }
+            if (count > ARRAY_MAX) {
+                addContainer(key, null, words, count);
+                return;
+            }
+            char[] lows = new char[count];
+            int n = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                long word = words[w];
+                while (0 != word) {
+                    lows[n++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            addContainer(key, lows, null, count);
+        }
+
+        // Containers are never modified after they are built, so they can be shared between sets
+        void addContainer(char key, char[] array, long[] bitmap, int count) {
+            if (0 == count) {
+                return;
+            }
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, 2 * size);
+                arrays = Arrays.copyOf(arrays, 2 * size);
+                bitmaps = Arrays.copyOf(bitmaps, 2 * size);
+                cardinalities = Arrays.copyOf(cardinalities, 2 * size);
+            }
+            keys[size] = key;
+            arrays[size] = array;
+            bitmaps[size] = bitmap;
+            cardinalities[size] = count;
+            size++;
+        }
+
+        RowBitmap build() {
+            return 0 == size ? EMPTY : new RowBitmap(Arrays.copyOf(keys, size), Arrays.copyOf(arrays, size),
+                Arrays.copyOf(bitmaps, size), Arrays.copyOf(cardinalities, size));
+        }
+
+    }
+
+}
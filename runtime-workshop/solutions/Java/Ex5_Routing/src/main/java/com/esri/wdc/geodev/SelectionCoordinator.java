@@ -0,0 +1,334 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import com.esri.arcgisruntime.concurrent.ListenableFuture;
+import com.esri.arcgisruntime.data.Feature;
+import com.esri.arcgisruntime.data.FeatureQueryResult;
+import com.esri.arcgisruntime.data.Field;
+import com.esri.arcgisruntime.data.QueryParameters;
+import com.esri.arcgisruntime.layers.FeatureLayer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Replaces the selection of feature layers so that only the latest request for
+ * each layer takes effect. Each request starts a new generation for its
+ * layer. Starting a generation cancels the layer's outstanding query, and a
+ * query that finishes after its generation has been superseded is dropped
+ * instead of being applied.
+ * <p>
+ * A new selection is applied as a difference from the previous one: features
+ * that stay selected are left alone, and only the features that enter or
+ * leave the selection are selected or unselected. Sweeping a buffer along a
+ * street then changes a few highlights per click instead of redrawing them
+ * all. This assumes the coordinator is the only thing that changes the
+ * selection of its layers.
+ */
+public class SelectionCoordinator {
+
+    private final Map<FeatureLayer, LayerState> layerStates = new WeakHashMap<>();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong featuresSelected = new AtomicLong();
+    private final AtomicLong featuresUnselected = new AtomicLong();
+    private final AtomicLong featuresKept = new AtomicLong();
+
+    /**
+     * Queries a layer's feature table and, if no newer request for the layer
+     * has been made by the time the query finishes, makes the result the
+     * layer's selection.
+     *
+     * @param featureLayer the layer.
+     * @param query the query.
+     * @return a stage that completes with the query result once it is the
+     * layer's selection, or is cancelled if the request is superseded.
+     */
+    public CompletableFuture<FeatureQueryResult> select(FeatureLayer featureLayer, QueryParameters query) {
+        LayerState state = getLayerState(featureLayer);
+        submitted.incrementAndGet();
+        CompletableFuture<FeatureQueryResult> completion = new CompletableFuture<>();
+        synchronized (state) {
+            long generation = state.supersede();
+            ListenableFuture<FeatureQueryResult> future = featureLayer.getFeatureTable().queryFeaturesAsync(query);
+            state.outstanding = future;
+            state.completion = completion;
+            future.addDoneListener(() -> onQueryDone(featureLayer, state, generation, future, completion, null));
+        }
+        return completion;
+    }
+
+    /**
+     * Makes the features with the given object IDs the layer's selection,
+     * querying only the features that are not already selected. This suits a
+     * selection that changes a little at a time, such as one being dragged
+     * out. Like {@link #select}, a newer request for the layer supersedes
+     * this one.
+     *
+     * @param featureLayer the layer.
+     * @param objectIds the object IDs to select.
+     * @return a stage that completes once the features are the layer's
+     * selection, with the result of the query for the features that were not
+     * already selected, or with null if no query was needed. It is cancelled
+     * if the request is superseded.
+     */
+    public CompletableFuture<FeatureQueryResult> selectObjectIds(FeatureLayer featureLayer, long[] objectIds) {
+        LayerState state = getLayerState(featureLayer);
+        submitted.incrementAndGet();
+        CompletableFuture<FeatureQueryResult> completion = new CompletableFuture<>();
+        synchronized (state) {
+            long generation = state.supersede();
+            Set<Long> keptIds = new HashSet<>();
+            QueryParameters query = new QueryParameters();
+            for (long objectId : objectIds) {
+                if (state.selected.containsKey(objectId)) {
+                    keptIds.add(objectId);
+                } else {
+                    query.getObjectIds().add(objectId);
+                }
+            }
+            if (query.getObjectIds().isEmpty()) {
+                // Only features leave the selection, so there is nothing to query
+                applySelection(featureLayer, state, Collections.emptyList(), null, keptIds);
+                completed.incrementAndGet();
+                completion.complete(null);
+                return completion;
+            }
+            ListenableFuture<FeatureQueryResult> future = featureLayer.getFeatureTable().queryFeaturesAsync(query);
+            state.outstanding = future;
+            state.completion = completion;
+            future.addDoneListener(() -> onQueryDone(featureLayer, state, generation, future, completion, keptIds));
+        }
+        return completion;
+    }
+
+    /**
+     * Clears a layer's selection and supersedes any outstanding query for the
+     * layer.
+     *
+     * @param featureLayer the layer.
+     */
+    public void clear(FeatureLayer featureLayer) {
+        LayerState state = getLayerState(featureLayer);
+        synchronized (state) {
+            state.supersede();
+            featureLayer.clearSelection();
+            state.selected.clear();
+        }
+    }
+
+    /**
+     * Returns the number of queries started.
+     *
+     * @return the number of queries started.
+     */
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    /**
+     * Returns the number of queries whose results became a selection.
+     *
+     * @return the number of completed queries.
+     */
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /**
+     * Returns the number of queries cancelled before they finished.
+     *
+     * @return the number of cancelled queries.
+     */
+    public long getCancelledCount() {
+        return cancelled.get();
+    }
+
+    /**
+     * Returns the number of queries that finished after being superseded and
+     * whose results were discarded.
+     *
+     * @return the number of dropped queries.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the number of features that stayed selected from one selection
+     * to the next and so were not unselected and selected again.
+     *
+     * @return the number of features kept.
+     */
+    public long getFeaturesKeptCount() {
+        return featuresKept.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d selection queries: %d completed, %d cancelled, %d dropped; "
+            + "%d features selected, %d unselected, %d kept",
+            getSubmittedCount(), getCompletedCount(), getCancelledCount(), getDroppedCount(),
+            featuresSelected.get(), featuresUnselected.get(), getFeaturesKeptCount());
+    }
+
+    private LayerState getLayerState(FeatureLayer featureLayer) {
+        synchronized (layerStates) {
+            return layerStates.computeIfAbsent(featureLayer, layer -> new LayerState());
+        }
+    }
+
+    private void onQueryDone(FeatureLayer featureLayer, LayerState state, long generation,
+        ListenableFuture<FeatureQueryResult> future, CompletableFuture<FeatureQueryResult> completion,
+        Set<Long> keptIds) {
+        if (future.isCancelled()) {
+            completion.cancel(false);
+            return;
+        }
+        try {
+            FeatureQueryResult result = future.get();
+            synchronized (state) {
+                if (generation != state.generation) {
+                    dropped.incrementAndGet();
+                    completion.cancel(false);
+                    return;
+                }
+                state.outstanding = null;
+                state.completion = null;
+                applySelection(featureLayer, state, result, getObjectIdField(result), keptIds);
+            }
+            completed.incrementAndGet();
+            completion.complete(result);
+        } catch (InterruptedException | ExecutionException ex) {
+            Logger.getLogger(SelectionCoordinator.class.getName()).log(Level.SEVERE, null, ex);
+            completion.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * Makes the given features, plus any already selected features that are
+     * to be kept, the layer's selection by selecting the new features and
+     * unselecting the features that are no longer in it. If a feature has no
+     * object ID, the selection is replaced instead. Callers must hold the
+     * state's lock.
+     */
+    private void applySelection(FeatureLayer featureLayer, LayerState state, Iterable<Feature> features,
+        String objectIdField, Set<Long> keptIds) {
+        Map<Long, Feature> selected = new HashMap<>();
+        List<Feature> added = new ArrayList<>();
+        long kept = 0;
+        if (null != keptIds) {
+            for (Long id : keptIds) {
+                Feature previous = state.selected.remove(id);
+                if (null != previous) {
+                    selected.put(id, previous);
+                    kept++;
+                }
+            }
+        }
+        for (Feature feature : features) {
+            Object objectId = null == objectIdField ? null : feature.getAttributes().get(objectIdField);
+            if (!(objectId instanceof Number)) {
+                featureLayer.clearSelection();
+                featureLayer.selectFeatures(features);
+                state.selected.clear();
+                return;
+            }
+            long id = ((Number) objectId).longValue();
+            Feature previous = state.selected.remove(id);
+            if (null == previous) {
+                added.add(feature);
+                selected.put(id, feature);
+            } else {
+                // Keep the feature object that the layer knows as selected
+                selected.put(id, previous);
+                kept++;
+            }
+        }
+        // What remains of the previous selection has left it
+        if (!state.selected.isEmpty()) {
+            featureLayer.unselectFeatures(new ArrayList<>(state.selected.values()));
+        }
+        if (!added.isEmpty()) {
+            featureLayer.selectFeatures(added);
+        }
+        featuresSelected.addAndGet(added.size());
+        featuresUnselected.addAndGet(state.selected.size());
+        featuresKept.addAndGet(kept);
+        state.selected = selected;
+    }
+
+    /**
+     * Returns the name of a query result's object ID field.
+     *
+     * @param result the query result.
+     * @return the field name, or null if the result has no object ID field.
+     */
+    static String getObjectIdField(FeatureQueryResult result) {
+        if (null != result.getFields()) {
+            for (Field field : result.getFields()) {
+                if (Field.Type.OID == field.getFieldType()) {
+                    return field.getName();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The current generation, outstanding query and selected features of one
+     * layer.
+     */
+    private class LayerState {
+
+        private long generation = 0;
+        private ListenableFuture<FeatureQueryResult> outstanding = null;
+        private CompletableFuture<FeatureQueryResult> completion = null;
+        // The selected features by object ID
+        private Map<Long, Feature> selected = new HashMap<>();
+
+        /**
+         * Starts a new generation and cancels the outstanding query. Callers
+         * must hold this object's lock.
+         */
+        long supersede() {
+            if (null != outstanding && !outstanding.isDone() && outstanding.cancel(true)) {
+                cancelled.incrementAndGet();
+            }
+            if (null != completion) {
+                completion.cancel(false);
+            }
+            outstanding = null;
+            completion = null;
+            return ++generation;
+        }
+
+    }
+
+}
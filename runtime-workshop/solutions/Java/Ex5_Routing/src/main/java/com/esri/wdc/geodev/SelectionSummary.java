@@ -0,0 +1,220 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import com.esri.arcgisruntime.concurrent.ListenableFuture;
+import com.esri.arcgisruntime.data.StatisticDefinition;
+import com.esri.arcgisruntime.data.StatisticRecord;
+import com.esri.arcgisruntime.data.StatisticType;
+import com.esri.arcgisruntime.data.StatisticsQueryParameters;
+import com.esri.arcgisruntime.data.StatisticsQueryResult;
+import com.esri.arcgisruntime.geometry.Polygon;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.format.TextStyle;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Crime counts by offense, shift and day of the week for a buffer or area. For
+ * a buffer, offense and shift counts come from a grouped statistics query, so
+ * the runtime aggregates them without returning any features. The crime data
+ * stores report dates as text, which the runtime cannot group by weekday, so
+ * weekday counts are computed from the layer's columnar store. An area's rows
+ * are already known, so all of its counts come from the store.
+ */
+public class SelectionSummary {
+
+    private static final String COUNT_ALIAS = "crime_count";
+
+    private final Map<String, Long> byOffense = new TreeMap<>();
+    private final Map<String, Long> byShift = new TreeMap<>();
+    private final long[] byDayOfWeek = new long[7];
+    private long total = 0;
+
+    /**
+     * Summarizes the features of the indexed layers that intersect a buffer,
+     * were reported in a time window and pass a facet filter.
+     *
+     * @param layerIndexes the indexed layers.
+     * @param buffer the buffer.
+     * @param window the time window.
+     * @param facets the facet filter.
+     * @return a stage that completes with the summary.
+     */
+    public static CompletableFuture<SelectionSummary> query(Iterable<LayerIndex> layerIndexes, Polygon buffer,
+        TimeWindow window, FacetFilter facets) {
+        CompletableFuture<SelectionSummary> summaryFuture = CompletableFuture.completedFuture(new SelectionSummary());
+        for (LayerIndex layerIndex : layerIndexes) {
+            CompletableFuture<SelectionSummary> layerFuture = queryLayer(layerIndex, buffer, window, facets);
+            summaryFuture = summaryFuture.thenCombine(layerFuture, SelectionSummary::add);
+        }
+        return summaryFuture;
+    }
+
+    /**
+     * Summarizes store rows that are already known, such as the crimes joined
+     * to an area, from the layers' columnar stores without querying the
+     * runtime.
+     *
+     * @param rowsByLayer the rows of each indexed layer.
+     * @return the summary.
+     */
+    public static SelectionSummary ofRows(Map<LayerIndex, int[]> rowsByLayer) {
+        SelectionSummary summary = new SelectionSummary();
+        rowsByLayer.forEach((layerIndex, rows) -> {
+            CrimeFeatureStore store = layerIndex.getStore();
+            for (int row : rows) {
+                summary.byOffense.merge(columnValue(store.getOffense(), row), 1L, Long::sum);
+                summary.byShift.merge(columnValue(store.getShift(), row), 1L, Long::sum);
+                long time = store.reportTime(row);
+                if (CrimeFeatureStore.NO_TIME != time) {
+                    DayOfWeek day = Instant.ofEpochMilli(time).atZone(CrimeFeatureStore.TIME_ZONE).getDayOfWeek();
+                    summary.byDayOfWeek[day.ordinal()]++;
+                }
+            }
+            summary.total += rows.length;
+        });
+        return summary;
+    }
+
+    private static CompletableFuture<SelectionSummary> queryLayer(LayerIndex layerIndex, Polygon buffer,
+        TimeWindow window, FacetFilter facets) {
+        CrimeFeatureStore store = layerIndex.getStore();
+        StatisticsQueryParameters params = new StatisticsQueryParameters(Collections.singletonList(
+            new StatisticDefinition(store.getObjectIdField(), StatisticType.COUNT, COUNT_ALIAS)));
+        params.getGroupByFieldNames().add(CrimeFeatureStore.OFFENSE_FIELD);
+        params.getGroupByFieldNames().add(CrimeFeatureStore.SHIFT_FIELD);
+        params.setGeometry(buffer);
+        if (!window.isAll() || !facets.isAll()) {
+            // Statistics queries take no object ID list, so restrict them to the candidates that pass the filters by SQL
+            long[] candidates = layerIndex.toObjectIds(layerIndex.queryCandidateRows(buffer, window, facets));
+            if (0 == candidates.length) {
+                return CompletableFuture.completedFuture(new SelectionSummary());
+            }
+            StringBuilder whereClause = new StringBuilder(store.getObjectIdField()).append(" IN (");
+            for (int i = 0; i < candidates.length; i++) {
+                whereClause.append(0 == i ? "" : ",").append(candidates[i]);
+            }
+            params.setWhereClause(whereClause.append(')').toString());
+        }
+
+        CompletableFuture<SelectionSummary> summaryFuture = new CompletableFuture<>();
+        ListenableFuture<StatisticsQueryResult> future
+            = layerIndex.getFeatureLayer().getFeatureTable().queryStatisticsAsync(params);
+        future.addDoneListener(() -> {
+            try {
+                SelectionSummary summary = new SelectionSummary();
+                Iterator<StatisticRecord> records = future.get().iterator();
+                while (records.hasNext()) {
+                    StatisticRecord record = records.next();
+                    Object count = record.getStatistics().get(COUNT_ALIAS);
+                    if (count instanceof Number) {
+                        long n = ((Number) count).longValue();
+                        summary.byOffense.merge(groupValue(record, CrimeFeatureStore.OFFENSE_FIELD), n, Long::sum);
+                        summary.byShift.merge(groupValue(record, CrimeFeatureStore.SHIFT_FIELD), n, Long::sum);
+                        summary.total += n;
+                    }
+                }
+                summary.countDaysOfWeek(layerIndex, buffer, window, facets);
+                summaryFuture.complete(summary);
+            } catch (InterruptedException | ExecutionException ex) {
+                summaryFuture.completeExceptionally(ex);
+            }
+        });
+        return summaryFuture;
+    }
+
+    /**
+     * Returns the number of features in the buffer.
+     *
+     * @return the total count.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Formats the summary of a buffer for display.
+     *
+     * @return the summary as text.
+     */
+    public String format() {
+        return format("buffer");
+    }
+
+    /**
+     * Formats the summary for display.
+     *
+     * @param place what the crimes are in, such as "buffer" or an area's name.
+     * @return the summary as text.
+     */
+    public String format(String place) {
+        StringBuilder text = new StringBuilder();
+        text.append(total).append(" crimes in ").append(place).append("\n\nBy offense:\n");
+        byOffense.forEach((offense, count) -> text.append("  ").append(offense).append(": ").append(count).append('\n'));
+        text.append("\nBy shift:\n");
+        byShift.forEach((shift, count) -> text.append("  ").append(shift).append(": ").append(count).append('\n'));
+        text.append("\nBy day of week:\n");
+        for (DayOfWeek day : DayOfWeek.values()) {
+            text.append("  ").append(day.getDisplayName(TextStyle.SHORT, Locale.getDefault()))
+                .append(": ").append(byDayOfWeek[day.ordinal()]).append('\n');
+        }
+        return text.toString();
+    }
+
+    private SelectionSummary add(SelectionSummary other) {
+        other.byOffense.forEach((key, count) -> byOffense.merge(key, count, Long::sum));
+        other.byShift.forEach((key, count) -> byShift.merge(key, count, Long::sum));
+        for (int i = 0; i < byDayOfWeek.length; i++) {
+            byDayOfWeek[i] += other.byDayOfWeek[i];
+        }
+        total += other.total;
+        return this;
+    }
+
+    /**
+     * Counts the report weekdays of the store rows inside the buffer and the
+     * time window that pass the facet filter.
+     */
+    private void countDaysOfWeek(LayerIndex layerIndex, Polygon buffer, TimeWindow window, FacetFilter facets) {
+        PreparedPolygon prepared = new PreparedPolygon(buffer);
+        CrimeFeatureStore store = layerIndex.getStore();
+        for (int row : layerIndex.queryCandidateRows(buffer, window, facets)) {
+            long time = store.reportTime(row);
+            if (CrimeFeatureStore.NO_TIME != time && prepared.contains(store.x(row), store.y(row))) {
+                DayOfWeek day = Instant.ofEpochMilli(time).atZone(CrimeFeatureStore.TIME_ZONE).getDayOfWeek();
+                byDayOfWeek[day.ordinal()]++;
+            }
+        }
+    }
+
+    private static String columnValue(DictionaryColumn column, int row) {
+        int code = column.code(row);
+        return DictionaryColumn.NULL_CODE == code ? "(none)" : column.value(code).trim();
+    }
+
+    private static String groupValue(StatisticRecord record, String fieldName) {
+        Object value = record.getGroup().get(fieldName);
+        return null == value ? "(none)" : value.toString().trim();
+    }
+
+}
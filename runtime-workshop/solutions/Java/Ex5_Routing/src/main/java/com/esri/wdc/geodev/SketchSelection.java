@@ -0,0 +1,287 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * The crimes inside a rectangle or lasso that is being dragged out, updated
+ * incrementally as the shape changes. Coordinates are WGS 84 longitude and
+ * latitude, like the layer indexes.
+ * <p>
+ * A rectangle spans the anchor and the cursor. When the cursor moves, only a
+ * point between an old and a new edge can change sides, so only the strips
+ * swept by the moving edges are searched. A lasso is a polygon closed from
+ * its last vertex back to its first. By the even-odd rule, adding a vertex
+ * flips the inside-ness of exactly the points in the triangle formed by the
+ * first vertex, the previous last vertex and the new one, so only that
+ * triangle's envelope is searched. Either way the work per update follows the
+ * change in the shape, not its whole area.
+ */
+public class SketchSelection {
+
+    private final LayerSelection[] layers;
+    private final List<double[]> lasso = new ArrayList<>();
+    // The current rectangle, or null before the first update
+    private double[] rectangle = null;
+    private double anchorX;
+    private double anchorY;
+    private int count = 0;
+    private long rowsTested = 0;
+
+    /**
+     * Creates an empty selection over some layers.
+     *
+     * @param layerIndexes the indexes of the layers to select from.
+     * @param window only crimes reported in this window are selected.
+     * @param facets only crimes that pass this filter are selected.
+     */
+    public SketchSelection(Collection<LayerIndex> layerIndexes, TimeWindow window, FacetFilter facets) {
+        layers = new LayerSelection[layerIndexes.size()];
+        int i = 0;
+        for (LayerIndex layerIndex : layerIndexes) {
+            layers[i++] = new LayerSelection(layerIndex, window, facets);
+        }
+    }
+
+    /**
+     * Starts a rectangle at an anchor point, clearing the selection.
+     *
+     * @param x the anchor longitude.
+     * @param y the anchor latitude.
+     */
+    public void beginRectangle(double x, double y) {
+        clear();
+        anchorX = x;
+        anchorY = y;
+    }
+
+    /**
+     * Moves the rectangle's corner opposite the anchor.
+     *
+     * @param x the corner longitude.
+     * @param y the corner latitude.
+     */
+    public void updateRectangle(double x, double y) {
+        double[] next = {Math.min(anchorX, x), Math.min(anchorY, y), Math.max(anchorX, x), Math.max(anchorY, y)};
+        double[] previous = rectangle;
+        rectangle = next;
+        if (null == previous) {
+            for (LayerSelection layer : layers) {
+                layer.setInside(next[0], next[1], next[2], next[3], next);
+            }
+            return;
+        }
+        double unionMinX = Math.min(previous[0], next[0]);
+        double unionMinY = Math.min(previous[1], next[1]);
+        double unionMaxX = Math.max(previous[2], next[2]);
+        double unionMaxY = Math.max(previous[3], next[3]);
+        for (LayerSelection layer : layers) {
+            // A point changes sides only where one of the rectangle's bounds moved past it
+            for (int bound = 0; bound < 4; bound++) {
+                if (previous[bound] == next[bound]) {
+                    continue;
+                }
+                double low = Math.min(previous[bound], next[bound]);
+                double high = Math.max(previous[bound], next[bound]);
+                if (0 == bound % 2) {
+                    layer.setInside(low, unionMinY, high, unionMaxY, next);
+                } else {
+                    layer.setInside(unionMinX, low, unionMaxX, high, next);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a lasso at a point, clearing the selection.
+     *
+     * @param x the longitude.
+     * @param y the latitude.
+     */
+    public void beginLasso(double x, double y) {
+        clear();
+        lasso.add(new double[]{x, y});
+    }
+
+    /**
+     * Adds a vertex to the lasso.
+     *
+     * @param x the longitude.
+     * @param y the latitude.
+     */
+    public void addLassoVertex(double x, double y) {
+        if (2 <= lasso.size()) {
+            double[] triangle = new double[6];
+            triangle[0] = lasso.get(0)[0];
+            triangle[1] = lasso.get(0)[1];
+            triangle[2] = lasso.get(lasso.size() - 1)[0];
+            triangle[3] = lasso.get(lasso.size() - 1)[1];
+            triangle[4] = x;
+            triangle[5] = y;
+            for (LayerSelection layer : layers) {
+                layer.flipInside(triangle);
+            }
+        }
+        lasso.add(new double[]{x, y});
+    }
+
+    /**
+     * Returns the number of selected crimes in every layer.
+     *
+     * @return the number of selected crimes.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the number of point tests done so far, to compare with the
+     * number of points in the shape.
+     *
+     * @return the number of point tests.
+     */
+    public long getRowsTested() {
+        return rowsTested;
+    }
+
+    /**
+     * Returns the object IDs of the selected crimes in one layer.
+     *
+     * @param layerIndex the layer's index.
+     * @return the object IDs, or an empty array if the layer is not part of
+     * this selection.
+     */
+    public long[] getObjectIds(LayerIndex layerIndex) {
+        for (LayerSelection layer : layers) {
+            if (layer.layerIndex == layerIndex) {
+                return layer.getObjectIds();
+            }
+        }
+        return new long[0];
+    }
+
+    private void clear() {
+        for (LayerSelection layer : layers) {
+            layer.clear();
+        }
+        lasso.clear();
+        rectangle = null;
+        count = 0;
+    }
+
+    /**
+     * Tests whether a point is inside a triangle by counting edge crossings.
+     * Each edge is evaluated from its lower end, so an edge shared by two of a
+     * lasso's triangles gives the same answer in both and the triangles add up
+     * to exactly the lasso.
+     */
+    private static boolean triangleContains(double[] triangle, double x, double y) {
+        boolean inside = false;
+        for (int i = 0, j = 4; i < 6; j = i, i += 2) {
+            int low = triangle[j + 1] <= triangle[i + 1] ? j : i;
+            int high = low == j ? i : j;
+            double y1 = triangle[low + 1];
+            double y2 = triangle[high + 1];
+            if (y1 <= y && y < y2) {
+                double x1 = triangle[low];
+                double x2 = triangle[high];
+                if (x < x1 + (y - y1) * (x2 - x1) / (y2 - y1)) {
+                    inside = !inside;
+                }
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * The selected rows of one layer.
+     */
+    private class LayerSelection {
+
+        private final LayerIndex layerIndex;
+        private final CrimeFeatureStore store;
+        private final IntPredicate passesFilters;
+        private final boolean[] inside;
+        private int layerCount = 0;
+
+        LayerSelection(LayerIndex layerIndex, TimeWindow window, FacetFilter facets) {
+            this.layerIndex = layerIndex;
+            this.store = layerIndex.getStore();
+            this.passesFilters = layerIndex.rowFilter(window, facets);
+            this.inside = new boolean[store.size()];
+        }
+
+        /**
+         * Sets whether each row in a search box is inside a rectangle.
+         */
+        void setInside(double minX, double minY, double maxX, double maxY, double[] rectangle) {
+            layerIndex.visitRows(minX, minY, maxX, maxY, row -> {
+                rowsTested++;
+                double x = store.x(row);
+                double y = store.y(row);
+                set(row, rectangle[0] <= x && x <= rectangle[2] && rectangle[1] <= y && y <= rectangle[3]
+                    && passesFilters.test(row));
+            });
+        }
+
+        /**
+         * Flips whether each row inside a triangle is selected.
+         */
+        void flipInside(double[] triangle) {
+            double minX = Math.min(triangle[0], Math.min(triangle[2], triangle[4]));
+            double minY = Math.min(triangle[1], Math.min(triangle[3], triangle[5]));
+            double maxX = Math.max(triangle[0], Math.max(triangle[2], triangle[4]));
+            double maxY = Math.max(triangle[1], Math.max(triangle[3], triangle[5]));
+            layerIndex.visitRows(minX, minY, maxX, maxY, row -> {
+                rowsTested++;
+                if (passesFilters.test(row) && triangleContains(triangle, store.x(row), store.y(row))) {
+                    set(row, !inside[row]);
+                }
+            });
+        }
+
+        void set(int row, boolean value) {
+            if (inside[row] != value) {
+                inside[row] = value;
+                layerCount += value ? 1 : -1;
+                count += value ? 1 : -1;
+            }
+        }
+
+        void clear() {
+            Arrays.fill(inside, false);
+            layerCount = 0;
+        }
+
+        long[] getObjectIds() {
+            long[] objectIds = new long[layerCount];
+            int i = 0;
+            for (int row = 0; row < inside.length; row++) {
+                if (inside[row]) {
+                    objectIds[i++] = store.objectId(row);
+                }
+            }
+            return objectIds;
+        }
+
+    }
+
+}
@@ -0,0 +1,472 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A static, packed R-tree bulk-loaded with the Sort-Tile-Recursive (STR)
+ * algorithm. Each entry is an envelope plus an int item (typically a row
+ * number). The tree is immutable once built and is safe to query from any
+ * thread.
+ */
+public class StrTree {
+
+    /**
+     * Measures distances for a nearest-neighbor search. The envelope distance
+     * must never exceed the distance to any item inside the envelope, or the
+     * search may miss nearer items.
+     */
+    public interface Metric {
+
+        /**
+         * Returns a lower bound on the distance to any item inside an envelope.
+         *
+         * @param minX the minimum x of the envelope.
+         * @param minY the minimum y of the envelope.
+         * @param maxX the maximum x of the envelope.
+         * @param maxY the maximum y of the envelope.
+         * @return the lower bound.
+         */
+        double envelopeDistance(double minX, double minY, double maxX, double maxY);
+
+        /**
+         * Returns the distance to an item.
+         *
+         * @param item the item.
+         * @return the distance, or positive infinity to leave the item out of
+         * the search.
+         */
+        double itemDistance(int item);
+
+    }
+
+    /**
+     * The default maximum number of children per node.
+     */
+    public static final int DEFAULT_NODE_CAPACITY = 16;
+
+    private final int nodeCapacity;
+    private final int size;
+
+    /**
+     * Node envelopes, four doubles per node (minX, minY, maxX, maxY). Level 0
+     * holds the entries themselves in STR order; each following level holds
+     * the parents of the level below it, and the last level is the root.
+     */
+    private final double[] bounds;
+
+    /**
+     * The item of each level 0 entry, in STR order.
+     */
+    private final int[] items;
+
+    /**
+     * The index of the first node of each level in the bounds array.
+     */
+    private final int[] levelOffsets;
+
+    /**
+     * Builds a tree with the default node capacity.
+     *
+     * @param minX the minimum x of each entry.
+     * @param minY the minimum y of each entry.
+     * @param maxX the maximum x of each entry.
+     * @param maxY the maximum y of each entry.
+     */
+    public StrTree(double[] minX, double[] minY, double[] maxX, double[] maxY) {
+        this(minX, minY, maxX, maxY, DEFAULT_NODE_CAPACITY);
+    }
+
+    /**
+     * Builds a tree whose items are the array positions of the entries. The
+     * four arrays must have the same length. For point data, pass the x array
+     * as both minX and maxX and the y array as both minY and maxY.
+     *
+     * @param minX the minimum x of each entry.
+     * @param minY the minimum y of each entry.
+     * @param maxX the maximum x of each entry.
+     * @param maxY the maximum y of each entry.
+     * @param nodeCapacity the maximum number of children per node.
+     */
+    public StrTree(double[] minX, double[] minY, double[] maxX, double[] maxY, int nodeCapacity) {
+        if (2 > nodeCapacity) {
+            throw new IllegalArgumentException("nodeCapacity must be at least 2");
+        }
+        this.nodeCapacity = nodeCapacity;
+        this.size = minX.length;
+
+        // Sort the entries into tiles: vertical slices by center x, then by center y within each slice
+        int[] order = new int[size];
+        double[] centerX = new double[size];
+        double[] centerY = new double[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+            centerX[i] = (minX[i] + maxX[i]) / 2.0;
+            centerY[i] = (minY[i] + maxY[i]) / 2.0;
+        }
+        sortByKey(order, 0, size, centerX);
+        int leafCount = ceilDiv(size, nodeCapacity);
+        int sliceCount = (int) Math.ceil(Math.sqrt(leafCount));
+        int sliceSize = sliceCount * nodeCapacity;
+        for (int start = 0; start < size; start += sliceSize) {
+            sortByKey(order, start, Math.min(start + sliceSize, size), centerY);
+        }
+
+        // Count the nodes on each level
+        int levelCount = 1;
+        for (int n = size; n > 1; n = ceilDiv(n, nodeCapacity)) {
+            levelCount++;
+        }
+        levelOffsets = new int[levelCount + 1];
+        int nodeCount = 0;
+        int n = size;
+        for (int level = 0; level < levelCount; level++) {
+            levelOffsets[level] = nodeCount;
+            nodeCount += n;
+            n = ceilDiv(n, nodeCapacity);
+        }
+        levelOffsets[levelCount] = nodeCount;
+
+        // Fill level 0 with the sorted entries, then compute each parent level from its children
+        bounds = new double[nodeCount * 4];
+        items = new int[size];
+        for (int i = 0; i < size; i++) {
+            int item = order[i];
+            items[i] = item;
+            bounds[i * 4] = minX[item];
+            bounds[i * 4 + 1] = minY[item];
+            bounds[i * 4 + 2] = maxX[item];
+            bounds[i * 4 + 3] = maxY[item];
+        }
+        for (int level = 1; level < levelCount; level++) {
+            int childOffset = levelOffsets[level - 1];
+            int childCount = levelOffsets[level] - childOffset;
+            for (int node = levelOffsets[level]; node < levelOffsets[level + 1]; node++) {
+                int firstChild = childOffset + (node - levelOffsets[level]) * nodeCapacity;
+                int lastChild = Math.min(firstChild + nodeCapacity, childOffset + childCount);
+                double nodeMinX = Double.POSITIVE_INFINITY;
+                double nodeMinY = Double.POSITIVE_INFINITY;
+                double nodeMaxX = Double.NEGATIVE_INFINITY;
+                double nodeMaxY = Double.NEGATIVE_INFINITY;
+                for (int child = firstChild; child < lastChild; child++) {
+                    nodeMinX = Math.min(nodeMinX, bounds[child * 4]);
+                    nodeMinY = Math.min(nodeMinY, bounds[child * 4 + 1]);
+                    nodeMaxX = Math.max(nodeMaxX, bounds[child * 4 + 2]);
+                    nodeMaxY = Math.max(nodeMaxY, bounds[child * 4 + 3]);
+                }
+                bounds[node * 4] = nodeMinX;
+                bounds[node * 4 + 1] = nodeMinY;
+                bounds[node * 4 + 2] = nodeMaxX;
+                bounds[node * 4 + 3] = nodeMaxY;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of entries in the tree.
+     *
+     * @return the number of entries in the tree.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the items of every entry whose envelope intersects the given
+     * envelope. Touching edges count as intersecting.
+     *
+     * @param minX the minimum x of the query envelope.
+     * @param minY the minimum y of the query envelope.
+     * @param maxX the maximum x of the query envelope.
+     * @param maxY the maximum y of the query envelope.
+     * @return the intersecting items, in no particular order.
+     */
+    public int[] query(double minX, double minY, double maxX, double maxY) {
+        ItemCollector collector = new ItemCollector();
+        query(minX, minY, maxX, maxY, collector);
+        return collector.toArray();
+    }
+
+    /**
+     * Visits the item of every entry whose envelope intersects the given
+     * envelope. Touching edges count as intersecting.
+     *
+     * @param minX the minimum x of the query envelope.
+     * @param minY the minimum y of the query envelope.
+     * @param maxX the maximum x of the query envelope.
+     * @param maxY the maximum y of the query envelope.
+     * @param visitor receives the item of each intersecting entry.
+     * @return the number of items visited.
+     */
+    public int query(double minX, double minY, double maxX, double maxY, IntConsumer visitor) {
+        if (0 == size) {
+            return 0;
+        }
+        int found = 0;
+        int rootLevel = levelOffsets.length - 2;
+        // Each stack frame is a (level, node) pair; depth is bounded by level count times node capacity
+        int[] stack = new int[2 * (rootLevel + 1) * nodeCapacity + 2];
+        int top = 0;
+        stack[top++] = rootLevel;
+        stack[top++] = levelOffsets[rootLevel];
+        while (0 < top) {
+            int node = stack[--top];
+            int level = stack[--top];
+            if (!intersects(node, minX, minY, maxX, maxY)) {
+                continue;
+            }
+            if (0 == level) {
+                visitor.accept(items[node]);
+                found++;
+            } else {
+                int childOffset = levelOffsets[level - 1];
+                int firstChild = childOffset + (node - levelOffsets[level]) * nodeCapacity;
+                int lastChild = Math.min(firstChild + nodeCapacity, levelOffsets[level]);
+                if (1 == level) {
+                    // Test leaf entries directly instead of pushing them
+                    for (int child = firstChild; child < lastChild; child++) {
+                        if (intersects(child, minX, minY, maxX, maxY)) {
+                            visitor.accept(items[child]);
+                            found++;
+                        }
+                    }
+                } else {
+                    for (int child = firstChild; child < lastChild; child++) {
+                        stack[top++] = level - 1;
+                        stack[top++] = child;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Finds the k nearest items with a best-first search. Nodes are visited in
+     * order of their envelope distance, so the search stops as soon as k items
+     * are nearer than every unvisited node, without a search radius.
+     *
+     * @param k the number of items to find.
+     * @param metric measures the distances.
+     * @param nearestItems receives the items, nearest first. Its length must be
+     * at least k.
+     * @param nearestDistances receives the distance of each item. Its length
+     * must be at least k.
+     * @return the number of items found, which is less than k only if fewer
+     * items have a finite distance.
+     */
+    public int nearest(int k, Metric metric, int[] nearestItems, double[] nearestDistances) {
+        if (0 == size || 0 >= k) {
+            return 0;
+        }
+        int found = 0;
+        int rootLevel = levelOffsets.length - 2;
+        NodeQueue queue = new NodeQueue();
+        queue.push(distance(metric, levelOffsets[rootLevel], rootLevel), levelOffsets[rootLevel], rootLevel);
+        while (found < k && !queue.isEmpty()) {
+            double distance = queue.peekDistance();
+            int node = queue.peekNode();
+            int level = queue.peekLevel();
+            queue.pop();
+            if (Double.POSITIVE_INFINITY == distance) {
+                break;
+            }
+            if (0 == level) {
+                // Every unvisited node is at least this far away
+                nearestItems[found] = items[node];
+                nearestDistances[found] = distance;
+                found++;
+            } else {
+                int childOffset = levelOffsets[level - 1];
+                int firstChild = childOffset + (node - levelOffsets[level]) * nodeCapacity;
+                int lastChild = Math.min(firstChild + nodeCapacity, levelOffsets[level]);
+                for (int child = firstChild; child < lastChild; child++) {
+                    double childDistance = distance(metric, child, level - 1);
+                    if (Double.POSITIVE_INFINITY != childDistance) {
+                        queue.push(childDistance, child, level - 1);
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    private double distance(Metric metric, int node, int level) {
+        if (0 == level) {
+            return metric.itemDistance(items[node]);
+        }
+        int i = node * 4;
+        return metric.envelopeDistance(bounds[i], bounds[i + 1], bounds[i + 2], bounds[i + 3]);
+    }
+
+    private boolean intersects(int node, double minX, double minY, double maxX, double maxY) {
+        int i = node * 4;
+        return bounds[i] <= maxX && bounds[i + 1] <= maxY && bounds[i + 2] >= minX && bounds[i + 3] >= minY;
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+
+    /**
+     * Sorts a range of an index array by the key of each index, without boxing.
+     */
+    private static void sortByKey(int[] order, int from, int to, double[] key) {
+        while (to - from > 16) {
+            double pivot = medianOfThree(key[order[from]], key[order[(from + to) >>> 1]], key[order[to - 1]]);
+            int i = from;
+            int j = to - 1;
+            while (i <= j) {
+                while (key[order[i]] < pivot) {
+                    i++;
+                }
+                while (key[order[j]] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int tmp = order[i];
+                    order[i] = order[j];
+                    order[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            // Recurse into the smaller half and loop on the larger one to bound the stack depth
+            if (j - from < to - i) {
+                sortByKey(order, from, j + 1, key);
+                from = i;
+            } else {
+                sortByKey(order, i, to, key);
+                to = j + 1;
+            }
+        }
+        for (int i = from + 1; i < to; i++) {
+            int value = order[i];
+            int j = i - 1;
+            while (j >= from && key[order[j]] > key[value]) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = value;
+        }
+    }
+
+    private static double medianOfThree(double a, double b, double c) {
+        return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+    }
+
+    /**
+     * Collects visited items into a growable int array.
+     */
+    private static class ItemCollector implements IntConsumer {
+
+        private int[] items = new int[16];
+        private int count = 0;
+
+        @Override
+        public void accept(int item) {
+            if (count == items.length) {
+                items = Arrays.copyOf(items, 2 * count);
+            }
+            items[count++] = item;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(items, count);
+        }
+
+    }
+
+    /**
+     * A binary min-heap of (distance, node, level) triples in parallel arrays.
+     */
+    private static class NodeQueue {
+
+        private double[] distances = new double[64];
+        private int[] nodes = new int[64];
+        private int[] levels = new int[64];
+        private int count = 0;
+
+        boolean isEmpty() {
+            return 0 == count;
+        }
+
+        double peekDistance() {
+            return distances[0];
+        }
+
+        int peekNode() {
+            return nodes[0];
+        }
+
+        int peekLevel() {
+            return levels[0];
+        }
+
+        void push(double distance, int node, int level) {
+            if (count == distances.length) {
+                distances = Arrays.copyOf(distances, 2 * count);
+                nodes = Arrays.copyOf(nodes, 2 * count);
+                levels = Arrays.copyOf(levels, 2 * count);
+            }
+            int i = count++;
+            while (0 < i) {
+                int parent = (i - 1) >>> 1;
+                if (distances[parent] <= distance) {
+                    break;
+                }
+                set(i, distances[parent], nodes[parent], levels[parent]);
+                i = parent;
+            }
+            set(i, distance, node, level);
+        }
+
+        void pop() {
+            count--;
+            double distance = distances[count];
+            int node = nodes[count];
+            int level = levels[count];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= count) {
+                    break;
+                }
+                if (child + 1 < count && distances[child + 1] < distances[child]) {
+                    child++;
+                }
+                if (distance <= distances[child]) {
+                    break;
+                }
+                set(i, distances[child], nodes[child], levels[child]);
+                i = child;
+            }
+            if (0 < count) {
+                set(i, distance, node, level);
+            }
+        }
+
+        private void set(int i, double distance, int node, int level) {
+            distances[i] = distance;
+            nodes[i] = node;
+            levels[i] = level;
+        }
+
+    }
+
+}
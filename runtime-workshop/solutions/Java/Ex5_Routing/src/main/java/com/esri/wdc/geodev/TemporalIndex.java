@@ -0,0 +1,168 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * The rows of a CrimeFeatureStore sorted by report time. A time window maps to
+ * a contiguous range of sorted positions with two binary searches, and each
+ * row knows its position, so filtering spatial candidates by time costs one
+ * comparison per candidate.
+ */
+public class TemporalIndex {
+
+    private final long[] sortedTimes;
+    private final int[] sortedRows;
+    private final int[] positionOfRow;
+    // The first sorted position with a report time; undated rows sort first
+    private final int firstDated;
+
+    private TemporalIndex(long[] sortedTimes, int[] sortedRows) {
+        this.sortedTimes = sortedTimes;
+        this.sortedRows = sortedRows;
+        positionOfRow = new int[sortedRows.length];
+        for (int position = 0; position < sortedRows.length; position++) {
+            positionOfRow[sortedRows[position]] = position;
+        }
+        firstDated = lowerBound(sortedTimes, CrimeFeatureStore.NO_TIME + 1);
+    }
+
+    /**
+     * Sorts the rows of a store by report time.
+     *
+     * @param store the store.
+     * @return the index.
+     */
+    public static TemporalIndex build(CrimeFeatureStore store) {
+        long[] times = new long[store.size()];
+        int[] rows = new int[store.size()];
+        for (int row = 0; row < rows.length; row++) {
+            times[row] = store.reportTime(row);
+            rows[row] = row;
+        }
+        CrimeFeatureStore.heapSort(times, rows);
+        return new TemporalIndex(times, rows);
+    }
+
+    /**
+     * Returns the earliest report time.
+     *
+     * @return the earliest report time, or CrimeFeatureStore.NO_TIME if no row
+     * has one.
+     */
+    public long getEarliestTime() {
+        return firstDated < sortedTimes.length ? sortedTimes[firstDated] : CrimeFeatureStore.NO_TIME;
+    }
+
+    /**
+     * Returns the latest report time.
+     *
+     * @return the latest report time, or CrimeFeatureStore.NO_TIME if no row
+     * has one.
+     */
+    public long getLatestTime() {
+        return firstDated < sortedTimes.length ? sortedTimes[sortedTimes.length - 1] : CrimeFeatureStore.NO_TIME;
+    }
+
+    /**
+     * Returns the number of rows reported in a window.
+     *
+     * @param window the window.
+     * @return the number of rows.
+     */
+    public int count(TimeWindow window) {
+        return end(window) - start(window);
+    }
+
+    /**
+     * Returns the rows reported in a window, in report time order.
+     *
+     * @param window the window.
+     * @return the rows.
+     */
+    public int[] rows(TimeWindow window) {
+        return Arrays.copyOfRange(sortedRows, start(window), Math.max(start(window), end(window)));
+    }
+
+    /**
+     * Keeps the rows that were reported in a window.
+     *
+     * @param rows the rows to filter, such as spatial candidates.
+     * @param window the window.
+     * @return the rows reported in the window, in their original order. If the
+     * window includes every row, the given array is returned.
+     */
+    public int[] filter(int[] rows, TimeWindow window) {
+        if (window.isAll()) {
+            return rows;
+        }
+        int start = start(window);
+        int end = end(window);
+        int[] kept = new int[rows.length];
+        int count = 0;
+        for (int row : rows) {
+            int position = positionOfRow[row];
+            if (start <= position && position < end) {
+                kept[count++] = row;
+            }
+        }
+        return Arrays.copyOf(kept, count);
+    }
+
+    /**
+     * Returns a test for whether a row was reported in a window, for searches
+     * that visit rows one at a time.
+     *
+     * @param window the window.
+     * @return the test.
+     */
+    public IntPredicate rowFilter(TimeWindow window) {
+        if (window.isAll()) {
+            return row -> true;
+        }
+        int start = start(window);
+        int end = end(window);
+        return row -> start <= positionOfRow[row] && positionOfRow[row] < end;
+    }
+
+    private int start(TimeWindow window) {
+        return window.isAll() ? 0 : Math.max(firstDated, lowerBound(sortedTimes, window.getFromMillis()));
+    }
+
+    private int end(TimeWindow window) {
+        return window.isAll() ? sortedTimes.length : lowerBound(sortedTimes, window.getToMillis());
+    }
+
+    /**
+     * Returns the first position whose time is at least the key.
+     */
+    private static int lowerBound(long[] times, long key) {
+        int low = 0;
+        int high = times.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (times[middle] < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+}
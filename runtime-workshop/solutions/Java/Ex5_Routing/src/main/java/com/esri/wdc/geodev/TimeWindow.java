@@ -0,0 +1,97 @@
+/** *****************************************************************************
+ * Copyright 2016-2019 Esri
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ ***************************************************************************** */
+package com.esri.wdc.geodev;
+
+import java.time.LocalDate;
+
+/**
+ * A range of report times, from an inclusive start to an exclusive end, in
+ * milliseconds since the epoch. Crimes without a report time are only in the
+ * window that includes all times.
+ */
+public final class TimeWindow {
+
+    /**
+     * The window that includes every crime, with or without a report time.
+     */
+    public static final TimeWindow ALL = new TimeWindow(Long.MIN_VALUE, Long.MAX_VALUE);
+
+    private final long fromMillis;
+    private final long toMillis;
+
+    private TimeWindow(long fromMillis, long toMillis) {
+        this.fromMillis = fromMillis;
+        this.toMillis = toMillis;
+    }
+
+    /**
+     * Creates a window from report dates in the crime data's time zone.
+     *
+     * @param from the first date, or null for no lower bound.
+     * @param to the last date, or null for no upper bound.
+     * @return the window that includes every report time on the dates from
+     * the first date through the last date.
+     */
+    public static TimeWindow ofDates(LocalDate from, LocalDate to) {
+        if (null == from && null == to) {
+            return ALL;
+        }
+        // Exclude undated crimes even when only one bound is given
+        long fromMillis = null == from ? CrimeFeatureStore.NO_TIME + 1
+            : from.atStartOfDay(CrimeFeatureStore.TIME_ZONE).toInstant().toEpochMilli();
+        long toMillis = null == to ? Long.MAX_VALUE
+            : to.plusDays(1).atStartOfDay(CrimeFeatureStore.TIME_ZONE).toInstant().toEpochMilli();
+        return new TimeWindow(fromMillis, toMillis);
+    }
+
+    /**
+     * Returns whether this is the window that includes every crime.
+     *
+     * @return true if the window does not filter anything.
+     */
+    public boolean isAll() {
+        return this == ALL;
+    }
+
+    /**
+     * Returns the start of the window.
+     *
+     * @return the inclusive start, in milliseconds since the epoch.
+     */
+    public long getFromMillis() {
+        return fromMillis;
+    }
+
+    /**
+     * Returns the end of the window.
+     *
+     * @return the exclusive end, in milliseconds since the epoch.
+     */
+    public long getToMillis() {
+        return toMillis;
+    }
+
+    /**
+     * Tests whether a report time is in the window.
+     *
+     * @param time the report time, or CrimeFeatureStore.NO_TIME.
+     * @return true if the time is in the window.
+     */
+    public boolean contains(long time) {
+        return isAll() || (fromMillis <= time && time < toMillis);
+    }
+
+}
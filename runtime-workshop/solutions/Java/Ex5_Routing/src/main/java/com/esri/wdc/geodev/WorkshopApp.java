@@ -16,17 +16,19 @@
 package com.esri.wdc.geodev;
 
 import com.esri.arcgisruntime.concurrent.ListenableFuture;
+import com.esri.arcgisruntime.data.Feature;
+import com.esri.arcgisruntime.data.FeatureQueryResult;
 import com.esri.arcgisruntime.data.QueryParameters;
 import com.esri.arcgisruntime.geometry.AngularUnit;
 import com.esri.arcgisruntime.geometry.AngularUnitId;
-import com.esri.arcgisruntime.geometry.GeodesicEllipseParameters;
+import com.esri.arcgisruntime.geometry.Envelope;
 import com.esri.arcgisruntime.geometry.GeodeticCurveType;
 import com.esri.arcgisruntime.geometry.Geometry;
 import com.esri.arcgisruntime.geometry.GeometryEngine;
-import com.esri.arcgisruntime.geometry.GeometryType;
 import com.esri.arcgisruntime.geometry.LinearUnit;
 import com.esri.arcgisruntime.geometry.LinearUnitId;
 import com.esri.arcgisruntime.geometry.Point;
+import com.esri.arcgisruntime.geometry.PointCollection;
 import com.esri.arcgisruntime.geometry.Polygon;
 import com.esri.arcgisruntime.layers.ArcGISSceneLayer;
 import com.esri.arcgisruntime.layers.FeatureLayer;
@@ -35,7 +37,6 @@ import com.esri.arcgisruntime.mapping.ArcGISMap;
 import com.esri.arcgisruntime.mapping.ArcGISScene;
 import com.esri.arcgisruntime.mapping.ArcGISTiledElevationSource;
 import com.esri.arcgisruntime.mapping.Basemap;
-import com.esri.arcgisruntime.mapping.LayerList;
 import com.esri.arcgisruntime.mapping.MobileMapPackage;
 import com.esri.arcgisruntime.mapping.Surface;
 import com.esri.arcgisruntime.mapping.Viewpoint;
@@ -52,26 +53,56 @@ import com.esri.arcgisruntime.security.UserCredential;
 import com.esri.arcgisruntime.symbology.SimpleFillSymbol;
 import com.esri.arcgisruntime.symbology.SimpleLineSymbol;
 import com.esri.arcgisruntime.symbology.SimpleMarkerSymbol;
+import com.esri.arcgisruntime.symbology.TextSymbol;
 import com.esri.arcgisruntime.tasks.networkanalysis.RouteParameters;
 import com.esri.arcgisruntime.tasks.networkanalysis.RouteResult;
 import com.esri.arcgisruntime.tasks.networkanalysis.RouteTask;
 import com.esri.arcgisruntime.tasks.networkanalysis.Stop;
 import com.esri.arcgisruntime.util.ListenableList;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.geometry.Point2D;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.DatePicker;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListView;
+import javafx.scene.control.TextField;
 import javafx.scene.control.ToggleButton;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.input.MouseButton;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.AnchorPane;
+import javafx.scene.layout.FlowPane;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
 
 /**
@@ -84,18 +115,72 @@ public class WorkshopApp extends Application {
         = "http://elevation3d.arcgis.com/arcgis/rest/services/WorldElevation3D/Terrain3D/ImageServer";
 
     // Exercise 3: Specify operational layer paths
-    private static final String MMPK_PATH = "../../../data/DC_Crime_Data.mmpk";
+    static final String MMPK_PATH = "../../../data/DC_Crime_Data.mmpk";
     private static final String SCENE_SERVICE_URL
         = "https://www.arcgis.com/home/item.html?id=2c9286dfc69349408764e09022b1f52e";
     private static final String KML_URL
         = "https://earthquake.usgs.gov/earthquakes/feed/v1.0/summary/1.0_week_age_link.kml";
 
+    // Exercise 4: Buffer radius and detail, shared with the batch runner
+    static final double BUFFER_RADIUS_METERS = 1000.0;
+    static final int BUFFER_MAX_POINT_COUNT = 1000;
+    static final double BUFFER_MAX_SEGMENT_LENGTH = 1.0;
+    static final double[] MULTI_RING_RADII_METERS = {250.0, 500.0, BUFFER_RADIUS_METERS};
+    // The number of crimes found in nearest mode, and how many of them the panel lists
+    private static final int NEAREST_COUNT = 25;
+    private static final int NEAREST_LINES = 10;
+    // The most object IDs the query result cache holds
+    private static final long RESULT_CACHE_MAX_OBJECT_IDS = 100000;
+    // How far the cursor must move before a lasso gets another vertex, in pixels
+    private static final double LASSO_MIN_VERTEX_PIXELS = 3.0;
+    // The number of vertices of the buffer drawn while its radius is dragged
+    private static final int RADIUS_PREVIEW_VERTEX_COUNT = 180;
+    // The most suggestions the search box lists, and the map scale to zoom to for a single location
+    private static final int SEARCH_SUGGESTION_COUNT = 8;
+    private static final double SEARCH_ZOOM_SCALE = 5000.0;
+    private static final double SEARCH_ZOOM_PADDING = 50.0;
+
+    // Crime density pyramid, rebuilt when the mobile map package changes
+    private static final Path DENSITY_PYRAMID_PATH
+        = Paths.get(System.getProperty("java.io.tmpdir"), "DC_Crime_Data.density");
+    // Above this map scale, the density grid replaces individual crimes
+    private static final double DENSITY_MIN_SCALE = 40000.0;
+    private static final int DENSITY_CELLS_ACROSS = 32;
+    private static final SimpleFillSymbol[] DENSITY_SYMBOLS = {
+        new SimpleFillSymbol(SimpleFillSymbol.Style.SOLID, 0x99FFFFB2, null),
+        new SimpleFillSymbol(SimpleFillSymbol.Style.SOLID, 0x99FED976, null),
+        new SimpleFillSymbol(SimpleFillSymbol.Style.SOLID, 0x99FEB24C, null),
+        new SimpleFillSymbol(SimpleFillSymbol.Style.SOLID, 0x99FD8D3C, null),
+        new SimpleFillSymbol(SimpleFillSymbol.Style.SOLID, 0x99F03B20, null),
+        new SimpleFillSymbol(SimpleFillSymbol.Style.SOLID, 0x99BD0026, null)
+    };
+
+    // The kernel density surface spans about this many tiles across the view, and caches this many tiles
+    private static final int KERNEL_DENSITY_TILES_ACROSS = 4;
+    private static final int KERNEL_DENSITY_MAX_TILES = 256;
+
+    // Hotspot analysis grid: cells across the view, and how many cells a neighborhood reaches in each direction
+    private static final int HOTSPOT_CELLS_ACROSS = 64;
+    private static final int HOTSPOT_RADIUS_CELLS = 2;
+    // Cold spots at 99, 95 and 90 percent confidence, then hotspots at 90, 95 and 99 percent
+    private static final SimpleFillSymbol[] HOTSPOT_SYMBOLS = {
+        new SimpleFillSymbol(SimpleFillSymbol.Style.SOLID, 0x994575B5, null),
+        new SimpleFillSymbol(SimpleFillSymbol.Style.SOLID, 0x99849EBA, null),
+        new SimpleFillSymbol(SimpleFillSymbol.Style.SOLID, 0x99C0CCBE, null),
+        new SimpleFillSymbol(SimpleFillSymbol.Style.SOLID, 0x99FAB984, null),
+        new SimpleFillSymbol(SimpleFillSymbol.Style.SOLID, 0x99ED7551, null),
+        new SimpleFillSymbol(SimpleFillSymbol.Style.SOLID, 0x99D62F27, null)
+    };
+
     // Exercise 4: Create symbols for click and buffer
     private static final SimpleMarkerSymbol CLICK_SYMBOL
         = new SimpleMarkerSymbol(SimpleMarkerSymbol.Style.CIRCLE, 0xFFffa500, 10);
     private static final SimpleFillSymbol BUFFER_SYMBOL
         = new SimpleFillSymbol(SimpleFillSymbol.Style.NULL, 0xFFFFFFFF,
             new SimpleLineSymbol(SimpleLineSymbol.Style.SOLID, 0xFFFFA500, 3));
+    private static final SimpleFillSymbol INNER_RING_SYMBOL
+        = new SimpleFillSymbol(SimpleFillSymbol.Style.NULL, 0xFFFFFFFF,
+            new SimpleLineSymbol(SimpleLineSymbol.Style.DASH, 0xFFFFA500, 2));
 
     // Exercise 5: Create symbols for routing
     private static final SimpleMarkerSymbol ROUTE_ORIGIN_SYMBOL
@@ -141,6 +226,58 @@ public class WorkshopApp extends Application {
 
     // Exercise 4: Declare buffer and query fields
     private final GraphicsOverlay bufferAndQueryMapGraphics = new GraphicsOverlay();
+    private final GeodesicBufferCache bufferCache = new GeodesicBufferCache();
+    private final SelectionCoordinator selectionCoordinator = new SelectionCoordinator();
+    private final QueryFanOut queryFanOut = new QueryFanOut(4, 64);
+    private final QueryResultCache resultCache = new QueryResultCache(RESULT_CACHE_MAX_OBJECT_IDS);
+    private final AdaptiveBufferFactory adaptiveBufferFactory
+        = new AdaptiveBufferFactory(bufferCache, BUFFER_MAX_POINT_COUNT, BUFFER_MAX_SEGMENT_LENGTH, 0.5, 0.1);
+
+    // Analysis options panel
+    private final VBox analysisPanel = new VBox(5.0);
+    private final CheckBox checkBox_adaptiveBuffer = new CheckBox("Scale-adaptive buffer detail");
+    private final CheckBox checkBox_exactRadius = new CheckBox("Exact geodesic radius");
+    private final CheckBox checkBox_multiRing = new CheckBox("Rings at a quarter, half and all of the radius");
+    private final CheckBox checkBox_nearest = new CheckBox("25 nearest crimes instead of buffer");
+    private final CheckBox checkBox_accumulate = new CheckBox("Add each click's buffer to the selection");
+    private final CheckBox checkBox_rectangleSelect = new CheckBox("Drag to select a rectangle");
+    private final CheckBox checkBox_lassoSelect = new CheckBox("Drag to select with a lasso");
+    private final CheckBox checkBox_radiusDrag = new CheckBox("Drag out from a point to size the buffer");
+    private final CheckBox checkBox_density = new CheckBox("Density grid when zoomed out");
+    private final CheckBox checkBox_kernelDensity = new CheckBox("Kernel density surface instead of crimes");
+    private final CheckBox checkBox_wards = new CheckBox("Click to select the nearest crime's ward");
+    private final CheckBox checkBox_neighborhoods = new CheckBox("Click to select the nearest crime's neighborhood cluster");
+    // The crimes of each ward and neighborhood cluster, grouped by attribute once the layers are indexed
+    private volatile AreaJoin wardJoin = null;
+    private volatile AreaJoin neighborhoodJoin = null;
+    // Autocompletes block addresses and offenses once the layers are indexed
+    private final TextField textField_search = new TextField();
+    private final ListView<CrimeSearchIndex.Suggestion> listView_suggestions = new ListView<>();
+    private volatile CrimeSearchIndex searchIndex = null;
+    // The check boxes of each facet field's values, filled in once the layers are indexed
+    private final VBox facetPanel = new VBox(3.0);
+    private final Map<String, List<CheckBox>> facetCheckBoxes = new LinkedHashMap<>();
+    private final DatePicker datePicker_from = new DatePicker();
+    private final DatePicker datePicker_to = new DatePicker();
+    private final Button button_last30Days = new Button("Last 30 days");
+    private final Button button_allDates = new Button("All dates");
+    // Set while the buttons change both dates, so that the pickers do not each re-run the selection
+    private boolean settingDates = false;
+    private Point lastBufferCenter = null;
+    // Filters the last buffer's crimes again for new facets, or null if the last selection was not a buffer
+    private Runnable lastBufferRefilter = null;
+    // Selects the last clicked ward or neighborhood again for new dates or facets, or null
+    private Runnable lastAreaSelection = null;
+    private double bufferRadiusMeters = BUFFER_RADIUS_METERS;
+    private final Label label_selectionSummary = new Label();
+    private long selectionSummaryGeneration = 0;
+
+    // In accumulate mode, the buffers of the clicks so far, all with the same radius, selected as one union
+    private final List<Point> accumulatedCenters = new ArrayList<>();
+    private final List<Polygon> accumulatedBuffers = new ArrayList<>();
+    private final List<Polygon> accumulatedDisplayBuffers = new ArrayList<>();
+    private double accumulatedRadiusMeters = 0.0;
+    private long accumulateGeneration = 0;
 
     // Exercise 5: Declare routing fields
     private RouteTask routeTask;
@@ -149,6 +286,57 @@ public class WorkshopApp extends Application {
     private final GraphicsOverlay sceneRouteGraphics = new GraphicsOverlay();
     private Point originPoint = null;
 
+    // Client-side spatial indexes of the operational layers, built after the mobile map package loads
+    private volatile Map<FeatureLayer, LayerIndex> layerIndexes = Collections.emptyMap();
+
+    // Crime counts per grid cell at every zoom level, loaded or built after the mobile map package loads
+    private volatile DensityPyramid densityPyramid = null;
+    private final GraphicsOverlay densityMapGraphics = new GraphicsOverlay();
+    private String densityGridKey = null;
+
+    // Kernel density surface of the crimes in the selected dates and facets, drawn a tile at a time
+    private KernelDensity kernelDensity = null;
+    private final GraphicsOverlay kernelDensityMapGraphics = new GraphicsOverlay();
+    // The graphics of each tile on the map, by tile key, and the level, filters and color scale they share
+    private final Map<String, List<Graphic>> kernelDensityTileGraphics = new HashMap<>();
+    private List<Object> kernelDensitySurfaceKey = null;
+    private float kernelDensityScale = 0.0f;
+
+    // Hotspot cells of the extent last analyzed, or null if none are shown
+    private final Button button_hotspots = new Button("Find hotspots in view");
+    private final Button button_clearHotspots = new Button("Clear hotspots");
+    private final Label label_hotspots = new Label();
+    private final GraphicsOverlay hotspotMapGraphics = new GraphicsOverlay();
+    private Envelope hotspotExtent = null;
+    private long hotspotGeneration = 0;
+
+    // Tooltips for the crime under the cursor; the scene has no indexed crime layers, so it uses identify
+    private final HoverIdentifier mapHover
+        = new HoverIdentifier(mapView, mapView::screenToLocation, () -> layerIndexes.values());
+    private HoverIdentifier sceneHover = null;
+
+    // The rectangle or lasso selection being dragged out, applied to the map once per frame
+    private SketchSelection sketchSelection = null;
+    private final List<Point> sketchPoints = new ArrayList<>();
+    private Point2D lastSketchPosition = null;
+    private Graphic sketchGraphic = null;
+    private boolean sketchChanged = false;
+
+    // The buffer whose radius is being dragged, previewed once per frame from the crimes' sorted distances
+    private Point radiusDragCenter = null;
+    private DistanceProfile radiusDragProfile = null;
+    private Graphic radiusDragGraphic = null;
+    private double radiusDragMeters = 0.0;
+    private boolean radiusDragChanged = false;
+
+    private final AnimationTimer dragTimer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            showSketchSelection();
+            showRadiusPreview();
+        }
+    };
+
     /**
      * Default constructor for class.
      */
@@ -186,15 +374,88 @@ public class WorkshopApp extends Application {
             }
             map.setBasemap(Basemap.createTopographicVector());
 
+            // Build spatial indexes of the feature layers on a background thread
+            final List<FeatureLayer> featureLayers = getFeatureLayers();
+            new Thread(() -> {
+                openDensityPyramid();
+                buildLayerIndexes(featureLayers);
+                Platform.runLater(() -> showFacets());
+                Platform.runLater(() -> updateKernelDensity());
+                buildSearchIndex();
+                wardJoin = buildAreaJoin(CrimeFeatureStore.WARD_FIELD);
+                neighborhoodJoin = buildAreaJoin(CrimeFeatureStore.NEIGHBORHOOD_FIELD);
+                Platform.runLater(() -> {
+                    checkBox_wards.setDisable(false);
+                    checkBox_neighborhoods.setDisable(false);
+                });
+                if (null == densityPyramid) {
+                    buildDensityPyramid();
+                }
+            }).start();
+
             // Exercise 3: Add a KML layer to the map
             KmlLayer kmlLayer = new KmlLayer(new KmlDataset(KML_URL));
             map.getOperationalLayers().add(kmlLayer);
         });
         mmpk.loadAsync();
 
+        // Draw the density grid below the click and buffer, and redraw it as the map moves
+        mapView.getGraphicsOverlays().add(densityMapGraphics);
+        mapView.addViewpointChangedListener(event -> updateDensityGrid());
+        checkBox_density.setOnAction(event -> updateDensityGrid());
+
+        // Draw the kernel density surface there too, computing only the tiles that come into view
+        mapView.getGraphicsOverlays().add(kernelDensityMapGraphics);
+        mapView.addViewpointChangedListener(event -> updateKernelDensity());
+        checkBox_kernelDensity.setOnAction(event -> updateKernelDensity());
+
+        // Draw hotspot cells on demand, for the extent in view when asked
+        mapView.getGraphicsOverlays().add(hotspotMapGraphics);
+        button_hotspots.setOnAction(event -> findHotspots());
+        button_clearHotspots.setOnAction(event -> clearHotspots());
+
+        // Show the crime under the cursor as the mouse moves
+        mapHover.start();
+
+        // Turning accumulate mode on or off starts a new selection with the next click
+        checkBox_accumulate.setOnAction(event -> clearAccumulatedBuffers());
+
+        // Clicking a ward or a neighborhood cluster selects it instead of buffering; only one of them at a time.
+        // The modes are offered once the crimes are grouped by their WARD and NEIGHBORHO attributes.
+        checkBox_wards.setDisable(true);
+        checkBox_neighborhoods.setDisable(true);
+        checkBox_wards.setOnAction(event -> areaMode_onAction(checkBox_wards));
+        checkBox_neighborhoods.setOnAction(event -> areaMode_onAction(checkBox_neighborhoods));
+
+        // Select with a rectangle or lasso by dragging on the map when one of those tools is on
+        checkBox_rectangleSelect.setOnAction(event -> dragTool_onAction(checkBox_rectangleSelect));
+        checkBox_lassoSelect.setOnAction(event -> dragTool_onAction(checkBox_lassoSelect));
+        // Dragging can also resize the buffer around the point where the drag starts
+        checkBox_radiusDrag.setOnAction(event -> dragTool_onAction(checkBox_radiusDrag));
+        mapView.setOnMousePressed(event -> {
+            sketch_onMousePressed(event);
+            radiusDrag_onMousePressed(event);
+        });
+        mapView.setOnMouseDragged(event -> {
+            sketch_onMouseDragged(event);
+            radiusDrag_onMouseDragged(event);
+        });
+        mapView.setOnMouseReleased(event -> {
+            sketch_onMouseReleased(event);
+            radiusDrag_onMouseReleased(event);
+        });
+
         //Exercise 4: Add a GraphicsOverlay to the map for the click and buffer
         mapView.getGraphicsOverlays().add(bufferAndQueryMapGraphics);
 
+        // Re-run the last buffer query when the date range changes
+        datePicker_from.setPromptText("Reported from");
+        datePicker_to.setPromptText("Reported to");
+        datePicker_from.setOnAction(event -> datePicker_onAction());
+        datePicker_to.setOnAction(event -> datePicker_onAction());
+        button_last30Days.setOnAction(event -> button_last30Days_onAction());
+        button_allDates.setOnAction(event -> setDates(null, null));
+
         // Exercise 4: Set the buffer and query toggle button's action
         toggleButton_bufferAndQuery.setOnAction(event -> toggleButton_bufferAndQuery_onAction());
 
@@ -265,6 +526,23 @@ public class WorkshopApp extends Application {
         AnchorPane.setBottomAnchor(toggleButton_routing, 80.0);
         anchorPane.getChildren().add(toggleButton_routing);
 
+        // Place the analysis options panel in the UI
+        analysisPanel.setStyle("-fx-background-color: rgba(255, 255, 255, 0.85); -fx-padding: 8;");
+        textField_search.setPromptText("Search block addresses and offenses");
+        textField_search.textProperty().addListener((observable, oldValue, newValue) -> search_onTextChanged(newValue));
+        textField_search.setOnAction(event -> search_onAction());
+        listView_suggestions.setOnMouseClicked(event -> suggestion_onMouseClicked());
+        listView_suggestions.setPrefHeight(150.0);
+        showSuggestions(Collections.emptyList());
+        analysisPanel.getChildren().addAll(textField_search, listView_suggestions, checkBox_adaptiveBuffer, checkBox_exactRadius, checkBox_multiRing, checkBox_nearest,
+            checkBox_accumulate, checkBox_wards, checkBox_neighborhoods, checkBox_rectangleSelect, checkBox_lassoSelect,
+            checkBox_radiusDrag, checkBox_density, checkBox_kernelDensity,
+            new HBox(5.0, datePicker_from, datePicker_to), new HBox(5.0, button_last30Days, button_allDates),
+            new HBox(5.0, button_hotspots, button_clearHotspots), label_hotspots, facetPanel, label_selectionSummary);
+        AnchorPane.setLeftAnchor(analysisPanel, 15.0);
+        AnchorPane.setTopAnchor(analysisPanel, 15.0);
+        anchorPane.getChildren().add(analysisPanel);
+
         // Exercise 1: Finish displaying the UI
         // JavaFX Scene (unrelated to ArcGIS 3D scene)
         Scene javaFxScene = new Scene(anchorPane);
@@ -283,6 +561,22 @@ public class WorkshopApp extends Application {
             sceneView.dispose();
         }
 
+        Logger.getLogger(WorkshopApp.class.getName()).log(Level.INFO, selectionCoordinator.toString());
+        Logger.getLogger(WorkshopApp.class.getName()).log(Level.INFO, mapHover.toString());
+        mapHover.stop();
+        if (null != sceneHover) {
+            Logger.getLogger(WorkshopApp.class.getName()).log(Level.INFO, sceneHover.toString());
+            sceneHover.stop();
+        }
+        Logger.getLogger(WorkshopApp.class.getName()).log(Level.INFO, queryFanOut.getLatencyReport());
+        Logger.getLogger(WorkshopApp.class.getName()).log(Level.INFO, resultCache.toString());
+        Logger.getLogger(WorkshopApp.class.getName()).log(Level.INFO, "Adaptive buffers saved {0} vertices",
+            adaptiveBufferFactory.getVerticesSaved());
+        if (null != kernelDensity) {
+            Logger.getLogger(WorkshopApp.class.getName()).log(Level.INFO, kernelDensity.toString());
+        }
+        queryFanOut.shutdown();
+
         super.stop();
     }
 
@@ -306,6 +600,8 @@ public class WorkshopApp extends Application {
                 surface.getElevationSources().add(new ArcGISTiledElevationSource(ELEVATION_IMAGE_SERVICE));
                 scene.setBaseSurface(surface);
                 sceneView = new SceneView();
+                sceneHover = new HoverIdentifier(sceneView, sceneView::screenToBaseSurface, Collections::emptyList);
+                sceneHover.start();
 
                 // Exercise 3: Add a scene layer to the scene
                 ArcGISSceneLayer sceneLayer = new ArcGISSceneLayer(SCENE_SERVICE_URL);
@@ -487,33 +783,1495 @@ public class WorkshopApp extends Application {
      */
     private void bufferAndQuery(MouseEvent event) {
         if (MouseButton.PRIMARY.equals(event.getButton()) && event.isStillSincePress()) {
-            Point geoPoint = getGeoPoint(event);
-            // Buffer by 1000 meters
-            GeodesicEllipseParameters params = new GeodesicEllipseParameters();
-            params.setCenter(geoPoint);
-            params.setGeometryType(GeometryType.POLYGON);
-            params.setLinearUnit(new LinearUnit(LinearUnitId.METERS));
-            params.setMaxPointCount(1000);
-            params.setMaxSegmentLength(1.0);
-            params.setSemiAxis1Length(1000.0);
-            Polygon buffer = (Polygon) GeometryEngine.ellipseGeodesic(params);
-
-            // Show click and buffer as graphics
-            ListenableList<Graphic> graphics = bufferAndQueryMapGraphics.getGraphics();
-            graphics.clear();
-            graphics.add(new Graphic(buffer, BUFFER_SYMBOL));
-            graphics.add(new Graphic(geoPoint, CLICK_SYMBOL));
+            bufferAndQuery(getGeoPoint(event));
+        }
+    }
 
-            // Run the query
+    /**
+     * Buffers a point and selects the crimes in the buffer that were reported
+     * in the selected date range.
+     *
+     * @param geoPoint the buffer center.
+     */
+    private void bufferAndQuery(Point geoPoint) {
+        TimeWindow window = getTimeWindow();
+        FacetFilter facets = getFacetFilter();
+        lastBufferRefilter = null;
+        lastAreaSelection = null;
+        if (checkBox_wards.isSelected() || checkBox_neighborhoods.isSelected()) {
+            if (checkBox_wards.isSelected()) {
+                selectArea(wardJoin, "Ward %s", geoPoint);
+            } else {
+                selectArea(neighborhoodJoin, "%s", geoPoint);
+            }
+            return;
+        }
+        if (checkBox_accumulate.isSelected() && !checkBox_nearest.isSelected()) {
+            accumulateBuffer(geoPoint, window);
+            return;
+        }
+        clearAccumulatedBuffers();
+        lastBufferCenter = geoPoint;
+        if (checkBox_nearest.isSelected()) {
+            selectNearest(geoPoint, window, facets);
+            return;
+        }
+        // Snap the center to the result cache's grid, so that clicks on the same spot run the same query
+        Point center = QueryResultCache.quantize(geoPoint);
+        // Buffer by the radius, reusing a cached circle template when one is accurate enough
+        double radiusMeters = bufferRadiusMeters;
+        AdaptiveBufferFactory.Buffers buffers = createBuffers(center, radiusMeters);
+        Polygon buffer = buffers.getQuery();
+
+        // Show click and buffer as graphics
+        ListenableList<Graphic> graphics = bufferAndQueryMapGraphics.getGraphics();
+        graphics.clear();
+        graphics.add(new Graphic(buffers.getDisplay(), BUFFER_SYMBOL));
+        graphics.add(new Graphic(geoPoint, CLICK_SYMBOL));
+
+        // In multi-ring mode, draw the inner rings and label every ring with its count once the query is done
+        List<Graphic> ringLabels = new ArrayList<>();
+        double[] ringRadii = new double[MULTI_RING_RADII_METERS.length];
+        for (int i = 0; i < ringRadii.length; i++) {
+            ringRadii[i] = MULTI_RING_RADII_METERS[i] * radiusMeters / BUFFER_RADIUS_METERS;
+        }
+        if (checkBox_multiRing.isSelected()) {
+            for (double radius : ringRadii) {
+                if (radius < radiusMeters) {
+                    graphics.add(new Graphic(createBuffers(center, radius).getDisplay(), INNER_RING_SYMBOL));
+                }
+                // Place the label on the ring due north of the center, computed entirely in WGS 84
+                Point wgs84Center = (Point) LayerIndex.toIndexSpatialReference(center);
+                double[] north = Geodesics.destination(wgs84Center.getX(), wgs84Center.getY(), 0.0, radius);
+                Graphic ringLabel = new Graphic(new Point(north[0], north[1], LayerIndex.SPATIAL_REFERENCE),
+                    createRingLabelSymbol(radius, "..."));
+                graphics.add(ringLabel);
+                ringLabels.add(ringLabel);
+            }
+        }
+
+        // Run the query on each feature layer whose extent intersects the buffer
+        QueryParameters query = new QueryParameters();
+        query.setGeometry(buffer);
+        long startTime = System.nanoTime();
+        Map<FeatureLayer, LayerIndex> indexes = layerIndexes;
+        boolean exactRadius = checkBox_exactRadius.isSelected();
+        // Reuse the object IDs of an earlier query with the same center, radius and filters
+        QueryResultCache.Key cacheKey = resultCache.createKey(center, radiusMeters,
+            Arrays.asList(window.getFromMillis(), window.getToMillis(), exactRadius, facets));
+        Map<FeatureLayer, long[]> cachedObjectIds = indexes.isEmpty() ? null : resultCache.get(cacheKey);
+        List<FeatureLayer> featureLayers = getFeatureLayers();
+        queryFanOut.query(featureLayers, buffer, featureLayer -> {
+            if (null != cachedObjectIds) {
+                long[] objectIds = cachedObjectIds.getOrDefault(featureLayer, new long[0]);
+                if (0 == objectIds.length) {
+                    selectionCoordinator.clear(featureLayer);
+                    return CompletableFuture.completedFuture(null);
+                }
+                return selectionCoordinator.select(featureLayer, LayerIndex.createObjectIdQuery(objectIds, null));
+            }
+            LayerIndex layerIndex = indexes.get(featureLayer);
+            if (null == layerIndex) {
+                // The index is not built yet, so let the runtime search the whole table, ignoring dates
+                return selectionCoordinator.select(featureLayer, query);
+            }
+            // Only ask the runtime about the features in the window whose envelopes intersect the buffer,
+            // or in exact mode, about the features measured to be within the radius
+            QueryParameters bufferQuery = exactRadius
+                ? layerIndex.createRadiusQuery(center, radiusMeters, window, facets)
+                : layerIndex.createBufferQuery(buffer, window, facets);
+            if (null == bufferQuery) {
+                selectionCoordinator.clear(featureLayer);
+                return CompletableFuture.completedFuture(null);
+            }
+            return selectionCoordinator.select(featureLayer, bufferQuery);
+        }, selectionCoordinator::clear).whenComplete((results, ex) -> {
+            if (null != ex) {
+                // A cancelled query was superseded by a newer click, which has already cleared its rings
+                if (!isCancellation(ex)) {
+                    Logger.getLogger(WorkshopApp.class.getName()).log(Level.SEVERE, null, ex);
+                    Platform.runLater(() -> {
+                        for (int i = 0; i < ringLabels.size(); i++) {
+                            ringLabels.get(i).setSymbol(createRingLabelSymbol(ringRadii[i], "failed"));
+                        }
+                    });
+                }
+                return;
+            }
+            Logger.getLogger(WorkshopApp.class.getName()).log(Level.FINE,
+                "Selection on {0} layers finished in {1} ms",
+                new Object[]{results.size(), (System.nanoTime() - startTime) / 1000000});
+            if (null == cachedObjectIds && !indexes.isEmpty()) {
+                Map<FeatureLayer, long[]> objectIds = new HashMap<>();
+                for (FeatureLayer featureLayer : featureLayers) {
+                    FeatureQueryResult result = results.get(featureLayer);
+                    objectIds.put(featureLayer, null == result ? new long[0] : getObjectIds(result));
+                }
+                resultCache.put(cacheKey, objectIds);
+            }
+            if (!ringLabels.isEmpty()) {
+                showRingCounts(center, ringRadii, results, indexes, ringLabels);
+            }
+        });
+
+        // Summarize the crimes in the buffer without fetching them
+        List<Point> exactCenters = exactRadius ? Collections.singletonList(center) : null;
+        updateSelectionSummary(center, exactCenters, radiusMeters, buffer, window);
+
+        // When the facets change, intersect the crimes in the buffer with the new facets' bitmaps.
+        // The crimes in the buffer are found exactly, client-side, the first time they are needed.
+        if (!indexes.isEmpty()) {
+            Map<LayerIndex, RowBitmap> bufferRows = new HashMap<>();
+            Function<LayerIndex, RowBitmap> rowsInBuffer = layerIndex -> exactRadius
+                ? RowBitmap.of(layerIndex.queryRowsWithin(center, radiusMeters, window))
+                : layerIndex.queryRowsInside(buffer, window);
+            lastBufferRefilter = () -> {
+                selectByFacets(indexes, bufferRows, rowsInBuffer);
+                updateSelectionSummary(center, exactCenters, radiusMeters, buffer, window);
+            };
+        }
+    }
+
+    /**
+     * Selects the crimes in the last buffer that pass the current facets. The
+     * buffer's rows are intersected with the facets' bitmaps, and only
+     * features whose selection changes are queried.
+     *
+     * @param indexes the layer indexes used for the buffer.
+     * @param bufferRows the rows of each layer in the buffer, as found so far.
+     * @param rowsInBuffer finds the rows of a layer in the buffer.
+     */
+    private void selectByFacets(Map<FeatureLayer, LayerIndex> indexes, Map<LayerIndex, RowBitmap> bufferRows,
+        Function<LayerIndex, RowBitmap> rowsInBuffer) {
+        FacetFilter facets = getFacetFilter();
+        long startTime = System.nanoTime();
+        for (FeatureLayer featureLayer : getFeatureLayers()) {
+            LayerIndex layerIndex = indexes.get(featureLayer);
+            if (null == layerIndex) {
+                continue;
+            }
+            RowBitmap rows = bufferRows.computeIfAbsent(layerIndex, rowsInBuffer);
+            RowBitmap facetRows = layerIndex.getAttributeIndex().rows(facets);
+            if (null != facetRows) {
+                rows = rows.and(facetRows);
+            }
+            selectionCoordinator.selectObjectIds(featureLayer, layerIndex.toObjectIds(rows.toArray()));
+        }
+        Logger.getLogger(WorkshopApp.class.getName()).log(Level.FINE, "Filtered the buffer by {0} in {1} us",
+            new Object[]{facets, (System.nanoTime() - startTime) / 1000});
+    }
+
+    /**
+     * Adds the buffer of a point to the accumulated buffers and selects the
+     * crimes in any of them. A radius other than that of the accumulated
+     * buffers starts a new accumulation.
+     *
+     * @param geoPoint the buffer center.
+     * @param window the time window.
+     */
+    private void accumulateBuffer(Point geoPoint, TimeWindow window) {
+        lastBufferCenter = null;
+        if (bufferRadiusMeters != accumulatedRadiusMeters) {
+            clearAccumulatedBuffers();
+            accumulatedRadiusMeters = bufferRadiusMeters;
+        }
+        Point center = QueryResultCache.quantize(geoPoint);
+        AdaptiveBufferFactory.Buffers buffers = createBuffers(center, accumulatedRadiusMeters);
+        accumulatedCenters.add(center);
+        accumulatedBuffers.add(buffers.getQuery());
+        accumulatedDisplayBuffers.add(buffers.getDisplay());
+
+        ListenableList<Graphic> graphics = bufferAndQueryMapGraphics.getGraphics();
+        graphics.clear();
+        for (Polygon displayBuffer : accumulatedDisplayBuffers) {
+            graphics.add(new Graphic(displayBuffer, BUFFER_SYMBOL));
+        }
+        for (Point accumulatedCenter : accumulatedCenters) {
+            graphics.add(new Graphic(accumulatedCenter, CLICK_SYMBOL));
+        }
+        queryAccumulatedBuffers(window);
+    }
+
+    /**
+     * Unions the accumulated buffers off the JavaFX thread and selects the
+     * crimes in the union with one query per layer. Only the latest union is
+     * used.
+     *
+     * @param window the time window.
+     */
+    private void queryAccumulatedBuffers(TimeWindow window) {
+        final long generation = ++accumulateGeneration;
+        selectionSummaryGeneration++;
+        List<Point> centers = new ArrayList<>(accumulatedCenters);
+        List<Polygon> buffers = new ArrayList<>(accumulatedBuffers);
+        double radiusMeters = accumulatedRadiusMeters;
+        boolean exactRadius = checkBox_exactRadius.isSelected();
+        FacetFilter facets = getFacetFilter();
+        Map<FeatureLayer, LayerIndex> indexes = layerIndexes;
+        List<FeatureLayer> featureLayers = getFeatureLayers();
+        label_selectionSummary.setText(String.format("Combining %d buffers...", buffers.size()));
+        long startTime = System.nanoTime();
+        CompletableFuture.supplyAsync(() -> (Polygon) BufferUnion.union(buffers)).whenComplete((union, ex) -> Platform.runLater(() -> {
+            if (generation != accumulateGeneration) {
+                return;
+            }
+            if (null != ex) {
+                Logger.getLogger(WorkshopApp.class.getName()).log(Level.SEVERE, null, ex);
+                label_selectionSummary.setText("Could not combine the buffers");
+                return;
+            }
+            Logger.getLogger(WorkshopApp.class.getName()).log(Level.FINE, "Unioned {0} buffers in {1} ms",
+                new Object[]{buffers.size(), (System.nanoTime() - startTime) / 1000000});
             QueryParameters query = new QueryParameters();
-            query.setGeometry(buffer);
-            LayerList operationalLayers = mapView.getMap().getOperationalLayers();
-            operationalLayers.parallelStream().filter(
-                layer -> layer instanceof FeatureLayer
-            ).forEach(layer -> {
-                ((FeatureLayer) layer).selectFeaturesAsync(query, FeatureLayer.SelectionMode.NEW);
-            });
+            query.setGeometry(union);
+            queryFanOut.query(featureLayers, union, featureLayer -> {
+                LayerIndex layerIndex = indexes.get(featureLayer);
+                if (null == layerIndex) {
+                    // The index is not built yet, so let the runtime search the whole table, ignoring dates
+                    return selectionCoordinator.select(featureLayer, query);
+                }
+                QueryParameters unionQuery = exactRadius
+                    ? layerIndex.createRadiusQuery(centers, radiusMeters, window, facets)
+                    : layerIndex.createBufferQuery(union, window, facets);
+                if (null == unionQuery) {
+                    selectionCoordinator.clear(featureLayer);
+                    return CompletableFuture.completedFuture(null);
+                }
+                return selectionCoordinator.select(featureLayer, unionQuery);
+            }, selectionCoordinator::clear);
+            updateSelectionSummary(null, exactRadius ? centers : null, radiusMeters, union, window);
+        }));
+    }
+
+    /**
+     * Forgets the accumulated buffers, so that the next click in accumulate
+     * mode starts a new selection.
+     */
+    private void clearAccumulatedBuffers() {
+        accumulateGeneration++;
+        accumulatedCenters.clear();
+        accumulatedBuffers.clear();
+        accumulatedDisplayBuffers.clear();
+    }
+
+    /**
+     * Selects the crimes in the selected date range that are nearest to a
+     * point, however far away they are, and lists them by distance.
+     *
+     * @param geoPoint the point.
+     * @param window the time window.
+     * @param facets the facet filter.
+     */
+    private void selectNearest(Point geoPoint, TimeWindow window, FacetFilter facets) {
+        // Discard any buffer summary still on its way
+        selectionSummaryGeneration++;
+        ListenableList<Graphic> graphics = bufferAndQueryMapGraphics.getGraphics();
+        graphics.clear();
+        Map<FeatureLayer, LayerIndex> indexes = layerIndexes;
+        if (indexes.isEmpty()) {
+            graphics.add(new Graphic(geoPoint, CLICK_SYMBOL));
+            label_selectionSummary.setText("Indexing crime data...");
+            return;
+        }
+
+        // Search each layer's tree best-first, then keep the nearest of all layers
+        List<NearestNeighbors> results = new ArrayList<>();
+        for (LayerIndex layerIndex : indexes.values()) {
+            results.add(layerIndex.queryNearest(geoPoint, NEAREST_COUNT, window, facets));
+        }
+        NearestNeighbors nearest = NearestNeighbors.merge(results, NEAREST_COUNT);
+
+        // Show the circle that reaches the farthest of the nearest crimes
+        if (0 < nearest.size() && 0.0 < nearest.getDistanceMeters(nearest.size() - 1)) {
+            graphics.add(new Graphic(
+                createBuffers(geoPoint, nearest.getDistanceMeters(nearest.size() - 1)).getDisplay(), BUFFER_SYMBOL));
+        }
+        graphics.add(new Graphic(geoPoint, CLICK_SYMBOL));
+        for (FeatureLayer featureLayer : getFeatureLayers()) {
+            LayerIndex layerIndex = indexes.get(featureLayer);
+            long[] objectIds = null == layerIndex ? new long[0] : nearest.getObjectIds(layerIndex);
+            if (0 == objectIds.length) {
+                selectionCoordinator.clear(featureLayer);
+            } else {
+                selectionCoordinator.select(featureLayer, LayerIndex.createObjectIdQuery(objectIds, null));
+            }
+        }
+        label_selectionSummary.setText(nearest.format(NEAREST_LINES));
+    }
+
+    /**
+     * Makes the ward and neighborhood cluster modes exclusive.
+     *
+     * @param mode the check box that was clicked.
+     */
+    private void areaMode_onAction(CheckBox mode) {
+        for (CheckBox otherMode : new CheckBox[]{checkBox_wards, checkBox_neighborhoods}) {
+            if (mode.isSelected() && otherMode != mode) {
+                otherMode.setSelected(false);
+            }
+        }
+    }
+
+    /**
+     * Selects the crimes in the area of the crime nearest to a point that were
+     * reported in the selected date range and pass the facets. The area's
+     * crimes come from the join, so the runtime only selects features by
+     * object ID.
+     *
+     * @param join the crimes grouped by area, or null if they are not grouped
+     * yet.
+     * @param nameFormat the format of an area's label, given its name.
+     * @param geoPoint the clicked point.
+     */
+    private void selectArea(AreaJoin join, String nameFormat, Point geoPoint) {
+        clearAccumulatedBuffers();
+        lastBufferCenter = null;
+        selectionSummaryGeneration++;
+        ListenableList<Graphic> graphics = bufferAndQueryMapGraphics.getGraphics();
+        graphics.clear();
+        graphics.add(new Graphic(geoPoint, CLICK_SYMBOL));
+        Map<FeatureLayer, LayerIndex> indexes = layerIndexes;
+        if (null == join) {
+            label_selectionSummary.setText("Indexing crime data...");
+            return;
+        }
+
+        // The crimes carry their area as an attribute, so the clicked area is the nearest crime's
+        List<NearestNeighbors> results = new ArrayList<>();
+        for (LayerIndex layerIndex : indexes.values()) {
+            results.add(layerIndex.queryNearest(geoPoint, 1, TimeWindow.ALL));
+        }
+        NearestNeighbors nearest = NearestNeighbors.merge(results, 1);
+        int area = 0 < nearest.size() ? join.areaOf(nearest.getLayerIndex(0), nearest.getRow(0)) : -1;
+        if (0 > area) {
+            for (FeatureLayer featureLayer : getFeatureLayers()) {
+                selectionCoordinator.clear(featureLayer);
+            }
+            label_selectionSummary.setText("No area here");
+            return;
+        }
+        String name = String.format(nameFormat, join.getName(area));
+        lastAreaSelection = () -> selectAreaRows(join, area, name, indexes);
+        lastAreaSelection.run();
+    }
+
+    /**
+     * Selects the crimes joined to an area that are in the selected date
+     * range and pass the facets, and summarizes them from the layer stores.
+     *
+     * @param join the join.
+     * @param area the area's index.
+     * @param name the area's label.
+     * @param indexes the layer indexes the join was built from.
+     */
+    private void selectAreaRows(AreaJoin join, int area, String name, Map<FeatureLayer, LayerIndex> indexes) {
+        TimeWindow window = getTimeWindow();
+        FacetFilter facets = getFacetFilter();
+        long startTime = System.nanoTime();
+        Map<LayerIndex, int[]> rowsByLayer = new HashMap<>();
+        for (FeatureLayer featureLayer : getFeatureLayers()) {
+            LayerIndex layerIndex = indexes.get(featureLayer);
+            if (null == layerIndex) {
+                selectionCoordinator.clear(featureLayer);
+                continue;
+            }
+            // Intersect the area's bitmap with the facets' bitmap, then keep the rows in the window
+            RowBitmap rows = join.rows(layerIndex, area);
+            RowBitmap facetRows = layerIndex.getAttributeIndex().rows(facets);
+            if (null != facetRows) {
+                rows = rows.and(facetRows);
+            }
+            int[] matches = rows.toArray();
+            if (!window.isAll()) {
+                IntPredicate inWindow = layerIndex.getTemporalIndex().rowFilter(window);
+                matches = Arrays.stream(matches).filter(inWindow).toArray();
+            }
+            rowsByLayer.put(layerIndex, matches);
+            selectionCoordinator.selectObjectIds(featureLayer, layerIndex.toObjectIds(matches));
+        }
+        SelectionSummary summary = SelectionSummary.ofRows(rowsByLayer);
+        Logger.getLogger(WorkshopApp.class.getName()).log(Level.FINE, "Selected {0} crimes of an area in {1} us",
+            new Object[]{summary.getTotal(), (System.nanoTime() - startTime) / 1000});
+        label_selectionSummary.setText(String.format("%s: %d crimes reported in all\n\n%s",
+            name, join.getTotal(area), summary.format(name)));
+    }
+
+    /**
+     * Returns the object IDs of the features in a query result.
+     *
+     * @param result the query result.
+     * @return the object IDs, or an empty array if the result has no object ID
+     * field.
+     */
+    private static long[] getObjectIds(FeatureQueryResult result) {
+        String objectIdField = SelectionCoordinator.getObjectIdField(result);
+        if (null == objectIdField) {
+            return new long[0];
+        }
+        List<Long> objectIds = new ArrayList<>();
+        for (Feature feature : result) {
+            Object objectId = feature.getAttributes().get(objectIdField);
+            if (objectId instanceof Number) {
+                objectIds.add(((Number) objectId).longValue());
+            }
+        }
+        return objectIds.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * Returns the time window selected with the date pickers.
+     *
+     * @return the selected time window.
+     */
+    private TimeWindow getTimeWindow() {
+        return TimeWindow.ofDates(datePicker_from.getValue(), datePicker_to.getValue());
+    }
+
+    /**
+     * Returns the facet filter of the facet check boxes. A field whose values
+     * are all checked is not restricted.
+     *
+     * @return the facet filter.
+     */
+    private FacetFilter getFacetFilter() {
+        FacetFilter facets = FacetFilter.ALL;
+        for (Map.Entry<String, List<CheckBox>> entry : facetCheckBoxes.entrySet()) {
+            List<String> values = new ArrayList<>();
+            for (CheckBox checkBox : entry.getValue()) {
+                if (checkBox.isSelected()) {
+                    values.add((String) checkBox.getUserData());
+                }
+            }
+            if (values.size() < entry.getValue().size()) {
+                facets = facets.restrict(entry.getKey(), values);
+            }
+        }
+        return facets;
+    }
+
+    /**
+     * Adds a check box for each offense, shift and method value in the indexed
+     * layers, all checked.
+     */
+    private void showFacets() {
+        facetCheckBoxes.clear();
+        facetPanel.getChildren().clear();
+        Map<String, Set<String>> valuesByField = new LinkedHashMap<>();
+        for (LayerIndex layerIndex : layerIndexes.values()) {
+            CrimeFeatureStore store = layerIndex.getStore();
+            for (DictionaryColumn column : new DictionaryColumn[]{store.getOffense(), store.getShift(), store.getMethod()}) {
+                Set<String> values = valuesByField.computeIfAbsent(column.getName(), name -> new TreeSet<>());
+                for (int code = 0; code < column.cardinality(); code++) {
+                    values.add(column.value(code));
+                }
+            }
+        }
+        valuesByField.forEach((fieldName, values) -> {
+            List<CheckBox> checkBoxes = new ArrayList<>();
+            for (String value : values) {
+                CheckBox checkBox = new CheckBox(value.trim());
+                checkBox.setUserData(value);
+                checkBox.setSelected(true);
+                checkBox.setOnAction(event -> facet_onAction());
+                checkBoxes.add(checkBox);
+            }
+            facetCheckBoxes.put(fieldName, checkBoxes);
+            FlowPane pane = new FlowPane(5.0, 3.0);
+            pane.setPrefWrapLength(300.0);
+            pane.getChildren().add(new Label(fieldName + ":"));
+            pane.getChildren().addAll(checkBoxes);
+            facetPanel.getChildren().add(pane);
+        });
+    }
+
+    /**
+     * Lists the suggestions for the text in the search box. The lookup takes
+     * microseconds, so it runs on every keystroke.
+     *
+     * @param text the text in the search box.
+     */
+    private void search_onTextChanged(String text) {
+        CrimeSearchIndex index = searchIndex;
+        if (null == index || null == text) {
+            showSuggestions(Collections.emptyList());
+            return;
+        }
+        showSuggestions(index.suggest(text, SEARCH_SUGGESTION_COUNT));
+    }
+
+    /**
+     * Searches for the first suggestion when Enter is pressed in the search
+     * box.
+     */
+    private void search_onAction() {
+        if (!listView_suggestions.getItems().isEmpty()) {
+            selectSuggestion(listView_suggestions.getItems().get(0));
+        }
+    }
+
+    private void suggestion_onMouseClicked() {
+        CrimeSearchIndex.Suggestion suggestion = listView_suggestions.getSelectionModel().getSelectedItem();
+        if (null != suggestion) {
+            selectSuggestion(suggestion);
+        }
+    }
+
+    private void showSuggestions(List<CrimeSearchIndex.Suggestion> suggestions) {
+        listView_suggestions.getItems().setAll(suggestions);
+        listView_suggestions.setVisible(!suggestions.isEmpty());
+        listView_suggestions.setManaged(!suggestions.isEmpty());
+    }
+
+    /**
+     * Selects the crimes with a block address or offense in the selected date
+     * range and facets, and zooms to them.
+     *
+     * @param suggestion the block address or offense.
+     */
+    private void selectSuggestion(CrimeSearchIndex.Suggestion suggestion) {
+        showSuggestions(Collections.emptyList());
+        lastBufferCenter = null;
+        lastBufferRefilter = null;
+        lastAreaSelection = null;
+        clearAccumulatedBuffers();
+        selectionSummaryGeneration++;
+        bufferAndQueryMapGraphics.getGraphics().clear();
+
+        TimeWindow window = getTimeWindow();
+        FacetFilter facets = getFacetFilter();
+        Map<FeatureLayer, LayerIndex> indexes = layerIndexes;
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        int count = 0;
+        for (FeatureLayer featureLayer : getFeatureLayers()) {
+            LayerIndex layerIndex = indexes.get(featureLayer);
+            if (null == layerIndex) {
+                selectionCoordinator.clear(featureLayer);
+                continue;
+            }
+            // Intersect the value's bitmap with the facets' bitmap, then keep the rows in the window
+            RowBitmap rows = layerIndex.getAttributeIndex().rows(suggestion.toFacetFilter());
+            RowBitmap facetRows = layerIndex.getAttributeIndex().rows(facets);
+            if (null != facetRows) {
+                rows = rows.and(facetRows);
+            }
+            IntPredicate inWindow = layerIndex.getTemporalIndex().rowFilter(window);
+            CrimeFeatureStore store = layerIndex.getStore();
+            int[] matches = rows.toArray();
+            int matchCount = 0;
+            for (int row : matches) {
+                if (inWindow.test(row)) {
+                    matches[matchCount++] = row;
+                    minX = Math.min(minX, store.x(row));
+                    minY = Math.min(minY, store.y(row));
+                    maxX = Math.max(maxX, store.x(row));
+                    maxY = Math.max(maxY, store.y(row));
+                }
+            }
+            count += matchCount;
+            selectionCoordinator.selectObjectIds(featureLayer, layerIndex.toObjectIds(Arrays.copyOf(matches, matchCount)));
+        }
+        label_selectionSummary.setText(String.format("%d crimes: %s", count, suggestion));
+        if (0 == count) {
+            return;
+        }
+        // A block's crimes usually share one location, which has no extent to zoom to
+        if (minX == maxX && minY == maxY) {
+            mapView.setViewpointCenterAsync(new Point(minX, minY, LayerIndex.SPATIAL_REFERENCE), SEARCH_ZOOM_SCALE);
+        } else {
+            mapView.setViewpointGeometryAsync(new Envelope(minX, minY, maxX, maxY, LayerIndex.SPATIAL_REFERENCE),
+                SEARCH_ZOOM_PADDING);
+        }
+    }
+
+    /**
+     * Filters the current selection, the kernel density surface and the
+     * hotspots again with the new facets.
+     */
+    private void facet_onAction() {
+        updateKernelDensity();
+        updateHotspots();
+        if (null != lastAreaSelection) {
+            lastAreaSelection.run();
+        } else if (!accumulatedBuffers.isEmpty()) {
+            queryAccumulatedBuffers(getTimeWindow());
+        } else if (null != lastBufferRefilter && !checkBox_multiRing.isSelected()) {
+            lastBufferRefilter.run();
+        } else if (null != lastBufferCenter) {
+            // The ring counts come from a query, so run one
+            bufferAndQuery(lastBufferCenter);
+        }
+    }
+
+    /**
+     * Re-runs the last buffer query and redraws the kernel density surface
+     * and the hotspots with the new date range.
+     */
+    private void timeWindow_onChange() {
+        updateKernelDensity();
+        updateHotspots();
+        if (null != lastAreaSelection) {
+            lastAreaSelection.run();
+        } else if (!accumulatedBuffers.isEmpty()) {
+            queryAccumulatedBuffers(getTimeWindow());
+        } else if (null != lastBufferCenter) {
+            bufferAndQuery(lastBufferCenter);
+        }
+    }
+
+    /**
+     * Selects the 30 days up to the latest report in the crime data.
+     */
+    private void button_last30Days_onAction() {
+        long latestTime = CrimeFeatureStore.NO_TIME;
+        for (LayerIndex layerIndex : layerIndexes.values()) {
+            latestTime = Math.max(latestTime, layerIndex.getTemporalIndex().getLatestTime());
+        }
+        if (CrimeFeatureStore.NO_TIME == latestTime) {
+            return;
+        }
+        LocalDate latestDate = Instant.ofEpochMilli(latestTime).atZone(CrimeFeatureStore.TIME_ZONE).toLocalDate();
+        setDates(latestDate.minusDays(29), latestDate);
+    }
+
+    /**
+     * Re-runs the selection when the user picks a date, but not while both
+     * dates are being set at once.
+     */
+    private void datePicker_onAction() {
+        if (!settingDates) {
+            timeWindow_onChange();
+        }
+    }
+
+    /**
+     * Sets both dates and then updates everything that depends on them once,
+     * with the whole new range.
+     *
+     * @param from the first date, or null for no lower bound.
+     * @param to the last date, or null for no upper bound.
+     */
+    private void setDates(LocalDate from, LocalDate to) {
+        settingDates = true;
+        try {
+            datePicker_from.setValue(from);
+            datePicker_to.setValue(to);
+        } finally {
+            settingDates = false;
+        }
+        timeWindow_onChange();
+    }
+
+    /**
+     * Creates the display and query polygons of a buffer, with scale-adaptive
+     * detail if that option is selected.
+     *
+     * @param center the buffer center.
+     * @param radiusMeters the buffer radius in meters.
+     * @return the buffer polygons.
+     */
+    private AdaptiveBufferFactory.Buffers createBuffers(Point center, double radiusMeters) {
+        if (checkBox_adaptiveBuffer.isSelected()) {
+            // Draw a coarse circle for the current scale and query with one bounded in meters
+            AdaptiveBufferFactory.Buffers buffers
+                = adaptiveBufferFactory.create(center, radiusMeters, mapView.getMapScale());
+            Logger.getLogger(WorkshopApp.class.getName()).log(Level.FINE,
+                "Buffer has {0} display and {1} query vertices, saving {2} ({3} in total)",
+                new Object[]{buffers.getDisplayVertexCount(), buffers.getQueryVertexCount(),
+                    buffers.getVerticesSaved(), adaptiveBufferFactory.getVerticesSaved()});
+            return buffers;
         }
+        Polygon buffer = bufferCache.buffer(center, radiusMeters, LinearUnitId.METERS,
+            BUFFER_MAX_POINT_COUNT, BUFFER_MAX_SEGMENT_LENGTH);
+        int vertexCount = buffer.getParts().get(0).getPointCount();
+        return new AdaptiveBufferFactory.Buffers(buffer, buffer, vertexCount, vertexCount, 0);
+    }
+
+    /**
+     * Classifies the features selected by an outer-radius query into rings
+     * and shows each ring's count in its label.
+     *
+     * @param center the buffer center.
+     * @param ringRadii the radius of each ring in meters, from the innermost
+     * ring outward.
+     * @param results the selection of each layer.
+     * @param indexes the layer indexes used for the selection.
+     * @param ringLabels the label graphic of each ring, from the innermost
+     * ring outward.
+     */
+    private void showRingCounts(Point center, double[] ringRadii, Map<FeatureLayer, FeatureQueryResult> results,
+        Map<FeatureLayer, LayerIndex> indexes, List<Graphic> ringLabels) {
+        MultiRingCounts ringCounts = new MultiRingCounts(center, ringRadii).addAll(results, indexes);
+        Platform.runLater(() -> {
+            for (int i = 0; i < ringLabels.size(); i++) {
+                ringLabels.get(i).setSymbol(createRingLabelSymbol(
+                    ringRadii[i], Long.toString(ringCounts.getCumulativeCount(i))));
+            }
+        });
+    }
+
+    /**
+     * Returns whether a future failed only because it was cancelled.
+     *
+     * @param ex the failure, possibly wrapped by a dependent stage.
+     * @return true if the failure is a cancellation.
+     */
+    private static boolean isCancellation(Throwable ex) {
+        Throwable cause = ex instanceof CompletionException && null != ex.getCause() ? ex.getCause() : ex;
+        return cause instanceof CancellationException;
+    }
+
+    private static TextSymbol createRingLabelSymbol(double radiusMeters, String count) {
+        return new TextSymbol(12, String.format("%.0f m: %s", radiusMeters, count), 0xFF7F4F00,
+            TextSymbol.HorizontalAlignment.CENTER, TextSymbol.VerticalAlignment.BOTTOM);
+    }
+
+    /**
+     * Shows counts by offense, shift and day of week for a buffer in the
+     * analysis panel. Only the summary of the latest buffer is shown. Until
+     * the summary is ready, the panel shows an estimate from the density
+     * pyramid.
+     *
+     * In exact radius mode the crimes are selected by measured distance, so
+     * the summary counts the same measured rows instead of the crimes in the
+     * buffer polygon.
+     *
+     * @param center the buffer center, or null if the buffer is the union of
+     * several buffers.
+     * @param exactCenters the centers of the buffers in exact radius mode, or
+     * null to summarize the crimes in the buffer polygon.
+     * @param radiusMeters the buffer radius in meters.
+     * @param buffer the buffer.
+     * @param window the time window.
+     */
+    private void updateSelectionSummary(Point center, Collection<Point> exactCenters, double radiusMeters,
+        Polygon buffer, TimeWindow window) {
+        final long generation = ++selectionSummaryGeneration;
+        FacetFilter facets = getFacetFilter();
+        DensityPyramid pyramid = densityPyramid;
+        String estimate = "";
+        if (null != pyramid && null != center && window.isAll() && facets.isAll()) {
+            Point wgs84Center = (Point) LayerIndex.toIndexSpatialReference(center);
+            estimate = String.format("About %.0f crimes in buffer%n", pyramid.estimateCount(
+                wgs84Center.getX(), wgs84Center.getY(), radiusMeters));
+        }
+        if (layerIndexes.isEmpty()) {
+            label_selectionSummary.setText(estimate + "Indexing crime data...");
+            return;
+        }
+        if (null != exactCenters) {
+            Map<LayerIndex, int[]> rowsByLayer = new HashMap<>();
+            for (LayerIndex layerIndex : layerIndexes.values()) {
+                rowsByLayer.put(layerIndex, layerIndex.queryRowsWithin(exactCenters, radiusMeters, window, facets));
+            }
+            label_selectionSummary.setText(SelectionSummary.ofRows(rowsByLayer).format());
+            return;
+        }
+        label_selectionSummary.setText(estimate + "Summarizing...");
+        SelectionSummary.query(layerIndexes.values(), buffer, window, facets).whenComplete((summary, ex) -> Platform.runLater(() -> {
+            if (generation != selectionSummaryGeneration) {
+                return;
+            }
+            if (null == ex) {
+                label_selectionSummary.setText(summary.format());
+            } else {
+                Logger.getLogger(WorkshopApp.class.getName()).log(Level.SEVERE, null, ex);
+                label_selectionSummary.setText("Summary unavailable");
+            }
+        }));
+    }
+
+    /**
+     * Turns a drag tool on or off. The rectangle, lasso and radius tools are
+     * exclusive, and dragging pans the map only when none is on.
+     *
+     * @param tool the tool's check box.
+     */
+    private void dragTool_onAction(CheckBox tool) {
+        for (CheckBox otherTool : new CheckBox[]{checkBox_rectangleSelect, checkBox_lassoSelect, checkBox_radiusDrag}) {
+            if (tool.isSelected() && otherTool != tool) {
+                otherTool.setSelected(false);
+            }
+        }
+        mapView.getInteractionOptions().setPanEnabled(!checkBox_rectangleSelect.isSelected()
+            && !checkBox_lassoSelect.isSelected() && !checkBox_radiusDrag.isSelected());
+    }
+
+    /**
+     * Starts a rectangle or lasso selection at the cursor, if the buffer and
+     * query tool is on.
+     *
+     * @param event the mouse event.
+     */
+    private void sketch_onMousePressed(MouseEvent event) {
+        boolean rectangle = checkBox_rectangleSelect.isSelected();
+        if ((!rectangle && !checkBox_lassoSelect.isSelected()) || !toggleButton_bufferAndQuery.isSelected()
+            || !MouseButton.PRIMARY.equals(event.getButton()) || layerIndexes.isEmpty()) {
+            return;
+        }
+        Point2D position = new Point2D(event.getX(), event.getY());
+        Point location = getSketchLocation(position);
+        if (null == location) {
+            return;
+        }
+        // The sketch replaces any buffer, and date changes no longer re-run the last buffer
+        lastBufferCenter = null;
+        lastBufferRefilter = null;
+        lastAreaSelection = null;
+        clearAccumulatedBuffers();
+        selectionSummaryGeneration++;
+        sketchSelection = new SketchSelection(layerIndexes.values(), getTimeWindow(), getFacetFilter());
+        if (rectangle) {
+            sketchSelection.beginRectangle(location.getX(), location.getY());
+        } else {
+            sketchSelection.beginLasso(location.getX(), location.getY());
+        }
+        sketchPoints.clear();
+        sketchPoints.add(location);
+        lastSketchPosition = position;
+        sketchGraphic = new Graphic(null, BUFFER_SYMBOL);
+        bufferAndQueryMapGraphics.getGraphics().clear();
+        bufferAndQueryMapGraphics.getGraphics().add(sketchGraphic);
+        sketchChanged = true;
+        dragTimer.start();
+    }
+
+    /**
+     * Grows the rectangle or lasso to the cursor. Only the part of the shape
+     * that changed is searched; the map is updated on the next frame.
+     *
+     * @param event the mouse event.
+     */
+    private void sketch_onMouseDragged(MouseEvent event) {
+        if (null == sketchSelection) {
+            return;
+        }
+        Point2D position = new Point2D(event.getX(), event.getY());
+        boolean rectangle = checkBox_rectangleSelect.isSelected();
+        if (!rectangle && position.distance(lastSketchPosition) < LASSO_MIN_VERTEX_PIXELS) {
+            return;
+        }
+        Point location = getSketchLocation(position);
+        if (null == location) {
+            return;
+        }
+        lastSketchPosition = position;
+        if (rectangle) {
+            sketchSelection.updateRectangle(location.getX(), location.getY());
+            Point anchor = sketchPoints.get(0);
+            sketchPoints.clear();
+            sketchPoints.add(anchor);
+            sketchPoints.add(new Point(anchor.getX(), location.getY(), LayerIndex.SPATIAL_REFERENCE));
+            sketchPoints.add(location);
+            sketchPoints.add(new Point(location.getX(), anchor.getY(), LayerIndex.SPATIAL_REFERENCE));
+        } else {
+            sketchSelection.addLassoVertex(location.getX(), location.getY());
+            sketchPoints.add(location);
+        }
+        sketchChanged = true;
+    }
+
+    /**
+     * Finishes the rectangle or lasso selection.
+     *
+     * @param event the mouse event.
+     */
+    private void sketch_onMouseReleased(MouseEvent event) {
+        if (null == sketchSelection) {
+            return;
+        }
+        showSketchSelection();
+        dragTimer.stop();
+        Logger.getLogger(WorkshopApp.class.getName()).log(Level.FINE,
+            "Sketch selected {0} crimes with {1} point tests",
+            new Object[]{sketchSelection.getCount(), sketchSelection.getRowsTested()});
+        sketchSelection = null;
+    }
+
+    /**
+     * Draws the sketch and makes its crimes the selection, if it changed since
+     * the last frame. Only features that are not already selected are queried.
+     */
+    private void showSketchSelection() {
+        if (!sketchChanged) {
+            return;
+        }
+        sketchChanged = false;
+        PointCollection points = new PointCollection(LayerIndex.SPATIAL_REFERENCE);
+        for (Point point : sketchPoints) {
+            points.add(point);
+        }
+        sketchGraphic.setGeometry(new Polygon(points));
+        Map<FeatureLayer, LayerIndex> indexes = layerIndexes;
+        for (FeatureLayer featureLayer : getFeatureLayers()) {
+            LayerIndex layerIndex = indexes.get(featureLayer);
+            if (null == layerIndex) {
+                selectionCoordinator.clear(featureLayer);
+            } else {
+                selectionCoordinator.selectObjectIds(featureLayer, sketchSelection.getObjectIds(layerIndex));
+            }
+        }
+        label_selectionSummary.setText(sketchSelection.getCount() + " crimes selected");
+    }
+
+    /**
+     * Starts sizing a buffer around the cursor. The distance from the cursor
+     * to every crime in the date range and facets is measured once here, so
+     * that the preview can count the crimes in any radius without a query.
+     *
+     * @param event the mouse event.
+     */
+    private void radiusDrag_onMousePressed(MouseEvent event) {
+        if (!checkBox_radiusDrag.isSelected() || checkBox_nearest.isSelected()
+            || !toggleButton_bufferAndQuery.isSelected()
+            || !MouseButton.PRIMARY.equals(event.getButton()) || layerIndexes.isEmpty()) {
+            return;
+        }
+        Point location = getSketchLocation(new Point2D(event.getX(), event.getY()));
+        if (null == location) {
+            return;
+        }
+        selectionSummaryGeneration++;
+        radiusDragCenter = QueryResultCache.quantize(location);
+        radiusDragProfile = DistanceProfile.build(layerIndexes.values(),
+            radiusDragCenter.getX(), radiusDragCenter.getY(), getTimeWindow(), getFacetFilter());
+        radiusDragMeters = bufferRadiusMeters;
+        radiusDragGraphic = new Graphic(null, BUFFER_SYMBOL);
+        ListenableList<Graphic> graphics = bufferAndQueryMapGraphics.getGraphics();
+        graphics.clear();
+        graphics.add(radiusDragGraphic);
+        graphics.add(new Graphic(radiusDragCenter, CLICK_SYMBOL));
+        radiusDragChanged = true;
+        dragTimer.start();
+    }
+
+    /**
+     * Sets the buffer radius to the distance from the center to the cursor.
+     * The preview is updated on the next frame.
+     *
+     * @param event the mouse event.
+     */
+    private void radiusDrag_onMouseDragged(MouseEvent event) {
+        if (null == radiusDragCenter) {
+            return;
+        }
+        Point location = getSketchLocation(new Point2D(event.getX(), event.getY()));
+        if (null == location) {
+            return;
+        }
+        // Snap the radius so that the buffers made from it share cached templates
+        radiusDragMeters = GeodesicBufferCache.snapRadius(Geodesics.distanceMeters(
+            radiusDragCenter.getX(), radiusDragCenter.getY(), location.getX(), location.getY()));
+        radiusDragChanged = true;
+    }
+
+    /**
+     * Keeps the dragged radius and selects the crimes in the buffer. This is
+     * the only query the drag makes.
+     *
+     * @param event the mouse event.
+     */
+    private void radiusDrag_onMouseReleased(MouseEvent event) {
+        if (null == radiusDragCenter) {
+            return;
+        }
+        dragTimer.stop();
+        Point center = radiusDragCenter;
+        radiusDragCenter = null;
+        radiusDragProfile = null;
+        radiusDragGraphic = null;
+        bufferRadiusMeters = radiusDragMeters;
+        // A click without a drag is buffered by the click handler
+        if (!event.isStillSincePress()) {
+            bufferAndQuery(center);
+        }
+    }
+
+    /**
+     * Draws the buffer being sized and the number of crimes in it, if the
+     * radius changed since the last frame.
+     */
+    private void showRadiusPreview() {
+        if (!radiusDragChanged || null == radiusDragCenter) {
+            return;
+        }
+        radiusDragChanged = false;
+        double[] circle = Geodesics.circle(radiusDragCenter.getX(), radiusDragCenter.getY(),
+            radiusDragMeters, RADIUS_PREVIEW_VERTEX_COUNT);
+        PointCollection points = new PointCollection(LayerIndex.SPATIAL_REFERENCE);
+        for (int i = 0; i < circle.length; i += 2) {
+            points.add(circle[i], circle[i + 1]);
+        }
+        radiusDragGraphic.setGeometry(new Polygon(points));
+        label_selectionSummary.setText(String.format("%.0f m: %d crimes",
+            radiusDragMeters, radiusDragProfile.countWithin(radiusDragMeters)));
+    }
+
+    /**
+     * Returns the WGS 84 location under a point in the map view.
+     *
+     * @param position the point in the view.
+     * @return the location, or null if there is none.
+     */
+    private Point getSketchLocation(Point2D position) {
+        Point location = mapView.screenToLocation(position);
+        return null == location ? null : (Point) LayerIndex.toIndexSpatialReference(location);
+    }
+
+    /**
+     * Returns the feature layers among the map's operational layers.
+     *
+     * @return the feature layers.
+     */
+    private List<FeatureLayer> getFeatureLayers() {
+        List<FeatureLayer> featureLayers = new ArrayList<>();
+        mapView.getMap().getOperationalLayers().stream().filter(
+            layer -> layer instanceof FeatureLayer
+        ).forEach(layer -> featureLayers.add((FeatureLayer) layer));
+        return featureLayers;
+    }
+
+    /**
+     * Builds a spatial index for each feature layer. This method blocks while
+     * the runtime reads the features, so call it from a background thread.
+     *
+     * @param featureLayers the layers to index.
+     */
+    private void buildLayerIndexes(List<FeatureLayer> featureLayers) {
+        Map<FeatureLayer, LayerIndex> indexes = new HashMap<>();
+        for (FeatureLayer featureLayer : featureLayers) {
+            try {
+                long startTime = System.nanoTime();
+                LayerIndex layerIndex = LayerIndex.build(featureLayer);
+                if (null == layerIndex) {
+                    continue;
+                }
+                indexes.put(featureLayer, layerIndex);
+                Logger.getLogger(WorkshopApp.class.getName()).log(Level.INFO,
+                    "Indexed {0} features of {1} in {2} ms",
+                    new Object[]{layerIndex.size(), featureLayer.getName(), (System.nanoTime() - startTime) / 1000000});
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException ex) {
+                Logger.getLogger(WorkshopApp.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        layerIndexes = Collections.unmodifiableMap(indexes);
+        // Cached results refer to the features of the previous load
+        resultCache.invalidate();
+    }
+
+    /**
+     * Builds the search index from the layer stores. Call it after
+     * buildLayerIndexes, from a background thread.
+     */
+    private void buildSearchIndex() {
+        long startTime = System.nanoTime();
+        CrimeSearchIndex index = CrimeSearchIndex.build(layerIndexes.values());
+        searchIndex = index;
+        Logger.getLogger(WorkshopApp.class.getName()).log(Level.INFO, "{0}, built in {1} ms",
+            new Object[]{index, (System.nanoTime() - startTime) / 1000000});
+        // Suggest for anything typed while the index was being built
+        Platform.runLater(() -> search_onTextChanged(textField_search.getText()));
+    }
+
+    /**
+     * Groups the crimes of the indexed layers by an area field. Call it after
+     * buildLayerIndexes, from a background thread.
+     *
+     * @param fieldName the field that names each crime's area.
+     * @return the crimes grouped by area.
+     */
+    private AreaJoin buildAreaJoin(String fieldName) {
+        long startTime = System.nanoTime();
+        AreaJoin join = AreaJoin.build(fieldName, layerIndexes.values());
+        Logger.getLogger(WorkshopApp.class.getName()).log(Level.INFO, "Grouped crimes into {0} areas by {1} in {2} ms",
+            new Object[]{join.size(), fieldName, (System.nanoTime() - startTime) / 1000000});
+        return join;
+    }
+
+    /**
+     * Memory-maps the density pyramid file if it was built from the current
+     * mobile map package.
+     */
+    private void openDensityPyramid() {
+        try {
+            DensityPyramid pyramid = DensityPyramid.open(DENSITY_PYRAMID_PATH,
+                DensityPyramid.stampOf(Paths.get(MMPK_PATH)));
+            if (null != pyramid) {
+                densityPyramid = pyramid;
+                Platform.runLater(() -> updateDensityGrid());
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(WorkshopApp.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * Builds the density pyramid from the layer stores and saves it for the
+     * next run. Call it after buildLayerIndexes, from a background thread.
+     */
+    private void buildDensityPyramid() {
+        if (layerIndexes.isEmpty()) {
+            return;
+        }
+        List<CrimeFeatureStore> stores = new ArrayList<>();
+        layerIndexes.values().forEach(layerIndex -> stores.add(layerIndex.getStore()));
+        try {
+            long startTime = System.nanoTime();
+            DensityPyramid pyramid = DensityPyramid.build(stores, DensityPyramid.DEFAULT_LEVEL_COUNT,
+                DensityPyramid.stampOf(Paths.get(MMPK_PATH)));
+            densityPyramid = pyramid;
+            Platform.runLater(() -> updateDensityGrid());
+            pyramid.write(DENSITY_PYRAMID_PATH);
+            Logger.getLogger(WorkshopApp.class.getName()).log(Level.INFO,
+                "Built density pyramid {0} in {1} ms",
+                new Object[]{DENSITY_PYRAMID_PATH, (System.nanoTime() - startTime) / 1000000});
+        } catch (IOException ex) {
+            Logger.getLogger(WorkshopApp.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * Draws the density grid for the visible area when the density option is
+     * selected and the map is zoomed out, hiding the feature layers while it
+     * is shown. The grid is only redrawn when its level or visible cells
+     * change.
+     */
+    private void updateDensityGrid() {
+        DensityPyramid pyramid = densityPyramid;
+        Polygon visibleArea = mapView.getVisibleArea();
+        boolean showGrid = null != pyramid && null != visibleArea && checkBox_density.isSelected()
+            && DENSITY_MIN_SCALE < mapView.getMapScale();
+        if (!showGrid) {
+            if (null != densityGridKey) {
+                densityGridKey = null;
+                densityMapGraphics.getGraphics().clear();
+                updateFeatureLayerVisibility();
+            }
+            return;
+        }
+
+        Envelope extent = LayerIndex.toIndexSpatialReference(visibleArea).getExtent();
+        int level = pyramid.getLevelFor(extent.getWidth(), DENSITY_CELLS_ACROSS);
+        int minColumn = pyramid.getColumn(level, extent.getXMin());
+        int maxColumn = pyramid.getColumn(level, extent.getXMax());
+        int minRow = pyramid.getRow(level, extent.getYMin());
+        int maxRow = pyramid.getRow(level, extent.getYMax());
+        String key = level + ":" + minColumn + ":" + maxColumn + ":" + minRow + ":" + maxRow;
+        if (key.equals(densityGridKey)) {
+            return;
+        }
+        boolean wasShown = null != densityGridKey;
+        densityGridKey = key;
+        if (!wasShown) {
+            updateFeatureLayerVisibility();
+        }
+
+        int maxCount = 0;
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int column = minColumn; column <= maxColumn; column++) {
+                maxCount = Math.max(maxCount, pyramid.getCount(level, column, row));
+            }
+        }
+        List<Graphic> cells = new ArrayList<>();
+        double cellSize = pyramid.getCellSize(level);
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int column = minColumn; column <= maxColumn; column++) {
+                int count = pyramid.getCount(level, column, row);
+                if (0 == count) {
+                    continue;
+                }
+                double x = pyramid.getCellMinX(level, column);
+                double y = pyramid.getCellMinY(level, row);
+                PointCollection corners = new PointCollection(LayerIndex.SPATIAL_REFERENCE);
+                corners.add(x, y);
+                corners.add(x, y + cellSize);
+                corners.add(x + cellSize, y + cellSize);
+                corners.add(x + cellSize, y);
+                int symbol = (int) Math.ceil((double) count / maxCount * DENSITY_SYMBOLS.length) - 1;
+                cells.add(new Graphic(new Polygon(corners), DENSITY_SYMBOLS[symbol]));
+            }
+        }
+        densityMapGraphics.getGraphics().clear();
+        densityMapGraphics.getGraphics().addAll(cells);
+    }
+
+    /**
+     * Hides the crimes while the density grid or the kernel density surface
+     * is drawn in their place.
+     */
+    private void updateFeatureLayerVisibility() {
+        boolean visible = null == densityGridKey && null == kernelDensitySurfaceKey;
+        getFeatureLayers().forEach(featureLayer -> featureLayer.setVisible(visible));
+    }
+
+    /**
+     * Draws the kernel density surface of the visible area. Tiles already on
+     * the map stay there, tiles that left the view are removed, and only the
+     * tiles that came into view are computed, on a background thread. A new
+     * level, date range or facet filter starts a new surface.
+     */
+    private void updateKernelDensity() {
+        Map<FeatureLayer, LayerIndex> indexes = layerIndexes;
+        Polygon visibleArea = mapView.getVisibleArea();
+        if (!checkBox_kernelDensity.isSelected() || indexes.isEmpty() || null == visibleArea) {
+            if (null != kernelDensitySurfaceKey) {
+                clearKernelDensity();
+                kernelDensitySurfaceKey = null;
+                updateFeatureLayerVisibility();
+            }
+            return;
+        }
+
+        Envelope extent = LayerIndex.toIndexSpatialReference(visibleArea).getExtent();
+        int level = KernelDensity.getLevelFor(extent.getWidth(), KERNEL_DENSITY_TILES_ACROSS);
+        TimeWindow window = getTimeWindow();
+        FacetFilter facets = getFacetFilter();
+        List<Object> filterKey = Arrays.asList(indexes, window.getFromMillis(), window.getToMillis(), facets);
+        List<Object> surfaceKey = Arrays.asList(filterKey, level);
+        if (!surfaceKey.equals(kernelDensitySurfaceKey)) {
+            // Cached tiles stay valid at other levels, but not for other data or filters
+            if (null == kernelDensitySurfaceKey || !filterKey.equals(kernelDensitySurfaceKey.get(0))) {
+                kernelDensity = new KernelDensity(indexes.values(), window, facets, ForkJoinPool.commonPool(),
+                    KERNEL_DENSITY_MAX_TILES);
+            }
+            boolean wasShown = null != kernelDensitySurfaceKey;
+            clearKernelDensity();
+            kernelDensitySurfaceKey = surfaceKey;
+            if (!wasShown) {
+                updateFeatureLayerVisibility();
+            }
+        }
+
+        // Keep the tiles still in view and reserve a place for each new one, so it is computed only once
+        int minColumn = Math.max(0, KernelDensity.getColumn(level, extent.getXMin()));
+        int maxColumn = KernelDensity.getColumn(level, extent.getXMax());
+        int minRow = Math.max(0, KernelDensity.getRow(level, extent.getYMin()));
+        int maxRow = KernelDensity.getRow(level, extent.getYMax());
+        Map<String, int[]> visibleTiles = new HashMap<>();
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int column = minColumn; column <= maxColumn; column++) {
+                visibleTiles.put(column + ":" + row, new int[]{column, row});
+            }
+        }
+        kernelDensityTileGraphics.entrySet().removeIf(entry -> {
+            if (visibleTiles.containsKey(entry.getKey())) {
+                return false;
+            }
+            kernelDensityMapGraphics.getGraphics().removeAll(entry.getValue());
+            return true;
+        });
+        // Each reservation is a new list, so a result for a tile that left and came back can tell it is stale
+        List<String> newTileKeys = new ArrayList<>();
+        List<List<Graphic>> reservations = new ArrayList<>();
+        for (String tileKey : visibleTiles.keySet()) {
+            if (!kernelDensityTileGraphics.containsKey(tileKey)) {
+                List<Graphic> reservation = new ArrayList<>();
+                kernelDensityTileGraphics.put(tileKey, reservation);
+                newTileKeys.add(tileKey);
+                reservations.add(reservation);
+            }
+        }
+        if (newTileKeys.isEmpty()) {
+            return;
+        }
+
+        KernelDensity surface = kernelDensity;
+        long startTime = System.nanoTime();
+        CompletableFuture.supplyAsync(() -> {
+            List<KernelDensity.Tile> tiles = new ArrayList<>();
+            for (String tileKey : newTileKeys) {
+                int[] tile = visibleTiles.get(tileKey);
+                tiles.add(surface.getTile(level, tile[0], tile[1]));
+            }
+            return tiles;
+        }).thenAccept(tiles -> Platform.runLater(() -> {
+            Logger.getLogger(WorkshopApp.class.getName()).log(Level.FINE, "Computed {0} density tiles in {1} ms",
+                new Object[]{tiles.size(), (System.nanoTime() - startTime) / 1000000});
+            showKernelDensityTiles(surfaceKey, newTileKeys, reservations, tiles);
+        }));
+    }
+
+    /**
+     * Draws newly computed tiles of the kernel density surface, unless the
+     * surface has changed or the tiles have left the view since they were
+     * requested. The first tiles of a surface set its color scale, which
+     * later tiles share so that tiles drawn at different times match.
+     *
+     * @param surfaceKey the key of the surface the tiles belong to.
+     * @param tileKeys the tiles' keys.
+     * @param reservations the graphics lists reserved for the tiles when they
+     * were requested.
+     * @param tiles the tiles.
+     */
+    private void showKernelDensityTiles(List<Object> surfaceKey, List<String> tileKeys,
+        List<List<Graphic>> reservations, List<KernelDensity.Tile> tiles) {
+        if (!surfaceKey.equals(kernelDensitySurfaceKey)) {
+            return;
+        }
+        if (0.0f == kernelDensityScale) {
+            for (KernelDensity.Tile tile : tiles) {
+                kernelDensityScale = Math.max(kernelDensityScale, tile.getMaxDensity());
+            }
+        }
+        for (int i = 0; i < tiles.size(); i++) {
+            List<Graphic> tileGraphics = kernelDensityTileGraphics.get(tileKeys.get(i));
+            // A tile that left the view and came back has a newer reservation, which its newer request fills
+            if (reservations.get(i) == tileGraphics) {
+                tileGraphics.addAll(createKernelDensityGraphics(tiles.get(i), kernelDensityScale));
+                kernelDensityMapGraphics.getGraphics().addAll(tileGraphics);
+            }
+        }
+    }
+
+    /**
+     * Creates the graphics of a density tile. Neighboring cells of a row with
+     * the same color are drawn as one rectangle.
+     *
+     * @param tile the tile.
+     * @param scale the density drawn with the darkest color.
+     * @return the graphics.
+     */
+    private static List<Graphic> createKernelDensityGraphics(KernelDensity.Tile tile, float scale) {
+        List<Graphic> graphics = new ArrayList<>();
+        if (0.0f == scale) {
+            return graphics;
+        }
+        double cellSize = tile.getCellSize();
+        for (int row = 0; row < KernelDensity.TILE_CELLS; row++) {
+            int column = 0;
+            while (column < KernelDensity.TILE_CELLS) {
+                int symbol = getKernelDensitySymbol(tile.getDensity(column, row), scale);
+                int end = column + 1;
+                while (end < KernelDensity.TILE_CELLS
+                    && symbol == getKernelDensitySymbol(tile.getDensity(end, row), scale)) {
+                    end++;
+                }
+                if (0 <= symbol) {
+                    double minX = tile.getMinX() + column * cellSize;
+                    double maxX = tile.getMinX() + end * cellSize;
+                    double minY = tile.getMinY() + row * cellSize;
+                    PointCollection corners = new PointCollection(LayerIndex.SPATIAL_REFERENCE);
+                    corners.add(minX, minY);
+                    corners.add(minX, minY + cellSize);
+                    corners.add(maxX, minY + cellSize);
+                    corners.add(maxX, minY);
+                    graphics.add(new Graphic(new Polygon(corners), DENSITY_SYMBOLS[symbol]));
+                }
+                column = end;
+            }
+        }
+        return graphics;
+    }
+
+    /**
+     * Returns the index of the density symbol for a density, or -1 if the
+     * density is too low to draw. The lowest classes are left out so that
+     * the surface fades out instead of covering the map.
+     */
+    private static int getKernelDensitySymbol(float density, float scale) {
+        int symbol = (int) (density / scale * (DENSITY_SYMBOLS.length + 1)) - 1;
+        return Math.min(DENSITY_SYMBOLS.length - 1, symbol);
+    }
+
+    /**
+     * Runs a hotspot analysis of the crimes in view.
+     */
+    private void findHotspots() {
+        Polygon visibleArea = mapView.getVisibleArea();
+        if (null == visibleArea) {
+            return;
+        }
+        hotspotExtent = LayerIndex.toIndexSpatialReference(visibleArea).getExtent();
+        updateHotspots();
+    }
+
+    /**
+     * Runs the hotspot analysis again for the last analyzed extent, with the
+     * selected date range and facets, on a background thread.
+     */
+    private void updateHotspots() {
+        Envelope extent = hotspotExtent;
+        Map<FeatureLayer, LayerIndex> indexes = layerIndexes;
+        if (null == extent) {
+            return;
+        }
+        if (indexes.isEmpty()) {
+            label_hotspots.setText("Indexing crime data...");
+            return;
+        }
+        TimeWindow window = getTimeWindow();
+        FacetFilter facets = getFacetFilter();
+        long generation = ++hotspotGeneration;
+        long startTime = System.nanoTime();
+        CompletableFuture.supplyAsync(() -> HotspotAnalysis.run(indexes.values(), extent, window, facets,
+            HOTSPOT_CELLS_ACROSS, HOTSPOT_RADIUS_CELLS)).whenComplete((analysis, ex) -> Platform.runLater(() -> {
+                if (generation != hotspotGeneration) {
+                    return;
+                }
+                if (null == ex) {
+                    Logger.getLogger(WorkshopApp.class.getName()).log(Level.FINE, "Hotspots: {0}, in {1} ms",
+                        new Object[]{analysis, (System.nanoTime() - startTime) / 1000000});
+                    showHotspots(analysis);
+                } else {
+                    Logger.getLogger(WorkshopApp.class.getName()).log(Level.SEVERE, null, ex);
+                    hotspotMapGraphics.getGraphics().clear();
+                    label_hotspots.setText("Hotspot analysis failed");
+                }
+            }));
+    }
+
+    /**
+     * Draws the cells of a hotspot analysis that are hotspots or cold spots.
+     *
+     * @param analysis the analysis.
+     */
+    private void showHotspots(HotspotAnalysis analysis) {
+        List<Graphic> cells = new ArrayList<>();
+        double cellSize = analysis.getCellSize();
+        for (int row = 0; row < analysis.getRows(); row++) {
+            for (int column = 0; column < analysis.getColumns(); column++) {
+                int confidence = analysis.getConfidence(column, row);
+                if (0 == confidence) {
+                    continue;
+                }
+                double x = analysis.getCellMinX(column);
+                double y = analysis.getCellMinY(row);
+                PointCollection corners = new PointCollection(LayerIndex.SPATIAL_REFERENCE);
+                corners.add(x, y);
+                corners.add(x, y + cellSize);
+                corners.add(x + cellSize, y + cellSize);
+                corners.add(x + cellSize, y);
+                int symbol = 0 < confidence ? confidence + 2 : confidence + 3;
+                cells.add(new Graphic(new Polygon(corners), HOTSPOT_SYMBOLS[symbol]));
+            }
+        }
+        hotspotMapGraphics.getGraphics().clear();
+        hotspotMapGraphics.getGraphics().addAll(cells);
+        label_hotspots.setText(analysis.toString());
+    }
+
+    /**
+     * Removes the hotspots from the map.
+     */
+    private void clearHotspots() {
+        hotspotExtent = null;
+        hotspotGeneration++;
+        hotspotMapGraphics.getGraphics().clear();
+        label_hotspots.setText("");
+    }
+
+    /**
+     * Removes the kernel density surface from the map.
+     */
+    private void clearKernelDensity() {
+        kernelDensityMapGraphics.getGraphics().clear();
+        kernelDensityTileGraphics.clear();
+        kernelDensityScale = 0.0f;
     }
 
     /**